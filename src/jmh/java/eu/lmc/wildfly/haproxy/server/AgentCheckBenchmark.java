@@ -0,0 +1,165 @@
+package eu.lmc.wildfly.haproxy.server;
+
+import com.sun.net.httpserver.HttpServer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.xnio.OptionMap;
+import org.xnio.Options;
+import org.xnio.Xnio;
+import org.xnio.XnioWorker;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hot path of agent check: connect, read the whole response, close; as haproxy does it.
+ * <p/>
+ * Run with <code>mvn -Pbenchmark verify</code>; throughput and latency percentiles are measured, allocation rate
+ * is reported by GC profiler (<code>gc.alloc.rate.norm</code> is bytes allocated per check, including the client side).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+public class AgentCheckBenchmark {
+
+    private static final byte[] STATE = "up 75%\n".getBytes(StandardCharsets.US_ASCII);
+
+    /**
+     * Source of the agent: none (default state), status file, URL of local stub server, JVM health.
+     */
+    @Param({"default", "file", "http", "jvm"})
+    public String mode;
+
+    /**
+     * Options of the listening socket: XNIO defaults, or tuned for high connection rate (long backlog,
+     * TCP_NODELAY, SO_REUSEADDR and abortive close, which leaves no TIME_WAIT sockets).
+     */
+    @Param({"default", "tuned"})
+    public String socket;
+
+    private XnioWorker worker;
+    private XnioAgentCheckServer server;
+    private HttpServer stub;
+    private File file;
+    private InetAddress address;
+    private int port;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        address = InetAddress.getLoopbackAddress();
+        port = freePort();
+        worker = Xnio.getInstance().createWorker(OptionMap.create(Options.WORKER_IO_THREADS, 2));
+
+        final String source;
+        switch (mode) {
+            case "file":
+                file = File.createTempFile("haproxy-agent", ".status");
+                Files.write(file.toPath(), STATE);
+                source = file.getPath();
+                break;
+            case "http":
+                stub = HttpServer.create(new InetSocketAddress(address, 0), 50);
+                stub.createContext("/", exchange -> {
+                    exchange.sendResponseHeaders(200, STATE.length);
+                    exchange.getResponseBody().write(STATE);
+                    exchange.close();
+                });
+                stub.start();
+                source = "http://127.0.0.1:" + stub.getAddress().getPort() + "/status";
+                break;
+            case "jvm":
+                source = StateSources.JVM_PREFIX;
+                break;
+            default:
+                source = "/nonexistent/haproxy-agent.status";
+        }
+        server = new XnioAgentCheckServer(worker, source);
+        server.setRefreshIntervalMillis(100);
+        if ("tuned".equals(socket)) {
+            server.setBacklog(1024);
+            server.setTcpNoDelay(true);
+            server.setReuseAddress(true);
+            server.setCloseAbort(true);
+        }
+        server.start(address, port);
+        //let sources publish their first state
+        Thread.sleep(500);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        server.close();
+        worker.shutdown();
+        worker.awaitTermination(5, TimeUnit.SECONDS);
+        if (stub != null) {
+            stub.stop(0);
+        }
+        if (file != null) {
+            Files.delete(file.toPath());
+        }
+    }
+
+    /**
+     * One agent check.
+     *
+     * @return number of bytes received
+     */
+    @Benchmark
+    public int check() throws IOException {
+        final byte[] buffer = new byte[128];
+        int count = 0;
+        try (Socket socket = new Socket(address, port)) {
+            final InputStream in = socket.getInputStream();
+            int n;
+            while ((n = in.read(buffer, count, buffer.length - count)) > 0) {
+                count += n;
+            }
+        }
+        if (count == 0) {
+            throw new IllegalStateException("empty response");
+        }
+        return count;
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        final org.openjdk.jmh.runner.options.Options options = new OptionsBuilder()
+                .include(AgentCheckBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build();
+        new Runner(options).run();
+    }
+}
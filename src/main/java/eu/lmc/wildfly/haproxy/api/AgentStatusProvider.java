@@ -0,0 +1,26 @@
+package eu.lmc.wildfly.haproxy.api;
+
+/**
+ * Status of application, read by haproxy agent server with source <code>deployment:name</code>.
+ * <p/>
+ * Implementation is found by {@link java.util.ServiceLoader} (file
+ * <code>META-INF/services/eu.lmc.wildfly.haproxy.api.AgentStatusProvider</code> in deployment) or registered by
+ * application itself, see {@link AgentStatusProviders}.
+ */
+public interface AgentStatusProvider {
+
+    /**
+     * Name the provider is referred to by server source: <code>deployment:name</code>.
+     */
+    String getName();
+
+    /**
+     * Current status, as agent-check reply: like <code>ready 75%</code> or <code>drain</code>.
+     * <p/>
+     * Called periodically from background thread of agent server, never from check itself; should be fast anyway,
+     * call that does not finish in server timeout is abandoned and last status is served.
+     *
+     * @return status; <code>null</code> = no status (fallback state is sent)
+     */
+    String getStatus();
+}
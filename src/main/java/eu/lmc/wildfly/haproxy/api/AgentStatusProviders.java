@@ -0,0 +1,39 @@
+package eu.lmc.wildfly.haproxy.api;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Registry of {@link AgentStatusProvider}s, by name.
+ * <p/>
+ * Providers of deployments are registered and unregistered by the subsystem; application might register provider
+ * itself too (e.g. from startup bean), but it must unregister it when undeployed.
+ */
+public final class AgentStatusProviders {
+
+    private static final ConcurrentMap<String, AgentStatusProvider> PROVIDERS = new ConcurrentHashMap<>();
+
+    private AgentStatusProviders() {
+    }
+
+    /**
+     * Register provider under its name, replacing previous one.
+     */
+    public static void register(AgentStatusProvider provider) {
+        PROVIDERS.put(provider.getName(), provider);
+    }
+
+    /**
+     * Unregister provider, when it is still registered.
+     */
+    public static void unregister(AgentStatusProvider provider) {
+        PROVIDERS.remove(provider.getName(), provider);
+    }
+
+    /**
+     * @return provider of given name; <code>null</code> when there is none
+     */
+    public static AgentStatusProvider get(String name) {
+        return PROVIDERS.get(name);
+    }
+}
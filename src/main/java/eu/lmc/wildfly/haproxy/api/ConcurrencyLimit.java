@@ -0,0 +1,67 @@
+package eu.lmc.wildfly.haproxy.api;
+
+import eu.lmc.wildfly.haproxy.server.AdaptiveConcurrencyLimit;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Concurrency limit of this node, estimated from latency of requests the application reports; sent to haproxy as
+ * <code>maxconn:N</code> by agent servers with <code>adaptive-maxconn="name"</code>.
+ * <p/>
+ * Application reports each request (typically in servlet filter or undertow handler):
+ * <pre>
+ *     long start = limit.start();
+ *     try {
+ *         ...
+ *     } finally {
+ *         limit.complete(start);
+ *     }
+ * </pre>
+ */
+public final class ConcurrencyLimit {
+
+    private static final ConcurrentMap<String, ConcurrencyLimit> LIMITS = new ConcurrentHashMap<>();
+
+    private final AdaptiveConcurrencyLimit limit;
+
+    private ConcurrencyLimit(AdaptiveConcurrencyLimit limit) {
+        this.limit = limit;
+    }
+
+    /**
+     * Limit of given name; created on first use, so application might report requests before the agent starts.
+     */
+    public static ConcurrencyLimit get(String name) {
+        return LIMITS.computeIfAbsent(name, n -> new ConcurrencyLimit(AdaptiveConcurrencyLimit.get(n)));
+    }
+
+    /**
+     * Request started.
+     *
+     * @return start time, to be passed to {@link #complete(long)}
+     */
+    public long start() {
+        return limit.start();
+    }
+
+    /**
+     * Request finished.
+     *
+     * @param startNanos value returned by {@link #start()}
+     */
+    public void complete(long startNanos) {
+        limit.complete(startNanos);
+    }
+
+    /**
+     * Current estimate of concurrency limit.
+     */
+    public int getLimit() {
+        return limit.getLimit();
+    }
+
+    public int getInFlight() {
+        return limit.getInFlight();
+    }
+}
@@ -0,0 +1,68 @@
+package eu.lmc.wildfly.haproxy.deployment;
+
+import eu.lmc.wildfly.haproxy.api.AgentStatusProvider;
+import eu.lmc.wildfly.haproxy.api.AgentStatusProviders;
+import org.jboss.as.server.deployment.AttachmentKey;
+import org.jboss.as.server.deployment.AttachmentList;
+import org.jboss.as.server.deployment.Attachments;
+import org.jboss.as.server.deployment.DeploymentPhaseContext;
+import org.jboss.as.server.deployment.DeploymentUnit;
+import org.jboss.as.server.deployment.DeploymentUnitProcessingException;
+import org.jboss.as.server.deployment.DeploymentUnitProcessor;
+import org.jboss.as.server.deployment.Phase;
+import org.jboss.logging.Logger;
+import org.jboss.modules.Module;
+
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+
+/**
+ * Registers {@link AgentStatusProvider}s of deployment (declared in
+ * <code>META-INF/services/eu.lmc.wildfly.haproxy.api.AgentStatusProvider</code>) to {@link AgentStatusProviders},
+ * unregisters them on undeploy.
+ */
+public class StatusProviderProcessor implements DeploymentUnitProcessor {
+
+    private static Logger log = Logger.getLogger(StatusProviderProcessor.class);
+
+    /**
+     * Module class loader is needed.
+     */
+    public static final Phase PHASE = Phase.POST_MODULE;
+
+    public static final int PRIORITY = 0x4000;
+
+    private static final AttachmentKey<AttachmentList<AgentStatusProvider>> PROVIDERS =
+            AttachmentKey.createList(AgentStatusProvider.class);
+
+    @Override
+    public void deploy(DeploymentPhaseContext phaseContext) throws DeploymentUnitProcessingException {
+        final DeploymentUnit deploymentUnit = phaseContext.getDeploymentUnit();
+        final Module module = deploymentUnit.getAttachment(Attachments.MODULE);
+        if (module == null) {
+            return;
+        }
+        try {
+            for (AgentStatusProvider provider : ServiceLoader.load(AgentStatusProvider.class, module.getClassLoader())) {
+                if (provider.getClass().getClassLoader() != module.getClassLoader()) {
+                    //visible through dependency, belongs to another deployment
+                    continue;
+                }
+                AgentStatusProviders.register(provider);
+                deploymentUnit.addToAttachmentList(PROVIDERS, provider);
+                log.info("registered status provider " + provider.getName() + " of " + deploymentUnit.getName());
+            }
+        } catch (ServiceConfigurationError e) {
+            throw new DeploymentUnitProcessingException("cannot load status provider of " + deploymentUnit.getName(), e);
+        }
+    }
+
+    @Override
+    public void undeploy(DeploymentUnit context) {
+        for (AgentStatusProvider provider : context.getAttachmentList(PROVIDERS)) {
+            AgentStatusProviders.unregister(provider);
+            log.info("unregistered status provider " + provider.getName());
+        }
+        context.removeAttachment(PROVIDERS);
+    }
+}
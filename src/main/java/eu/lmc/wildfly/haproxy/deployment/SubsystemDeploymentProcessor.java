@@ -1,16 +1,24 @@
 package eu.lmc.wildfly.haproxy.deployment;
 
+import eu.lmc.wildfly.haproxy.api.AgentStatusProvider;
 import org.jboss.as.server.AbstractDeploymentChainStep;
+import org.jboss.as.server.deployment.Attachments;
 import org.jboss.as.server.deployment.DeploymentPhaseContext;
 import org.jboss.as.server.deployment.DeploymentUnit;
 import org.jboss.as.server.deployment.DeploymentUnitProcessingException;
 import org.jboss.as.server.deployment.DeploymentUnitProcessor;
 import org.jboss.as.server.deployment.Phase;
+import org.jboss.as.server.deployment.module.ModuleDependency;
+import org.jboss.as.server.deployment.module.ModuleSpecification;
 import org.jboss.logging.Logger;
+import org.jboss.modules.Module;
+import org.jboss.modules.ModuleIdentifier;
+import org.jboss.modules.filter.PathFilters;
 
 /**
- * An example deployment unit processor that does nothing. To add more deployment
- * processors copy this class, and add to the {@link AbstractDeploymentChainStep}
+ * Makes API of the subsystem (package {@link eu.lmc.wildfly.haproxy.api}) visible to deployments, so that they can
+ * provide their status (see {@link StatusProviderProcessor}) and report requests to concurrency limits. To add more
+ * deployment processors copy this class, and add to the {@link AbstractDeploymentChainStep}
  * {@link eu.lmc.wildfly.haproxy.extension.SubsystemAdd#performBoottime}
  *
  * @author <a href="kabir.khan@jboss.com">Kabir Khan</a>
@@ -31,8 +39,25 @@ public class SubsystemDeploymentProcessor implements DeploymentUnitProcessor {
      */
     public static final int PRIORITY = 0x4000;
 
+    /**
+     * Module of this subsystem.
+     */
+    static final ModuleIdentifier MODULE = ModuleIdentifier.create("eu.lmc.wildfly.haproxy-agent");
+    static final String API_PATH = AgentStatusProvider.class.getPackage().getName().replace('.', '/');
+
     @Override
     public void deploy(DeploymentPhaseContext phaseContext) throws DeploymentUnitProcessingException {
+        final DeploymentUnit deploymentUnit = phaseContext.getDeploymentUnit();
+        final ModuleSpecification moduleSpecification = deploymentUnit.getAttachment(Attachments.MODULE_SPECIFICATION);
+        if (moduleSpecification == null) {
+            return;
+        }
+        final ModuleDependency dependency = new ModuleDependency(Module.getBootModuleLoader(), MODULE, false, false, false, false);
+        //API only, implementation stays hidden
+        dependency.addImportFilter(PathFilters.isOrIsChildOf(API_PATH), true);
+        dependency.addImportFilter(PathFilters.acceptAll(), false);
+        moduleSpecification.addSystemDependency(dependency);
+        log.debugf("added %s to %s", MODULE, deploymentUnit.getName());
     }
 
     @Override
@@ -1,13 +1,17 @@
 package eu.lmc.wildfly.haproxy.extension;
 
 import eu.lmc.wildfly.haproxy.server.HaProxyAgentService;
+import eu.lmc.wildfly.haproxy.server.HttpClientService;
+import eu.lmc.wildfly.haproxy.server.SourceRegistryService;
 import org.jboss.as.controller.AbstractAddStepHandler;
 import org.jboss.as.controller.OperationContext;
 import org.jboss.as.controller.OperationFailedException;
 import org.jboss.as.controller.PathAddress;
+import org.jboss.as.controller.SimpleAttributeDefinition;
 import org.jboss.as.controller.descriptions.ModelDescriptionConstants;
 import org.jboss.as.controller.registry.Resource;
 import org.jboss.as.network.SocketBinding;
+import org.jboss.as.server.suspend.SuspendController;
 import org.jboss.dmr.ModelNode;
 import org.jboss.logging.Logger;
 import org.jboss.msc.service.ServiceBuilder;
@@ -30,10 +34,9 @@ class ServerAddHandler extends AbstractAddStepHandler {
      */
     @Override
     protected void populateModel(ModelNode operation, ModelNode model) throws OperationFailedException {
-        ServerDefinition.NAME_ATTR.validateAndSet(operation, model);
-        ServerDefinition.SOURCE_ATTR.validateAndSet(operation, model);
-        ServerDefinition.SOCKET_BINDING_ATTR.validateAndSet(operation, model);
-        ServerDefinition.WORKER_ATTR.validateAndSet(operation, model);
+        for (SimpleAttributeDefinition attr : ServerDefinition.ATTRIBUTES) {
+            attr.validateAndSet(operation, model);
+        }
     }
 
     @Override
@@ -45,6 +48,13 @@ class ServerAddHandler extends AbstractAddStepHandler {
         //source name is special, because it's key
         final String srvName = PathAddress.pathAddress(operation.get(ModelDescriptionConstants.ADDRESS)).getLastElement().getValue();
         final HaProxyAgentService service = new HaProxyAgentService(srvName, source);
+        configure(context, model, service);
+        final ModelNode backlog = ServerDefinition.BACKLOG_ATTR.resolveModelAttribute(context, model);
+        service.setBacklog(backlog.isDefined() ? backlog.asInt() : -1);
+        final ModelNode receiveBuffer = ServerDefinition.RECEIVE_BUFFER_ATTR.resolveModelAttribute(context, model);
+        service.setReceiveBuffer(receiveBuffer.isDefined() ? receiveBuffer.asInt() : -1);
+        final ModelNode reuseAddress = ServerDefinition.REUSE_ADDRESS_ATTR.resolveModelAttribute(context, model);
+        service.setReuseAddress(reuseAddress.isDefined() ? reuseAddress.asBoolean() : null);
 
         final ServiceName name = HaProxyAgentService.createServiceName(srvName);
         final ServiceBuilder<HaProxyAgentService> sb = context.getServiceTarget().addService(name, service);
@@ -57,10 +67,54 @@ class ServerAddHandler extends AbstractAddStepHandler {
                     XnioWorker.class, service.getInjectedXnioWorker());
         }
 
+        sb.addDependency(SuspendController.SERVICE_NAME, SuspendController.class, service.getInjectedSuspendController());
+
+        sb.addDependency(SourceRegistryService.SERVICE_NAME, SourceRegistryService.class, service.getInjectedSourceRegistry());
+
+        if (service.usesHttpClient()) {
+            sb.addDependency(HttpClientService.SERVICE_NAME, HttpClientService.class, service.getInjectedHttpClient());
+        }
+
         final ServiceController<HaProxyAgentService> controller = sb
                 .setInitialMode(ServiceController.Mode.ACTIVE)
                 .install();
         log.log(Logger.Level.INFO, "server controller added: " + controller);
     }
 
+    /**
+     * Set attributes that might change at runtime (see {@link ServerWriteAttributeHandler}) to the service.
+     */
+    static void configure(OperationContext context, ModelNode model, HaProxyAgentService service) throws OperationFailedException {
+        service.setSource(ServerDefinition.SOURCE_ATTR.resolveModelAttribute(context, model).asString());
+        service.setRefreshIntervalMillis(ServerDefinition.REFRESH_INTERVAL_ATTR.resolveModelAttribute(context, model).asLong());
+        service.setMaxStaleMillis(ServerDefinition.MAX_STALE_ATTR.resolveModelAttribute(context, model).asLong());
+        service.setTimeoutSeconds(ServerDefinition.TIMEOUT_ATTR.resolveModelAttribute(context, model).asInt());
+        service.setFallbackState(ServerDefinition.FALLBACK_ATTR.resolveModelAttribute(context, model).asString());
+        final ModelNode adaptiveMaxconn = ServerDefinition.ADAPTIVE_MAXCONN_ATTR.resolveModelAttribute(context, model);
+        service.setAdaptiveMaxconn(adaptiveMaxconn.isDefined() ? adaptiveMaxconn.asString() : null);
+        service.setWeightSmoothing(ServerDefinition.WEIGHT_SMOOTHING_ATTR.resolveModelAttribute(context, model).asInt());
+        service.setWeightStep(ServerDefinition.WEIGHT_STEP_ATTR.resolveModelAttribute(context, model).asInt());
+        service.setStateDwellMillis(ServerDefinition.STATE_DWELL_ATTR.resolveModelAttribute(context, model).asLong());
+        service.setSlowStartMillis(ServerDefinition.SLOW_START_ATTR.resolveModelAttribute(context, model).asLong());
+        service.setSlowStartWeight(ServerDefinition.SLOW_START_WEIGHT_ATTR.resolveModelAttribute(context, model).asInt());
+        service.setSlowStartJit(ServerDefinition.SLOW_START_JIT_ATTR.resolveModelAttribute(context, model).asBoolean());
+        final ModelNode tcpNoDelay = ServerDefinition.TCP_NODELAY_ATTR.resolveModelAttribute(context, model);
+        service.setTcpNoDelay(tcpNoDelay.isDefined() ? tcpNoDelay.asBoolean() : null);
+        final ModelNode sendBuffer = ServerDefinition.SEND_BUFFER_ATTR.resolveModelAttribute(context, model);
+        service.setSendBuffer(sendBuffer.isDefined() ? sendBuffer.asInt() : -1);
+        service.setCloseAbort(ServerDefinition.CLOSE_ABORT_ATTR.resolveModelAttribute(context, model).asBoolean());
+        final ModelNode backends = ServerDefinition.BACKENDS_ATTR.resolveModelAttribute(context, model);
+        service.setBackends(backends.isDefined() ? backends.asString() : null);
+        final ModelNode backendDefault = ServerDefinition.BACKEND_DEFAULT_ATTR.resolveModelAttribute(context, model);
+        service.setBackendDefault(backendDefault.isDefined() ? backendDefault.asString() : null);
+        final ModelNode peerRules = ServerDefinition.PEER_RULES_ATTR.resolveModelAttribute(context, model);
+        service.setPeerRules(peerRules.isDefined() ? peerRules.asString() : null);
+        final ModelNode maxConnections = ServerDefinition.MAX_CONNECTIONS_ATTR.resolveModelAttribute(context, model);
+        service.setMaxConnections(maxConnections.isDefined() ? maxConnections.asInt() : 0);
+        final ModelNode peerRate = ServerDefinition.PEER_RATE_ATTR.resolveModelAttribute(context, model);
+        final ModelNode peerBurst = ServerDefinition.PEER_BURST_ATTR.resolveModelAttribute(context, model);
+        service.setPeerRate(peerRate.isDefined() ? peerRate.asInt() : 0, peerBurst.isDefined() ? peerBurst.asInt() : 0);
+        final ModelNode overloadReply = ServerDefinition.OVERLOAD_REPLY_ATTR.resolveModelAttribute(context, model);
+        service.setOverloadReply(overloadReply.isDefined() ? overloadReply.asString() : null);
+    }
 }
@@ -17,12 +17,23 @@
 
 package eu.lmc.wildfly.haproxy.extension;
 
+import org.jboss.as.controller.AttributeDefinition;
+import org.jboss.as.controller.OperationDefinition;
+import org.jboss.as.controller.OperationStepHandler;
+import org.jboss.as.controller.ReloadRequiredWriteAttributeHandler;
 import org.jboss.as.controller.SimpleAttributeDefinition;
 import org.jboss.as.controller.SimpleAttributeDefinitionBuilder;
+import org.jboss.as.controller.SimpleOperationDefinitionBuilder;
 import org.jboss.as.controller.SimpleResourceDefinition;
+import org.jboss.as.controller.client.helpers.MeasurementUnit;
+import org.jboss.as.controller.operations.validation.IntRangeValidator;
+import org.jboss.as.controller.operations.validation.LongRangeValidator;
 import org.jboss.as.controller.registry.ManagementResourceRegistration;
+import org.jboss.dmr.ModelNode;
 import org.jboss.dmr.ModelType;
 
+import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
@@ -36,7 +47,31 @@ public class ServerDefinition extends SimpleResourceDefinition {
         SOCKET_BINDING("socket-binding"),
         WORKER("worker"),
         SOURCE("source"),
-        NAME("name");
+        NAME("name"),
+        REFRESH_INTERVAL("refresh-interval"),
+        MAX_STALE("max-stale"),
+        TIMEOUT("timeout"),
+        FALLBACK("fallback"),
+        ADAPTIVE_MAXCONN("adaptive-maxconn"),
+        WEIGHT_SMOOTHING("weight-smoothing"),
+        WEIGHT_STEP("weight-step"),
+        STATE_DWELL("state-dwell"),
+        SLOW_START("slow-start"),
+        SLOW_START_WEIGHT("slow-start-weight"),
+        SLOW_START_JIT("slow-start-jit"),
+        BACKLOG("backlog"),
+        TCP_NODELAY("tcp-nodelay"),
+        RECEIVE_BUFFER("receive-buffer"),
+        SEND_BUFFER("send-buffer"),
+        REUSE_ADDRESS("reuse-address"),
+        CLOSE_ABORT("close-abort"),
+        BACKENDS("backends"),
+        BACKEND_DEFAULT("backend-default"),
+        PEER_RULES("peer-rules"),
+        MAX_CONNECTIONS("max-connections"),
+        PEER_RATE("peer-rate"),
+        PEER_BURST("peer-burst"),
+        OVERLOAD_REPLY("overload-reply");
 
         private final String xmlName;
 
@@ -57,6 +92,54 @@ public class ServerDefinition extends SimpleResourceDefinition {
 
     }
 
+    /**
+     * Runtime metrics of server, see {@link eu.lmc.wildfly.haproxy.server.AgentMetrics}.
+     */
+    public enum Metric {
+        UNKNOWN(null, null, null),
+        SOURCE_TYPE("source-type", ModelType.STRING, MeasurementUnit.NONE),
+        CHECKS_ACCEPTED("checks-accepted", ModelType.LONG, MeasurementUnit.NONE),
+        CHECKS_REJECTED("checks-rejected", ModelType.LONG, MeasurementUnit.NONE),
+        CHECKS_SERVED("checks-served", ModelType.LONG, MeasurementUnit.NONE),
+        FALLBACKS("fallbacks", ModelType.LONG, MeasurementUnit.NONE),
+        HTTP_ERRORS("http-errors", ModelType.LONG, MeasurementUnit.NONE),
+        TIMEOUTS("timeouts", ModelType.LONG, MeasurementUnit.NONE),
+        EXEC_FAILURES("exec-failures", ModelType.LONG, MeasurementUnit.NONE),
+        BYTES_WRITTEN("bytes-written", ModelType.LONG, MeasurementUnit.BYTES),
+        SOURCE_READS("source-reads", ModelType.LONG, MeasurementUnit.NONE),
+        SOURCE_READ_LATENCY_P50("source-read-latency-p50", ModelType.LONG, MeasurementUnit.MICROSECONDS),
+        SOURCE_READ_LATENCY_P99("source-read-latency-p99", ModelType.LONG, MeasurementUnit.MICROSECONDS),
+        SOURCE_READ_LATENCY_MAX("source-read-latency-max", ModelType.LONG, MeasurementUnit.MICROSECONDS),
+        CONCURRENCY_LIMIT("concurrency-limit", ModelType.INT, MeasurementUnit.NONE);
+
+        private final String name;
+        private final SimpleAttributeDefinition definition;
+
+        Metric(final String name, final ModelType type, final MeasurementUnit unit) {
+            this.name = name;
+            this.definition = name == null ? null : new SimpleAttributeDefinitionBuilder(name, type)
+                    .setAllowNull(true)
+                    .setStorageRuntime()
+                    .setMeasurementUnit(unit)
+                    .build();
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public SimpleAttributeDefinition getDefinition() {
+            return definition;
+        }
+
+        private static final Map<String, Metric> MAP =
+                Stream.of(values()).filter(m -> m.name != null).collect(Collectors.toMap(Metric::getName, m -> m));
+
+        public static Metric findByName(final String name) {
+            return MAP.getOrDefault(name, UNKNOWN);
+        }
+    }
+
     protected static final SimpleAttributeDefinition SOCKET_BINDING_ATTR = new SimpleAttributeDefinitionBuilder(
             Element.SOCKET_BINDING.getXmlName(), ModelType.STRING)
             .setAllowNull(true)
@@ -64,7 +147,7 @@ public class ServerDefinition extends SimpleResourceDefinition {
             .build();
     protected static final SimpleAttributeDefinition WORKER_ATTR = new SimpleAttributeDefinitionBuilder(
             Element.WORKER.getXmlName(), ModelType.STRING)
-            .setAllowNull(false)
+            .setAllowNull(true)
             .setAllowExpression(false)
             .build();
     protected static final SimpleAttributeDefinition SOURCE_ATTR = new SimpleAttributeDefinitionBuilder(
@@ -78,6 +161,218 @@ public class ServerDefinition extends SimpleResourceDefinition {
             .setAllowExpression(false)
             .build();
 
+    protected static final SimpleAttributeDefinition REFRESH_INTERVAL_ATTR = new SimpleAttributeDefinitionBuilder(
+            Element.REFRESH_INTERVAL.getXmlName(), ModelType.LONG)
+            .setAllowNull(true)
+            .setAllowExpression(true)
+            .setDefaultValue(new ModelNode(1000L))
+            .setMeasurementUnit(MeasurementUnit.MILLISECONDS)
+            .setValidator(new LongRangeValidator(1, Long.MAX_VALUE, true, true))
+            .build();
+    protected static final SimpleAttributeDefinition MAX_STALE_ATTR = new SimpleAttributeDefinitionBuilder(
+            Element.MAX_STALE.getXmlName(), ModelType.LONG)
+            .setAllowNull(true)
+            .setAllowExpression(true)
+            .setDefaultValue(new ModelNode(10000L))
+            .setMeasurementUnit(MeasurementUnit.MILLISECONDS)
+            .setValidator(new LongRangeValidator(1, Long.MAX_VALUE, true, true))
+            .build();
+    protected static final SimpleAttributeDefinition TIMEOUT_ATTR = new SimpleAttributeDefinitionBuilder(
+            Element.TIMEOUT.getXmlName(), ModelType.INT)
+            .setAllowNull(true)
+            .setAllowExpression(true)
+            .setDefaultValue(new ModelNode(4))
+            .setMeasurementUnit(MeasurementUnit.SECONDS)
+            .setValidator(new IntRangeValidator(1, true, true))
+            .build();
+    protected static final SimpleAttributeDefinition FALLBACK_ATTR = new SimpleAttributeDefinitionBuilder(
+            Element.FALLBACK.getXmlName(), ModelType.STRING)
+            .setAllowNull(true)
+            .setAllowExpression(true)
+            .setDefaultValue(new ModelNode("ready"))
+            .build();
+    protected static final SimpleAttributeDefinition ADAPTIVE_MAXCONN_ATTR = new SimpleAttributeDefinitionBuilder(
+            Element.ADAPTIVE_MAXCONN.getXmlName(), ModelType.STRING)
+            .setAllowNull(true)
+            .setAllowExpression(true)
+            .build();
+    protected static final SimpleAttributeDefinition WEIGHT_SMOOTHING_ATTR = new SimpleAttributeDefinitionBuilder(
+            Element.WEIGHT_SMOOTHING.getXmlName(), ModelType.INT)
+            .setAllowNull(true)
+            .setAllowExpression(true)
+            .setDefaultValue(new ModelNode(100))
+            .setMeasurementUnit(MeasurementUnit.PERCENTAGE)
+            .setValidator(new IntRangeValidator(1, 100, true, true))
+            .build();
+    protected static final SimpleAttributeDefinition WEIGHT_STEP_ATTR = new SimpleAttributeDefinitionBuilder(
+            Element.WEIGHT_STEP.getXmlName(), ModelType.INT)
+            .setAllowNull(true)
+            .setAllowExpression(true)
+            .setDefaultValue(new ModelNode(100))
+            .setMeasurementUnit(MeasurementUnit.PERCENTAGE)
+            .setValidator(new IntRangeValidator(1, 100, true, true))
+            .build();
+    protected static final SimpleAttributeDefinition STATE_DWELL_ATTR = new SimpleAttributeDefinitionBuilder(
+            Element.STATE_DWELL.getXmlName(), ModelType.LONG)
+            .setAllowNull(true)
+            .setAllowExpression(true)
+            .setDefaultValue(new ModelNode(0L))
+            .setMeasurementUnit(MeasurementUnit.MILLISECONDS)
+            .setValidator(new LongRangeValidator(0, Long.MAX_VALUE, true, true))
+            .build();
+
+    protected static final SimpleAttributeDefinition SLOW_START_ATTR = new SimpleAttributeDefinitionBuilder(
+            Element.SLOW_START.getXmlName(), ModelType.LONG)
+            .setAllowNull(true)
+            .setAllowExpression(true)
+            .setDefaultValue(new ModelNode(0L))
+            .setMeasurementUnit(MeasurementUnit.MILLISECONDS)
+            .setValidator(new LongRangeValidator(0, Long.MAX_VALUE, true, true))
+            .build();
+    protected static final SimpleAttributeDefinition SLOW_START_WEIGHT_ATTR = new SimpleAttributeDefinitionBuilder(
+            Element.SLOW_START_WEIGHT.getXmlName(), ModelType.INT)
+            .setAllowNull(true)
+            .setAllowExpression(true)
+            .setDefaultValue(new ModelNode(10))
+            .setMeasurementUnit(MeasurementUnit.PERCENTAGE)
+            .setValidator(new IntRangeValidator(1, 100, true, true))
+            .build();
+    protected static final SimpleAttributeDefinition SLOW_START_JIT_ATTR = new SimpleAttributeDefinitionBuilder(
+            Element.SLOW_START_JIT.getXmlName(), ModelType.BOOLEAN)
+            .setAllowNull(true)
+            .setAllowExpression(true)
+            .setDefaultValue(new ModelNode(false))
+            .build();
+
+    protected static final SimpleAttributeDefinition BACKLOG_ATTR = new SimpleAttributeDefinitionBuilder(
+            Element.BACKLOG.getXmlName(), ModelType.INT)
+            .setAllowNull(true)
+            .setAllowExpression(true)
+            .setValidator(new IntRangeValidator(1, true, true))
+            .build();
+    protected static final SimpleAttributeDefinition TCP_NODELAY_ATTR = new SimpleAttributeDefinitionBuilder(
+            Element.TCP_NODELAY.getXmlName(), ModelType.BOOLEAN)
+            .setAllowNull(true)
+            .setAllowExpression(true)
+            .build();
+    protected static final SimpleAttributeDefinition RECEIVE_BUFFER_ATTR = new SimpleAttributeDefinitionBuilder(
+            Element.RECEIVE_BUFFER.getXmlName(), ModelType.INT)
+            .setAllowNull(true)
+            .setAllowExpression(true)
+            .setMeasurementUnit(MeasurementUnit.BYTES)
+            .setValidator(new IntRangeValidator(1, true, true))
+            .build();
+    protected static final SimpleAttributeDefinition SEND_BUFFER_ATTR = new SimpleAttributeDefinitionBuilder(
+            Element.SEND_BUFFER.getXmlName(), ModelType.INT)
+            .setAllowNull(true)
+            .setAllowExpression(true)
+            .setMeasurementUnit(MeasurementUnit.BYTES)
+            .setValidator(new IntRangeValidator(1, true, true))
+            .build();
+    protected static final SimpleAttributeDefinition REUSE_ADDRESS_ATTR = new SimpleAttributeDefinitionBuilder(
+            Element.REUSE_ADDRESS.getXmlName(), ModelType.BOOLEAN)
+            .setAllowNull(true)
+            .setAllowExpression(true)
+            .build();
+    protected static final SimpleAttributeDefinition CLOSE_ABORT_ATTR = new SimpleAttributeDefinitionBuilder(
+            Element.CLOSE_ABORT.getXmlName(), ModelType.BOOLEAN)
+            .setAllowNull(true)
+            .setAllowExpression(true)
+            .setDefaultValue(new ModelNode(false))
+            .build();
+
+    protected static final SimpleAttributeDefinition BACKENDS_ATTR = new SimpleAttributeDefinitionBuilder(
+            Element.BACKENDS.getXmlName(), ModelType.STRING)
+            .setAllowNull(true)
+            .setAllowExpression(true)
+            .build();
+    protected static final SimpleAttributeDefinition BACKEND_DEFAULT_ATTR = new SimpleAttributeDefinitionBuilder(
+            Element.BACKEND_DEFAULT.getXmlName(), ModelType.STRING)
+            .setAllowNull(true)
+            .setAllowExpression(true)
+            .build();
+
+    protected static final SimpleAttributeDefinition PEER_RULES_ATTR = new SimpleAttributeDefinitionBuilder(
+            Element.PEER_RULES.getXmlName(), ModelType.STRING)
+            .setAllowNull(true)
+            .setAllowExpression(true)
+            .build();
+
+    protected static final SimpleAttributeDefinition MAX_CONNECTIONS_ATTR = new SimpleAttributeDefinitionBuilder(
+            Element.MAX_CONNECTIONS.getXmlName(), ModelType.INT)
+            .setAllowNull(true)
+            .setAllowExpression(true)
+            .setValidator(new IntRangeValidator(1, true, true))
+            .build();
+    protected static final SimpleAttributeDefinition PEER_RATE_ATTR = new SimpleAttributeDefinitionBuilder(
+            Element.PEER_RATE.getXmlName(), ModelType.INT)
+            .setAllowNull(true)
+            .setAllowExpression(true)
+            .setMeasurementUnit(MeasurementUnit.PER_SECOND)
+            .setValidator(new IntRangeValidator(1, true, true))
+            .build();
+    protected static final SimpleAttributeDefinition PEER_BURST_ATTR = new SimpleAttributeDefinitionBuilder(
+            Element.PEER_BURST.getXmlName(), ModelType.INT)
+            .setAllowNull(true)
+            .setAllowExpression(true)
+            .setValidator(new IntRangeValidator(1, true, true))
+            .build();
+    protected static final SimpleAttributeDefinition OVERLOAD_REPLY_ATTR = new SimpleAttributeDefinitionBuilder(
+            Element.OVERLOAD_REPLY.getXmlName(), ModelType.STRING)
+            .setAllowNull(true)
+            .setAllowExpression(true)
+            .build();
+
+    protected static final SimpleAttributeDefinition STATE_PARAM = new SimpleAttributeDefinitionBuilder(
+            "state", ModelType.STRING)
+            .setAllowNull(false)
+            .build();
+    protected static final SimpleAttributeDefinition WEIGHT_PARAM = new SimpleAttributeDefinitionBuilder(
+            "weight", ModelType.INT)
+            .setAllowNull(false)
+            .setMeasurementUnit(MeasurementUnit.PERCENTAGE)
+            .setValidator(new IntRangeValidator(0, 256, false, false))
+            .build();
+    protected static final SimpleAttributeDefinition TTL_PARAM = new SimpleAttributeDefinitionBuilder(
+            "ttl", ModelType.LONG)
+            .setAllowNull(true)
+            .setDefaultValue(new ModelNode(0L))
+            .setMeasurementUnit(MeasurementUnit.MILLISECONDS)
+            .setValidator(new LongRangeValidator(0, Long.MAX_VALUE, true, false))
+            .build();
+    protected static final SimpleAttributeDefinition WRITE_THROUGH_PARAM = new SimpleAttributeDefinitionBuilder(
+            "write-through", ModelType.BOOLEAN)
+            .setAllowNull(true)
+            .setDefaultValue(new ModelNode(false))
+            .build();
+
+    /**
+     * Runtime operations overriding state sent to haproxy, see {@link ServerStateHandler}.
+     */
+    protected static final OperationDefinition SET_STATE = runtimeOperation(ServerStateHandler.SET_STATE,
+            STATE_PARAM, TTL_PARAM, WRITE_THROUGH_PARAM);
+    protected static final OperationDefinition SET_WEIGHT = runtimeOperation(ServerStateHandler.SET_WEIGHT,
+            WEIGHT_PARAM, TTL_PARAM, WRITE_THROUGH_PARAM);
+    protected static final OperationDefinition CLEAR_OVERRIDE = runtimeOperation(ServerStateHandler.CLEAR_OVERRIDE);
+    protected static final OperationDefinition READ_CURRENT_STATE = runtimeOperation(ServerStateHandler.READ_CURRENT_STATE);
+
+    /**
+     * All attributes of server, in order they are written to xml.
+     */
+    protected static final List<SimpleAttributeDefinition> ATTRIBUTES = Arrays.asList(
+            NAME_ATTR, SOURCE_ATTR, SOCKET_BINDING_ATTR, WORKER_ATTR, REFRESH_INTERVAL_ATTR, MAX_STALE_ATTR,
+            TIMEOUT_ATTR, FALLBACK_ATTR, ADAPTIVE_MAXCONN_ATTR, WEIGHT_SMOOTHING_ATTR, WEIGHT_STEP_ATTR, STATE_DWELL_ATTR,
+            SLOW_START_ATTR, SLOW_START_WEIGHT_ATTR, SLOW_START_JIT_ATTR, BACKLOG_ATTR, TCP_NODELAY_ATTR,
+            RECEIVE_BUFFER_ATTR, SEND_BUFFER_ATTR, REUSE_ADDRESS_ATTR, CLOSE_ABORT_ATTR, BACKENDS_ATTR,
+            BACKEND_DEFAULT_ATTR, PEER_RULES_ATTR, MAX_CONNECTIONS_ATTR, PEER_RATE_ATTR, PEER_BURST_ATTR,
+            OVERLOAD_REPLY_ATTR);
+
+    /**
+     * Attributes bound to the listening socket: changed value is used after reload.
+     */
+    private static final List<SimpleAttributeDefinition> RELOAD_ATTRIBUTES = Arrays.asList(
+            NAME_ATTR, SOCKET_BINDING_ATTR, WORKER_ATTR, BACKLOG_ATTR, RECEIVE_BUFFER_ATTR, REUSE_ADDRESS_ATTR);
+
     public static final ServerDefinition INSTANCE = new ServerDefinition();
 
     private ServerDefinition() {
@@ -87,11 +382,40 @@ public class ServerDefinition extends SimpleResourceDefinition {
                 ServerRemoveHandler.INSTANCE);
     }
 
+    private static OperationDefinition runtimeOperation(String name, AttributeDefinition... parameters) {
+        return new SimpleOperationDefinitionBuilder(name,
+                SubsystemExtension.getResourceDescriptionResolver(SubsystemExtension.SERVER))
+                .setParameters(parameters)
+                .setReplyType(ModelType.STRING)
+                .setRuntimeOnly()
+                .build();
+    }
+
+    @Override
+    public void registerOperations(final ManagementResourceRegistration resourceRegistration) {
+        super.registerOperations(resourceRegistration);
+        for (OperationDefinition operation : Arrays.asList(SET_STATE, SET_WEIGHT, CLEAR_OVERRIDE, READ_CURRENT_STATE)) {
+            resourceRegistration.registerOperationHandler(operation, ServerStateHandler.INSTANCE);
+        }
+    }
+
     @Override
     public void registerAttributes(final ManagementResourceRegistration resourceRegistration) {
-        resourceRegistration.registerReadWriteAttribute(WORKER_ATTR, null, DummyHandler.INSTANCE);
-        resourceRegistration.registerReadWriteAttribute(SOCKET_BINDING_ATTR, null, DummyHandler.INSTANCE);
-        resourceRegistration.registerReadWriteAttribute(SOURCE_ATTR, null, DummyHandler.INSTANCE);
-        resourceRegistration.registerReadWriteAttribute(NAME_ATTR, null, DummyHandler.INSTANCE);
+        final OperationStepHandler reloadHandler = new ReloadRequiredWriteAttributeHandler(
+                RELOAD_ATTRIBUTES.toArray(new AttributeDefinition[RELOAD_ATTRIBUTES.size()]));
+        final List<SimpleAttributeDefinition> runtime = ATTRIBUTES.stream()
+                .filter(attr -> !RELOAD_ATTRIBUTES.contains(attr))
+                .collect(Collectors.toList());
+        final OperationStepHandler runtimeHandler = new ServerWriteAttributeHandler(
+                runtime.toArray(new AttributeDefinition[runtime.size()]));
+        for (SimpleAttributeDefinition attr : ATTRIBUTES) {
+            resourceRegistration.registerReadWriteAttribute(attr, null,
+                    RELOAD_ATTRIBUTES.contains(attr) ? reloadHandler : runtimeHandler);
+        }
+        for (Metric metric : Metric.values()) {
+            if (metric.getDefinition() != null) {
+                resourceRegistration.registerMetric(metric.getDefinition(), ServerMetricsHandler.INSTANCE);
+            }
+        }
     }
 }
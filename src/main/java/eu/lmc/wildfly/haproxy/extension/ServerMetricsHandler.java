@@ -0,0 +1,77 @@
+package eu.lmc.wildfly.haproxy.extension;
+
+import eu.lmc.wildfly.haproxy.server.AgentMetrics;
+import eu.lmc.wildfly.haproxy.server.HaProxyAgentService;
+import org.jboss.as.controller.AbstractRuntimeOnlyHandler;
+import org.jboss.as.controller.OperationContext;
+import org.jboss.as.controller.OperationFailedException;
+import org.jboss.as.controller.descriptions.ModelDescriptionConstants;
+import org.jboss.dmr.ModelNode;
+import org.jboss.msc.service.ServiceController;
+
+/**
+ * Read runtime metrics of "server" element from running {@link HaProxyAgentService}.
+ */
+class ServerMetricsHandler extends AbstractRuntimeOnlyHandler {
+
+    public static final ServerMetricsHandler INSTANCE = new ServerMetricsHandler();
+
+    @Override
+    protected void executeRuntimeStep(OperationContext context, ModelNode operation) throws OperationFailedException {
+        final String attributeName = operation.require(ModelDescriptionConstants.NAME).asString();
+        final ServiceController<?> controller = context.getServiceRegistry(false)
+                .getService(HaProxyAgentService.createServiceName(context.getCurrentAddressValue()));
+        if (controller == null || controller.getState() != ServiceController.State.UP) {
+            //service not running (yet): no metrics
+            return;
+        }
+        final AgentMetrics metrics = ((HaProxyAgentService) controller.getValue()).getMetrics();
+        final ModelNode result = context.getResult();
+        switch (ServerDefinition.Metric.findByName(attributeName)) {
+            case SOURCE_TYPE:
+                result.set(metrics.getSourceType());
+                break;
+            case CHECKS_ACCEPTED:
+                result.set(metrics.getChecksAccepted());
+                break;
+            case CHECKS_REJECTED:
+                result.set(metrics.getChecksRejected());
+                break;
+            case CHECKS_SERVED:
+                result.set(metrics.getChecksServed());
+                break;
+            case FALLBACKS:
+                result.set(metrics.getFallbacks());
+                break;
+            case HTTP_ERRORS:
+                result.set(metrics.getHttpErrors());
+                break;
+            case TIMEOUTS:
+                result.set(metrics.getTimeouts());
+                break;
+            case EXEC_FAILURES:
+                result.set(metrics.getExecFailures());
+                break;
+            case BYTES_WRITTEN:
+                result.set(metrics.getBytesWritten());
+                break;
+            case SOURCE_READS:
+                result.set(metrics.getSourceReadLatency().getCount());
+                break;
+            case SOURCE_READ_LATENCY_P50:
+                result.set(metrics.getSourceReadLatency().getPercentile(50));
+                break;
+            case SOURCE_READ_LATENCY_P99:
+                result.set(metrics.getSourceReadLatency().getPercentile(99));
+                break;
+            case SOURCE_READ_LATENCY_MAX:
+                result.set(metrics.getSourceReadLatency().getMax());
+                break;
+            case CONCURRENCY_LIMIT:
+                result.set(metrics.getConcurrencyLimit());
+                break;
+            default:
+                throw new OperationFailedException("unknown metric " + attributeName);
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package eu.lmc.wildfly.haproxy.extension;
+
+import eu.lmc.wildfly.haproxy.server.HaProxyAgentService;
+import org.jboss.as.controller.AbstractRuntimeOnlyHandler;
+import org.jboss.as.controller.OperationContext;
+import org.jboss.as.controller.OperationFailedException;
+import org.jboss.as.controller.descriptions.ModelDescriptionConstants;
+import org.jboss.dmr.ModelNode;
+import org.jboss.msc.service.ServiceController;
+
+import java.io.IOException;
+
+/**
+ * Override state sent to haproxy by running {@link HaProxyAgentService}, without touching its source:
+ * <ul>
+ * <li><code>set-state(state, ttl, write-through)</code>: send given state (e.g. <code>drain</code>),</li>
+ * <li><code>set-weight(weight, ttl, write-through)</code>: send given weight,</li>
+ * <li><code>clear-override</code>: send state of the source again,</li>
+ * <li><code>read-current-state</code>: reply sent to haproxy now.</li>
+ * </ul>
+ * Override is kept in memory only (lost on restart), unless written through to file of file source.
+ */
+class ServerStateHandler extends AbstractRuntimeOnlyHandler {
+
+    static final String SET_STATE = "set-state";
+    static final String SET_WEIGHT = "set-weight";
+    static final String CLEAR_OVERRIDE = "clear-override";
+    static final String READ_CURRENT_STATE = "read-current-state";
+
+    public static final ServerStateHandler INSTANCE = new ServerStateHandler();
+
+    @Override
+    protected void executeRuntimeStep(OperationContext context, ModelNode operation) throws OperationFailedException {
+        final String operationName = operation.require(ModelDescriptionConstants.OP).asString();
+        final ServiceController<?> controller = context.getServiceRegistry(false)
+                .getService(HaProxyAgentService.createServiceName(context.getCurrentAddressValue()));
+        if (controller == null || controller.getState() != ServiceController.State.UP) {
+            throw new OperationFailedException("haproxy agent " + context.getCurrentAddressValue() + " is not running");
+        }
+        final HaProxyAgentService service = (HaProxyAgentService) controller.getValue();
+        try {
+            final String reply;
+            switch (operationName) {
+                case SET_STATE:
+                    reply = service.setState(ServerDefinition.STATE_PARAM.resolveModelAttribute(context, operation).asString(),
+                            ServerDefinition.TTL_PARAM.resolveModelAttribute(context, operation).asLong(),
+                            ServerDefinition.WRITE_THROUGH_PARAM.resolveModelAttribute(context, operation).asBoolean());
+                    break;
+                case SET_WEIGHT:
+                    reply = service.setWeight(ServerDefinition.WEIGHT_PARAM.resolveModelAttribute(context, operation).asInt(),
+                            ServerDefinition.TTL_PARAM.resolveModelAttribute(context, operation).asLong(),
+                            ServerDefinition.WRITE_THROUGH_PARAM.resolveModelAttribute(context, operation).asBoolean());
+                    break;
+                case CLEAR_OVERRIDE:
+                    reply = service.clearOverride();
+                    break;
+                case READ_CURRENT_STATE:
+                    reply = service.readCurrentState();
+                    break;
+                default:
+                    throw new OperationFailedException("unknown operation " + operationName);
+            }
+            context.getResult().set(reply);
+        } catch (IllegalArgumentException | IllegalStateException e) {
+            throw new OperationFailedException(e.getMessage());
+        } catch (IOException e) {
+            throw new OperationFailedException("failed to write state: " + e.getMessage());
+        }
+    }
+}
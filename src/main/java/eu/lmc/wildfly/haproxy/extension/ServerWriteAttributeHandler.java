@@ -0,0 +1,61 @@
+package eu.lmc.wildfly.haproxy.extension;
+
+import eu.lmc.wildfly.haproxy.server.HaProxyAgentService;
+import org.jboss.as.controller.AbstractWriteAttributeHandler;
+import org.jboss.as.controller.AttributeDefinition;
+import org.jboss.as.controller.OperationContext;
+import org.jboss.as.controller.OperationFailedException;
+import org.jboss.as.controller.PathAddress;
+import org.jboss.dmr.ModelNode;
+import org.jboss.msc.service.ServiceController;
+
+/**
+ * Write attribute of "server" element to running {@link HaProxyAgentService}: the source is restarted when a setting
+ * it is built with changed, other settings apply to the running server; listening socket stays bound (no reload, no
+ * refused check).
+ * <p/>
+ * Shared http client is injected on start only when the server uses it, so switching <code>source</code> or
+ * <code>backends</code> of such server to URL needs reload (instead of private client per source).
+ */
+class ServerWriteAttributeHandler extends AbstractWriteAttributeHandler<Void> {
+
+    ServerWriteAttributeHandler(AttributeDefinition... definitions) {
+        super(definitions);
+    }
+
+    @Override
+    protected boolean applyUpdateToRuntime(OperationContext context, ModelNode operation, String attributeName, ModelNode resolvedValue, ModelNode currentValue, HandbackHolder<Void> handbackHolder) throws OperationFailedException {
+        return reconfigure(context, context.readResource(PathAddress.EMPTY_ADDRESS).getModel());
+    }
+
+    @Override
+    protected void revertUpdateToRuntime(OperationContext context, ModelNode operation, String attributeName, ModelNode valueToRestore, ModelNode valueToRevert, Void handback) throws OperationFailedException {
+        final ModelNode model = context.readResource(PathAddress.EMPTY_ADDRESS).getModel().clone();
+        model.get(attributeName).set(valueToRestore);
+        reconfigure(context, model);
+    }
+
+    /**
+     * @return whether reload is required to apply the model
+     */
+    private static boolean reconfigure(OperationContext context, ModelNode model) throws OperationFailedException {
+        final ServiceController<?> controller = context.getServiceRegistry(true)
+                .getService(HaProxyAgentService.createServiceName(context.getCurrentAddressValue()));
+        if (controller == null || controller.getState() != ServiceController.State.UP) {
+            //not running: new value is used on start
+            return false;
+        }
+        final HaProxyAgentService service = (HaProxyAgentService) controller.getValue();
+        ServerAddHandler.configure(context, model, service);
+        if (service.usesHttpClient() && !service.hasHttpClient()) {
+            //running server keeps its source until reload adds dependency on shared client
+            return true;
+        }
+        try {
+            service.reconfigure();
+        } catch (IllegalArgumentException e) {
+            throw new OperationFailedException("invalid configuration: " + e.getMessage());
+        }
+        return false;
+    }
+}
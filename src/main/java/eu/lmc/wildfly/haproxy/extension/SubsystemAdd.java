@@ -1,13 +1,18 @@
 package eu.lmc.wildfly.haproxy.extension;
 
+import eu.lmc.wildfly.haproxy.deployment.StatusProviderProcessor;
 import eu.lmc.wildfly.haproxy.deployment.SubsystemDeploymentProcessor;
+import eu.lmc.wildfly.haproxy.server.HttpClientService;
+import eu.lmc.wildfly.haproxy.server.SourceRegistryService;
 import org.jboss.as.controller.AbstractBoottimeAddStepHandler;
 import org.jboss.as.controller.OperationContext;
 import org.jboss.as.controller.OperationFailedException;
+import org.jboss.as.controller.SimpleAttributeDefinition;
 import org.jboss.as.controller.registry.Resource;
 import org.jboss.as.server.AbstractDeploymentChainStep;
 import org.jboss.as.server.DeploymentProcessorTarget;
 import org.jboss.dmr.ModelNode;
+import org.jboss.msc.service.ServiceController;
 
 /**
  * Handler responsible for adding the subsystem resource to the model
@@ -26,13 +31,27 @@ class SubsystemAdd extends AbstractBoottimeAddStepHandler {
      */
     @Override
     protected void populateModel(ModelNode operation, ModelNode model) throws OperationFailedException {
-
+        for (SimpleAttributeDefinition attr : SubsystemDefinition.ATTRIBUTES) {
+            attr.validateAndSet(operation, model);
+        }
     }
 
 
     @Override
     protected void performBoottime(OperationContext context, ModelNode operation, Resource resource) throws OperationFailedException {
-//        final ModelNode model = resource.getModel();
+        final ModelNode model = resource.getModel();
+        final HttpClientService httpClient = new HttpClientService();
+        httpClient.setMaxConnections(SubsystemDefinition.HTTP_MAX_CONNECTIONS_ATTR.resolveModelAttribute(context, model).asInt());
+        httpClient.setMaxConnectionsPerRoute(SubsystemDefinition.HTTP_MAX_CONNECTIONS_PER_ROUTE_ATTR.resolveModelAttribute(context, model).asInt());
+        httpClient.setIoThreads(SubsystemDefinition.HTTP_IO_THREADS_ATTR.resolveModelAttribute(context, model).asInt());
+        httpClient.setKeepAliveMillis(SubsystemDefinition.HTTP_KEEP_ALIVE_ATTR.resolveModelAttribute(context, model).asLong());
+        //started on demand: only when some server has http source
+        context.getServiceTarget().addService(HttpClientService.SERVICE_NAME, httpClient)
+                .setInitialMode(ServiceController.Mode.ON_DEMAND)
+                .install();
+        context.getServiceTarget().addService(SourceRegistryService.SERVICE_NAME, new SourceRegistryService())
+                .setInitialMode(ServiceController.Mode.ON_DEMAND)
+                .install();
 
         //Add deployment processors here
         //Remove this if you don't need to hook into the deployers, or you can add as many as you like
@@ -40,6 +59,7 @@ class SubsystemAdd extends AbstractBoottimeAddStepHandler {
         context.addStep(new AbstractDeploymentChainStep() {
             public void execute(DeploymentProcessorTarget processorTarget) {
                 processorTarget.addDeploymentProcessor(SubsystemExtension.SUBSYSTEM_NAME, SubsystemDeploymentProcessor.PHASE, SubsystemDeploymentProcessor.PRIORITY, new SubsystemDeploymentProcessor());
+                processorTarget.addDeploymentProcessor(SubsystemExtension.SUBSYSTEM_NAME, StatusProviderProcessor.PHASE, StatusProviderProcessor.PRIORITY, new StatusProviderProcessor());
 
             }
         }, OperationContext.Stage.RUNTIME);
@@ -1,10 +1,23 @@
 package eu.lmc.wildfly.haproxy.extension;
 
+import org.jboss.as.controller.AttributeDefinition;
+import org.jboss.as.controller.ReloadRequiredWriteAttributeHandler;
+import org.jboss.as.controller.SimpleAttributeDefinition;
+import org.jboss.as.controller.SimpleAttributeDefinitionBuilder;
 import org.jboss.as.controller.SimpleResourceDefinition;
+import org.jboss.as.controller.client.helpers.MeasurementUnit;
 import org.jboss.as.controller.descriptions.DefaultResourceAddDescriptionProvider;
 import org.jboss.as.controller.operations.common.GenericSubsystemDescribeHandler;
+import org.jboss.as.controller.operations.validation.IntRangeValidator;
+import org.jboss.as.controller.operations.validation.LongRangeValidator;
+import org.jboss.as.controller.registry.AttributeAccess;
 import org.jboss.as.controller.registry.ManagementResourceRegistration;
 import org.jboss.as.controller.registry.OperationEntry;
+import org.jboss.dmr.ModelNode;
+import org.jboss.dmr.ModelType;
+
+import java.util.Arrays;
+import java.util.List;
 
 import static org.jboss.as.controller.descriptions.ModelDescriptionConstants.*;
 
@@ -12,6 +25,50 @@ import static org.jboss.as.controller.descriptions.ModelDescriptionConstants.*;
  * @author <a href="mailto:tcerar@redhat.com">Tomaz Cerar</a>
  */
 public class SubsystemDefinition extends SimpleResourceDefinition {
+
+    /**
+     * Settings of http client shared by all servers, see {@link eu.lmc.wildfly.haproxy.server.HttpClientService}.
+     */
+    protected static final SimpleAttributeDefinition HTTP_MAX_CONNECTIONS_ATTR = new SimpleAttributeDefinitionBuilder(
+            "http-max-connections", ModelType.INT)
+            .setAllowNull(true)
+            .setAllowExpression(true)
+            .setDefaultValue(new ModelNode(20))
+            .setValidator(new IntRangeValidator(1, true, true))
+            .setFlags(AttributeAccess.Flag.RESTART_ALL_SERVICES)
+            .build();
+    protected static final SimpleAttributeDefinition HTTP_MAX_CONNECTIONS_PER_ROUTE_ATTR = new SimpleAttributeDefinitionBuilder(
+            "http-max-connections-per-route", ModelType.INT)
+            .setAllowNull(true)
+            .setAllowExpression(true)
+            .setDefaultValue(new ModelNode(5))
+            .setValidator(new IntRangeValidator(1, true, true))
+            .setFlags(AttributeAccess.Flag.RESTART_ALL_SERVICES)
+            .build();
+    protected static final SimpleAttributeDefinition HTTP_IO_THREADS_ATTR = new SimpleAttributeDefinitionBuilder(
+            "http-io-threads", ModelType.INT)
+            .setAllowNull(true)
+            .setAllowExpression(true)
+            .setDefaultValue(new ModelNode(1))
+            .setValidator(new IntRangeValidator(1, true, true))
+            .setFlags(AttributeAccess.Flag.RESTART_ALL_SERVICES)
+            .build();
+    protected static final SimpleAttributeDefinition HTTP_KEEP_ALIVE_ATTR = new SimpleAttributeDefinitionBuilder(
+            "http-keep-alive", ModelType.LONG)
+            .setAllowNull(true)
+            .setAllowExpression(true)
+            .setDefaultValue(new ModelNode(30000L))
+            .setMeasurementUnit(MeasurementUnit.MILLISECONDS)
+            .setValidator(new LongRangeValidator(1, Long.MAX_VALUE, true, true))
+            .setFlags(AttributeAccess.Flag.RESTART_ALL_SERVICES)
+            .build();
+
+    /**
+     * All attributes of subsystem, in order they are written to xml.
+     */
+    protected static final List<SimpleAttributeDefinition> ATTRIBUTES = Arrays.asList(
+            HTTP_MAX_CONNECTIONS_ATTR, HTTP_MAX_CONNECTIONS_PER_ROUTE_ATTR, HTTP_IO_THREADS_ATTR, HTTP_KEEP_ALIVE_ATTR);
+
     public static final SubsystemDefinition INSTANCE = new SubsystemDefinition();
 
     private SubsystemDefinition() {
@@ -37,6 +94,10 @@ public class SubsystemDefinition extends SimpleResourceDefinition {
 
     @Override
     public void registerAttributes(ManagementResourceRegistration resourceRegistration) {
-        //you can register attributes here
+        final ReloadRequiredWriteAttributeHandler handler = new ReloadRequiredWriteAttributeHandler(
+                ATTRIBUTES.toArray(new AttributeDefinition[ATTRIBUTES.size()]));
+        for (SimpleAttributeDefinition attr : ATTRIBUTES) {
+            resourceRegistration.registerReadWriteAttribute(attr, null, handler);
+        }
     }
 }
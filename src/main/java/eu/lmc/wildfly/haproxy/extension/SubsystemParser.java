@@ -2,6 +2,7 @@ package eu.lmc.wildfly.haproxy.extension;
 
 import org.jboss.as.controller.PathAddress;
 import org.jboss.as.controller.PathElement;
+import org.jboss.as.controller.SimpleAttributeDefinition;
 import org.jboss.as.controller.parsing.ParseUtils;
 import org.jboss.as.controller.persistence.SubsystemMarshallingContext;
 import org.jboss.dmr.ModelNode;
@@ -31,7 +32,16 @@ class SubsystemParser implements XMLStreamConstants, XMLElementReader<List<Model
     @Override
     public void readElement(XMLExtendedStreamReader reader, List<ModelNode> list) throws XMLStreamException {
 //        ParseUtils.requireNoContent(reader);
-        list.add(createAddSubsystemOperation());
+        final ModelNode addSubsystemOperation = createAddSubsystemOperation();
+        for (int i = 0; i < reader.getAttributeCount(); i++) {
+            final String name = reader.getAttributeLocalName(i);
+            final SimpleAttributeDefinition attr = findAttribute(SubsystemDefinition.ATTRIBUTES, name);
+            if (attr == null) {
+                throw unexpectedAttribute(reader, i);
+            }
+            attr.parseAndSetParameter(reader.getAttributeValue(i), addSubsystemOperation, reader);
+        }
+        list.add(addSubsystemOperation);
         while (reader.hasNext() && reader.nextTag() != END_ELEMENT) {
             if (!reader.getLocalName().equals(SERVER)) {
                 throw ParseUtils.unexpectedElement(reader);
@@ -57,21 +67,13 @@ class SubsystemParser implements XMLStreamConstants, XMLElementReader<List<Model
             final String name = reader.getAttributeLocalName(i);
             final String value = reader.getAttributeValue(i);
             switch (ServerDefinition.Element.findByXmlName(name)) {
-                case SOCKET_BINDING:
-                    ServerDefinition.SOCKET_BINDING_ATTR.parseAndSetParameter(value, addServerOperation, reader);
-                    break;
-                case WORKER:
-                    ServerDefinition.WORKER_ATTR.parseAndSetParameter(value, addServerOperation, reader);
-                    break;
-                case SOURCE:
-                    ServerDefinition.SOURCE_ATTR.parseAndSetParameter(value, addServerOperation, reader);
-                    break;
+                case UNKNOWN:
+                    throw unexpectedAttribute(reader, i);
                 case NAME:
-                    ServerDefinition.NAME_ATTR.parseAndSetParameter(value, addServerOperation, reader);
                     serviceKey = value;
-                    break;
+                    //fall through
                 default:
-                    throw unexpectedAttribute(reader, i);
+                    findAttribute(ServerDefinition.ATTRIBUTES, name).parseAndSetParameter(value, addServerOperation, reader);
             }
         }
         ParseUtils.requireNoContent(reader);
@@ -86,6 +88,18 @@ class SubsystemParser implements XMLStreamConstants, XMLElementReader<List<Model
     }
 
 
+    /**
+     * @return attribute of given xml name; <code>null</code> when there is none
+     */
+    private static SimpleAttributeDefinition findAttribute(List<SimpleAttributeDefinition> attributes, String xmlName) {
+        for (SimpleAttributeDefinition attr : attributes) {
+            if (attr.getXmlName().equals(xmlName)) {
+                return attr;
+            }
+        }
+        return null;
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -93,15 +107,20 @@ class SubsystemParser implements XMLStreamConstants, XMLElementReader<List<Model
     public void writeContent(XMLExtendedStreamWriter writer, SubsystemMarshallingContext context) throws XMLStreamException {
         context.startSubsystemElement(SubsystemExtension.NAMESPACE, false);
         final ModelNode node = context.getModelNode();
+        for (SimpleAttributeDefinition attr : SubsystemDefinition.ATTRIBUTES) {
+            attr.marshallAsAttribute(node, false, writer);
+        }
         final ModelNode server = node.get(SERVER);
         if (server.isDefined()) {
             for (Property property : server.asPropertyList()) {
                 writer.writeStartElement(SERVER);
                 writer.writeAttribute(ServerDefinition.Element.NAME.getXmlName(), property.getName());
                 final ModelNode entry = property.getValue();
-                ServerDefinition.SOURCE_ATTR.marshallAsAttribute(entry, true, writer);
-                ServerDefinition.SOCKET_BINDING_ATTR.marshallAsAttribute(entry, true, writer);
-                ServerDefinition.WORKER_ATTR.marshallAsAttribute(entry, true, writer);
+                for (SimpleAttributeDefinition attr : ServerDefinition.ATTRIBUTES) {
+                    if (attr != ServerDefinition.NAME_ATTR) {
+                        attr.marshallAsAttribute(entry, false, writer);
+                    }
+                }
                 writer.writeEndElement();
             }
         }
@@ -1,6 +1,8 @@
 package eu.lmc.wildfly.haproxy.extension;
 
 import eu.lmc.wildfly.haproxy.server.HaProxyAgentService;
+import eu.lmc.wildfly.haproxy.server.HttpClientService;
+import eu.lmc.wildfly.haproxy.server.SourceRegistryService;
 import org.jboss.as.controller.AbstractRemoveStepHandler;
 import org.jboss.as.controller.OperationContext;
 import org.jboss.as.controller.OperationFailedException;
@@ -39,6 +41,8 @@ class SubsystemRemove extends AbstractRemoveStepHandler {
             logger.debug("removing: " + serverResource);
             context.removeService(name);
         }
+        context.removeService(HttpClientService.SERVICE_NAME);
+        context.removeService(SourceRegistryService.SERVICE_NAME);
     }
 
 
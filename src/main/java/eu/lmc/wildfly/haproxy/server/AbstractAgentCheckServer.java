@@ -1,22 +1,93 @@
 package eu.lmc.wildfly.haproxy.server;
 
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+
 import java.io.Closeable;
 import java.io.IOException;
 import java.net.InetAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static org.xnio.IoUtils.safeClose;
 
 /**
  * Base superclass of agent check server.
  */
 abstract class AbstractAgentCheckServer implements Closeable {
 
+    private final static Logger logger = Logger.getLogger(AbstractAgentCheckServer.class.getName());
+
     /**
      * Default state to send.
      */
     protected static final byte[] DEFAULT_STATE = "ready\n".getBytes();
+    protected static final ResponseSnapshot DEFAULT_RESPONSE = ResponseSnapshot.of(DEFAULT_STATE).asFallback();
+
+    /**
+     * Response for next check; replaced by sources, read by IO threads.
+     */
+    private final AtomicReference<ResponseSnapshot> response = new AtomicReference<>(DEFAULT_RESPONSE);
+
+    /**
+     * Response sent when source has no state.
+     */
+    private ResponseSnapshot fallbackResponse = DEFAULT_RESPONSE;
+
+    /**
+     * Last response published by source; <code>null</code> = fallback.
+     */
+    private ResponseSnapshot sourceResponse;
+    /**
+     * State set by management operation, sent over the state of the source; <code>null</code> = none.
+     */
+    private AgentState override;
+    private ScheduledFuture<?> overrideExpiry;
+
+    /**
+     * Scheduler for background work of sources; created by {@link #start(InetAddress, int)}.
+     */
+    protected ScheduledExecutorService scheduler;
+
+    /**
+     * Running source of state; replaced by {@link #startSource(String)}.
+     */
+    private StateSource source;
+    /**
+     * Sources of backends dispatched by <code>agent-send</code>; <code>null</code> = not used.
+     */
+    private volatile BackendDispatch dispatch;
 
+    private AgentMetrics metrics = new AgentMetrics();
+    private final ServerLifecycle lifecycle = new ServerLifecycle();
 
     private int maxSize = 100;
-    private int timeoutSeconds = 4;
+    private volatile int timeoutSeconds = 4;
+    private long refreshIntervalMillis = 1000;
+    private long maxStaleMillis = 10000;
+    private String adaptiveMaxconn;
+    private int weightSmoothing = 100;
+    private int weightStep = 100;
+    private long stateDwellMillis;
+    private CloseableHttpAsyncClient httpClient;
+    private SourceRegistryService sourceRegistry;
+
+    private int backlog = -1;
+    private volatile Boolean tcpNoDelay;
+    private int receiveBuffer = -1;
+    private volatile int sendBuffer = -1;
+    private Boolean reuseAddress;
+    private volatile boolean closeAbort;
+    private String backends;
+    private volatile ResponseSnapshot unknownBackendResponse;
+    private volatile PeerRules peerRules;
+    private final AdmissionControl admission = new AdmissionControl();
+    private volatile ResponseSnapshot overloadResponse;
 
     public int getMaxSize() {
         return maxSize;
@@ -26,6 +97,10 @@ abstract class AbstractAgentCheckServer implements Closeable {
         this.maxSize = maxSize;
     }
 
+    /**
+     * Time budget of single check: source request that takes longer is cancelled (and last good state is served),
+     * check connection that is not done by then is closed.
+     */
     public int getTimeoutSeconds() {
         return timeoutSeconds;
     }
@@ -34,6 +109,517 @@ abstract class AbstractAgentCheckServer implements Closeable {
         this.timeoutSeconds = timeoutSeconds;
     }
 
+    public AgentMetrics getMetrics() {
+        return metrics;
+    }
+
+    public void setMetrics(AgentMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * State sent when source has no state to offer (no file, failing URL...).
+     *
+     * @param state agent-check reply, like <code>ready</code> or <code>drain</code>; newline is appended when missing
+     */
+    public synchronized void setFallbackState(String state) {
+        this.fallbackResponse = ResponseSnapshot.of(state.endsWith("\n") ? state : state + "\n").asFallback();
+        updateResponse();
+        updateDispatch();
+    }
+
+    /**
+     * @return reply sent when source has no state
+     */
+    protected synchronized ResponseSnapshot getFallbackResponse() {
+        return fallbackResponse;
+    }
+
+    /**
+     * Interval of source refresh: poll of URL or file modification time (fallback for filesystems where file change
+     * notification does not work).
+     */
+    public long getRefreshIntervalMillis() {
+        return refreshIntervalMillis;
+    }
+
+    public void setRefreshIntervalMillis(long refreshIntervalMillis) {
+        this.refreshIntervalMillis = refreshIntervalMillis;
+    }
+
+    /**
+     * How long last good response of failing URL might be served.
+     */
+    public long getMaxStaleMillis() {
+        return maxStaleMillis;
+    }
+
+    public void setMaxStaleMillis(long maxStaleMillis) {
+        this.maxStaleMillis = maxStaleMillis;
+    }
+
+    /**
+     * Name of {@link AdaptiveConcurrencyLimit} whose estimate is sent as maxconn; <code>null</code> = none.
+     */
+    public String getAdaptiveMaxconn() {
+        return adaptiveMaxconn;
+    }
+
+    public void setAdaptiveMaxconn(String adaptiveMaxconn) {
+        this.adaptiveMaxconn = adaptiveMaxconn;
+    }
+
+    /**
+     * Weight of new sample in moving average of weights, percent; 100 = weight of the source is sent as is.
+     */
+    public int getWeightSmoothing() {
+        return weightSmoothing;
+    }
+
+    public void setWeightSmoothing(int weightSmoothing) {
+        this.weightSmoothing = weightSmoothing;
+    }
+
+    /**
+     * Maximum change of weight per refresh interval, percent.
+     */
+    public int getWeightStep() {
+        return weightStep;
+    }
+
+    public void setWeightStep(int weightStep) {
+        this.weightStep = weightStep;
+    }
+
+    /**
+     * Minimum time state (ready, drain, up, down...) is kept before change of the source is sent.
+     */
+    public long getStateDwellMillis() {
+        return stateDwellMillis;
+    }
+
+    public void setStateDwellMillis(long stateDwellMillis) {
+        this.stateDwellMillis = stateDwellMillis;
+    }
+
+    /**
+     * Client shared by http sources; <code>null</code> = each http source creates its own.
+     */
+    public CloseableHttpAsyncClient getHttpClient() {
+        return httpClient;
+    }
+
+    public void setHttpClient(CloseableHttpAsyncClient httpClient) {
+        this.httpClient = httpClient;
+    }
+
+    /**
+     * Registry of sources shared with other servers; <code>null</code> = sources of this server are private.
+     */
+    public SourceRegistryService getSourceRegistry() {
+        return sourceRegistry;
+    }
+
+    public void setSourceRegistry(SourceRegistryService sourceRegistry) {
+        this.sourceRegistry = sourceRegistry;
+    }
+
+    /**
+     * Whether state of the source should be smoothed, see {@link SmoothingSource}.
+     */
+    protected boolean isSmoothing() {
+        return weightSmoothing < 100 || weightStep < 100 || stateDwellMillis > 0;
+    }
+
+    /**
+     * Length of queue of connections waiting for accept; negative = default.
+     */
+    public int getBacklog() {
+        return backlog;
+    }
+
+    public void setBacklog(int backlog) {
+        this.backlog = backlog;
+    }
+
+    /**
+     * TCP_NODELAY of accepted connections; <code>null</code> = default.
+     */
+    public Boolean getTcpNoDelay() {
+        return tcpNoDelay;
+    }
+
+    public void setTcpNoDelay(Boolean tcpNoDelay) {
+        this.tcpNoDelay = tcpNoDelay;
+    }
+
+    /**
+     * SO_RCVBUF of the listening socket (inherited by accepted connections); negative = default.
+     */
+    public int getReceiveBuffer() {
+        return receiveBuffer;
+    }
+
+    public void setReceiveBuffer(int receiveBuffer) {
+        this.receiveBuffer = receiveBuffer;
+    }
+
+    /**
+     * SO_SNDBUF of accepted connections; negative = default.
+     */
+    public int getSendBuffer() {
+        return sendBuffer;
+    }
+
+    public void setSendBuffer(int sendBuffer) {
+        this.sendBuffer = sendBuffer;
+    }
+
+    /**
+     * SO_REUSEADDR of the listening socket; <code>null</code> = default.
+     */
+    public Boolean getReuseAddress() {
+        return reuseAddress;
+    }
+
+    public void setReuseAddress(Boolean reuseAddress) {
+        this.reuseAddress = reuseAddress;
+    }
+
+    /**
+     * Close check connections abortively (SO_LINGER=0, RST instead of FIN), so they do not stay in TIME_WAIT.
+     * <p/>
+     * Reply not yet sent by the kernel at close is discarded.
+     */
+    public boolean isCloseAbort() {
+        return closeAbort;
+    }
+
+    public void setCloseAbort(boolean closeAbort) {
+        this.closeAbort = closeAbort;
+    }
+
+    /**
+     * Backends served by this port, dispatched by <code>agent-send</code> string of haproxy:
+     * <code>name=source;name=source</code>; <code>null</code> = request is not read.
+     */
+    public String getBackends() {
+        return backends;
+    }
+
+    public void setBackends(String backends) {
+        this.backends = backends;
+    }
+
+    /**
+     * Reply to unknown backend.
+     *
+     * @param state agent reply; <code>null</code> = response of the source of this server
+     */
+    public void setBackendDefault(String state) {
+        this.unknownBackendResponse = state == null ? null : ResponseSnapshot.of(state.endsWith("\n") ? state : state + "\n");
+    }
+
+    /**
+     * Replies depending on address of haproxy: <code>cidr=action;cidr=action</code>, see {@link PeerRules}.
+     *
+     * @param rules rules; <code>null</code> = same reply to all
+     */
+    public void setPeerRules(String rules) {
+        this.peerRules = rules == null ? null : new PeerRules(rules);
+    }
+
+    /**
+     * Maximum number of open check connections; 0 = unlimited.
+     */
+    public void setMaxConnections(int maxConnections) {
+        admission.setMaxConnections(maxConnections);
+    }
+
+    /**
+     * Limit of connection rate of single peer address.
+     *
+     * @param rate  connections per second; 0 = unlimited
+     * @param burst connections peer may open at once; 0 = same as rate
+     */
+    public void setPeerRate(int rate, int burst) {
+        admission.setRate(rate, burst);
+    }
+
+    /**
+     * Reply to connection over limits of {@link AdmissionControl}.
+     *
+     * @param state agent reply; <code>null</code> = connection is closed without reply
+     */
+    public void setOverloadReply(String state) {
+        this.overloadResponse = state == null ? null : ResponseSnapshot.of(state.endsWith("\n") ? state : state + "\n");
+    }
+
+    protected AdmissionControl getAdmission() {
+        return admission;
+    }
+
+    /**
+     * @return reply to rejected connection; <code>null</code> = close without reply
+     */
+    protected ResponseSnapshot getOverloadResponse() {
+        return overloadResponse;
+    }
+
+    /**
+     * @return peer rules; <code>null</code> when not configured
+     */
+    protected PeerRules getPeerRules() {
+        return peerRules;
+    }
+
+    /**
+     * Admission control of accepted connection, recorded to metrics. Admitted connection holds a slot until
+     * {@link AdmissionControl#release()}.
+     *
+     * @return false when the connection is over limits: it is to be rejected with {@link #getOverloadResponse()}
+     */
+    protected boolean admit(SocketAddress peer) {
+        if (!admission.tryAcquire(peer, System.nanoTime())) {
+            metrics.checkRejected();
+            if (logger.isLoggable(Level.FINE)) {
+                logger.fine("rejected " + peer);
+            }
+            return false;
+        }
+        metrics.checkAccepted();
+        if (logger.isLoggable(Level.FINE)) {
+            logger.fine("accepted " + peer);
+        }
+        return true;
+    }
+
+    /**
+     * @return rule of the peer; <code>null</code> = none
+     */
+    protected PeerRules.Rule peerRule(SocketAddress peer) {
+        final PeerRules rules = peerRules;
+        return rules == null ? null : rules.find(peer);
+    }
+
+    /**
+     * Whether <code>agent-send</code> request is read: line is complete, buffer is full or haproxy closed its side.
+     *
+     * @param request buffer the request is read to
+     * @param from    position before the last read
+     * @param read    result of the last read
+     */
+    protected static boolean isRequestComplete(ByteBuffer request, int from, int read) {
+        if (read < 0 || !request.hasRemaining()) {
+            return true;
+        }
+        for (int i = from; i < request.position(); i++) {
+            if (request.get(i) == '\n') {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return backend dispatch; <code>null</code> when backends are not configured
+     */
+    protected BackendDispatch getDispatch() {
+        return dispatch;
+    }
+
+    /**
+     * Response to backend named by request.
+     *
+     * @param request <code>agent-send</code> string received from haproxy
+     */
+    protected ResponseSnapshot backendResponse(ByteBuffer request) {
+        final BackendDispatch current = dispatch;
+        final ResponseSnapshot unknown = unknownBackendResponse;
+        if (current == null) {
+            return currentResponse();
+        }
+        final ResponseSnapshot found = current.lookup(request, unknown != null ? unknown : currentResponse());
+        return found != null ? found : fallbackResponse;
+    }
+
+    /**
+     * Suspend state and slow start, applied to state of any source.
+     */
+    ServerLifecycle getLifecycle() {
+        return lifecycle;
+    }
+
+    /**
+     * Time of weight ramp after resume of the server; 0 = no slow start.
+     */
+    public void setSlowStartMillis(long slowStartMillis) {
+        lifecycle.setSlowStartMillis(slowStartMillis);
+    }
+
+    /**
+     * Weight at start of slow start, percent of weight of the source.
+     */
+    public void setSlowStartWeight(int slowStartWeight) {
+        lifecycle.setSlowStartWeight(slowStartWeight);
+    }
+
+    /**
+     * Whether slow start advances only when JIT compiler is mostly idle.
+     */
+    public void setSlowStartJit(boolean slowStartJit) {
+        lifecycle.setSlowStartJit(slowStartJit);
+    }
+
+    /**
+     * Response to send on check.
+     */
+    protected ResponseSnapshot currentResponse() {
+        return response.get();
+    }
+
+    /**
+     * Reply to one check, recorded to metrics.
+     *
+     * @param request <code>agent-send</code> string read from haproxy (ready to get); <code>null</code> when backends
+     *                are not dispatched
+     * @param rule    rule of the peer; <code>null</code> = none
+     */
+    protected ResponseSnapshot reply(ByteBuffer request, PeerRules.Rule rule) {
+        return serve(request == null ? currentResponse() : backendResponse(request), rule);
+    }
+
+    /**
+     * Reply to one check, recorded to metrics.
+     *
+     * @param base state of the source or of the backend; fallback is decided by it, before peer rule adjusts it
+     * @param rule rule of the peer; <code>null</code> = none
+     */
+    protected ResponseSnapshot serve(ResponseSnapshot base, PeerRules.Rule rule) {
+        final ResponseSnapshot reply = rule == null ? base : rule.apply(base);
+        metrics.checkServed(base.isFallback(), reply.size());
+        return reply;
+    }
+
+    /**
+     * Publish new response; used as {@link StateSource} publisher.
+     *
+     * @param snapshot new response; <code>null</code> to send fallback state
+     */
+    protected synchronized void publish(ResponseSnapshot snapshot) {
+        sourceResponse = snapshot;
+        updateResponse();
+    }
+
+    /**
+     * Start source of given definition (see {@link StateSources}) with current settings, replacing running one.
+     * <p/>
+     * Last response of the old source is served until the new one publishes; old source is closed and whatever it
+     * publishes afterwards is ignored. Listening socket is not touched, so haproxy sees no refused connection.
+     */
+    protected void startSource(String sourceDefinition) {
+        final BackendDispatch nextDispatch = backends == null ? null
+                : new BackendDispatch(BackendDispatch.parse(backends), this);
+        final StateSource next;
+        try {
+            next = StateSources.create(sourceDefinition, this, scheduler);
+        } catch (RuntimeException e) {
+            safeClose(nextDispatch);
+            throw e;
+        }
+        final StateSource previous;
+        final BackendDispatch previousDispatch;
+        synchronized (this) {
+            previous = source;
+            source = next;
+            previousDispatch = dispatch;
+        }
+        safeClose(previous);
+        next.start(snapshot -> publishFrom(next, snapshot));
+        if (nextDispatch != null) {
+            nextDispatch.start();
+        }
+        synchronized (this) {
+            dispatch = nextDispatch;
+            updateDispatch();
+        }
+        safeClose(previousDispatch);
+    }
+
+    private synchronized void publishFrom(StateSource from, ResponseSnapshot snapshot) {
+        if (from == source) {
+            publish(snapshot);
+        }
+    }
+
+    protected void closeSource() {
+        final StateSource previous;
+        synchronized (this) {
+            previous = source;
+            source = null;
+        }
+        safeClose(previous);
+        safeClose(dispatch);
+        dispatch = null;
+    }
+
+    /**
+     * Set state sent over the state of the source, until cleared or expired.
+     *
+     * @param state     values to replace in state of the source (those not set are kept)
+     * @param ttlMillis time to keep the override; 0 = until cleared
+     */
+    protected synchronized void setOverride(AgentState state, long ttlMillis) {
+        cancelOverrideExpiry();
+        override = state;
+        if (ttlMillis > 0 && scheduler != null) {
+            overrideExpiry = scheduler.schedule(this::clearOverride, ttlMillis, TimeUnit.MILLISECONDS);
+        }
+        updateResponse();
+        updateDispatch();
+    }
+
+    /**
+     * @return state currently overridden by management; <code>null</code> = none
+     */
+    protected synchronized AgentState getOverride() {
+        return override;
+    }
+
+    protected synchronized void clearOverride() {
+        cancelOverrideExpiry();
+        override = null;
+        updateResponse();
+        updateDispatch();
+    }
+
+    private void cancelOverrideExpiry() {
+        if (overrideExpiry != null) {
+            overrideExpiry.cancel(false);
+            overrideExpiry = null;
+        }
+    }
+
+    private void updateResponse() {
+        final ResponseSnapshot base = sourceResponse != null ? sourceResponse : fallbackResponse;
+        response.set(override == null ? base : overridden(override, base));
+    }
+
+    private void updateDispatch() {
+        final BackendDispatch current = dispatch;
+        if (current != null) {
+            current.setOverride(override, fallbackResponse);
+        }
+    }
+
+    /**
+     * @param base reply of the source or fallback; reply to fallback stays marked as fallback
+     */
+    static ResponseSnapshot overridden(AgentState override, ResponseSnapshot base) {
+        final ResponseSnapshot overridden = override.over(AgentState.parse(base)).toSnapshot();
+        return base.isFallback() ? overridden.asFallback() : overridden;
+    }
+
     /**
      * Start listening.
      *
@@ -0,0 +1,225 @@
+package eu.lmc.wildfly.haproxy.server;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntConsumer;
+
+/**
+ * Concurrency limit of this node estimated from request latency (gradient limiter).
+ * <p/>
+ * Application reports its requests by {@link #start()} and {@link #complete(long)} through
+ * {@link eu.lmc.wildfly.haproxy.api.ConcurrencyLimit}, API visible to deployments; limits are looked up by name, see
+ * {@link #get(String)}. Agent servers with
+ * <code>adaptive-maxconn</code> {@link #addListener listen} to the limit and send it to haproxy as
+ * <code>maxconn:N</code>, so that excess requests wait in haproxy queue instead of in worker pool of saturated node.
+ * The limit is {@link #update() updated} by single schedule, however many servers (or backends) use it, so every
+ * window has all samples.
+ * <p/>
+ * Every update compares latency of the last window (short RTT) with its long-term average (long RTT):
+ * <pre>
+ *     gradient = max(0.5, min(1, TOLERANCE * longRtt / shortRtt))
+ *     newLimit = limit * gradient + sqrt(limit)
+ * </pre>
+ * so the limit grows by queue allowance <code>sqrt(limit)</code> while latency is stable and shrinks when requests
+ * start queueing. Limit grows smoothly, but drops at once. It is not increased when the application does not use it
+ * (peak in-flight requests below half of the limit).
+ */
+public final class AdaptiveConcurrencyLimit {
+
+    private static final ConcurrentMap<String, AdaptiveConcurrencyLimit> LIMITS = new ConcurrentHashMap<>();
+
+    static final int INITIAL_LIMIT = 20;
+    static final int MIN_LIMIT = 1;
+    static final int MAX_LIMIT = 1000;
+    /**
+     * Minimum number of requests in window to update the limit.
+     */
+    static final int MIN_SAMPLES = 10;
+    /**
+     * Latency increase tolerated before limit is decreased.
+     */
+    private static final double TOLERANCE = 1.5;
+    /**
+     * Weight of new window in long-term latency average (about 20 windows).
+     */
+    private static final double LONG_RTT_ALPHA = 0.05;
+    /**
+     * Weight of newly computed limit, when it is higher than the current one.
+     */
+    private static final double SMOOTHING = 0.2;
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger peakInFlight = new AtomicInteger();
+    private final LongAdder rttNanos = new LongAdder();
+    private final LongAdder rttCount = new LongAdder();
+
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    /**
+     * Listener whose scheduler runs {@link #updater}; guarded by this.
+     */
+    private Listener owner;
+    private ScheduledFuture<?> updater;
+
+    private volatile int limit = INITIAL_LIMIT;
+    /**
+     * Fractional limit, kept between updates so that small increments add up.
+     */
+    private double estimate = INITIAL_LIMIT;
+    private double longRtt;
+
+    AdaptiveConcurrencyLimit() {
+    }
+
+    /**
+     * Limit of given name; created on first use, so application might report requests before the agent starts.
+     */
+    public static AdaptiveConcurrencyLimit get(String name) {
+        return LIMITS.computeIfAbsent(name, n -> new AdaptiveConcurrencyLimit());
+    }
+
+    /**
+     * Request started.
+     *
+     * @return start time, to be passed to {@link #complete(long)}
+     */
+    public long start() {
+        final int current = inFlight.incrementAndGet();
+        if (current > peakInFlight.get()) {
+            peakInFlight.accumulateAndGet(current, Math::max);
+        }
+        return System.nanoTime();
+    }
+
+    /**
+     * Request finished.
+     *
+     * @param startNanos value returned by {@link #start()}
+     */
+    public void complete(long startNanos) {
+        rttNanos.add(System.nanoTime() - startNanos);
+        rttCount.increment();
+        inFlight.decrementAndGet();
+    }
+
+    /**
+     * Current estimate of concurrency limit.
+     */
+    public int getLimit() {
+        return limit;
+    }
+
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    /**
+     * Start listening to updates of the limit; the first listener starts the updater on its scheduler.
+     *
+     * @param listener       gets new limit after each update, on the updater thread
+     * @param scheduler      scheduler of the listener
+     * @param intervalMillis update interval, used when the updater runs on scheduler of this listener
+     */
+    synchronized void addListener(IntConsumer listener, ScheduledExecutorService scheduler, long intervalMillis) {
+        final Listener added = new Listener(listener, scheduler, intervalMillis);
+        listeners.add(added);
+        if (owner == null) {
+            schedule(added);
+        }
+    }
+
+    /**
+     * Stop listening; when the updater runs on scheduler of this listener, it moves to the next one.
+     */
+    synchronized void removeListener(IntConsumer listener) {
+        for (Listener registered : listeners) {
+            if (registered.listener == listener) {
+                listeners.remove(registered);
+                if (registered == owner) {
+                    updater.cancel(false);
+                    updater = null;
+                    owner = null;
+                    if (!listeners.isEmpty()) {
+                        schedule(listeners.get(0));
+                    }
+                }
+                return;
+            }
+        }
+    }
+
+    private void schedule(Listener listener) {
+        owner = listener;
+        updater = listener.scheduler.scheduleWithFixedDelay(this::updateListeners, listener.intervalMillis,
+                listener.intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void updateListeners() {
+        final int current = update();
+        for (Listener listener : listeners) {
+            listener.listener.accept(current);
+        }
+    }
+
+    /**
+     * Close the window of samples and update the limit.
+     *
+     * @return new limit
+     */
+    synchronized int update() {
+        final long count = rttCount.sumThenReset();
+        final long sum = rttNanos.sumThenReset();
+        final int peak = peakInFlight.getAndSet(inFlight.get());
+        if (count < MIN_SAMPLES) {
+            return limit;
+        }
+        return update((double) sum / count, peak);
+    }
+
+    /**
+     * @param shortRtt average latency of last window
+     * @param peak     maximum in-flight requests in last window
+     */
+    synchronized int update(double shortRtt, int peak) {
+        if (longRtt == 0) {
+            longRtt = shortRtt;
+        } else {
+            longRtt = longRtt * (1 - LONG_RTT_ALPHA) + shortRtt * LONG_RTT_ALPHA;
+        }
+        //load dropped for a long time: let the long-term average catch up faster
+        if (longRtt > 2 * shortRtt) {
+            longRtt *= 0.95;
+        }
+        final double gradient = Math.max(0.5, Math.min(1.0, TOLERANCE * longRtt / shortRtt));
+        double newEstimate = estimate * gradient + Math.sqrt(estimate);
+        if (peak < estimate / 2) {
+            //application does not use the limit, do not raise it
+            newEstimate = Math.min(newEstimate, estimate);
+        }
+        if (newEstimate > estimate) {
+            //grow slowly, back off at once
+            newEstimate = estimate * (1 - SMOOTHING) + newEstimate * SMOOTHING;
+        }
+        estimate = Math.max(MIN_LIMIT, Math.min(MAX_LIMIT, newEstimate));
+        limit = (int) estimate;
+        return limit;
+    }
+
+    private static final class Listener {
+        final IntConsumer listener;
+        final ScheduledExecutorService scheduler;
+        final long intervalMillis;
+
+        Listener(IntConsumer listener, ScheduledExecutorService scheduler, long intervalMillis) {
+            this.listener = listener;
+            this.scheduler = scheduler;
+            this.intervalMillis = intervalMillis;
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package eu.lmc.wildfly.haproxy.server;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
+
+/**
+ * Adds <code>maxconn:N</code> estimated by {@link AdaptiveConcurrencyLimit} to state of another source.
+ * <p/>
+ * Limit is updated by its own schedule, shared by all sources of the same limit (see
+ * {@link AdaptiveConcurrencyLimit#addListener}); response is republished only when the limit or the state of the source
+ * changes. When source sets its own maxconn, the lower one is sent. Fallback state (source has no state) is passed
+ * unchanged.
+ */
+class AdaptiveMaxconnSource implements StateSource {
+
+    private final StateSource delegate;
+    private final AdaptiveConcurrencyLimit limit;
+    private final ScheduledExecutorService scheduler;
+    private final AgentMetrics metrics;
+    private final long intervalMillis;
+    private final IntConsumer listener = this::limitChanged;
+
+    private Consumer<ResponseSnapshot> publisher;
+    /**
+     * Last state of the source, <code>null</code> when it has none.
+     */
+    private AgentState state;
+    private int publishedLimit = -1;
+
+    AdaptiveMaxconnSource(StateSource delegate, AdaptiveConcurrencyLimit limit, ScheduledExecutorService scheduler,
+                          AgentMetrics metrics, long intervalMillis) {
+        this.delegate = delegate;
+        this.limit = limit;
+        this.scheduler = scheduler;
+        this.metrics = metrics;
+        this.intervalMillis = intervalMillis;
+    }
+
+    @Override
+    public void start(Consumer<ResponseSnapshot> publisher) {
+        this.publisher = publisher;
+        metrics.setConcurrencyLimit(limit.getLimit());
+        delegate.start(this::sourceChanged);
+        limit.addListener(listener, scheduler, intervalMillis);
+    }
+
+    @Override
+    public void close() {
+        limit.removeListener(listener);
+        delegate.close();
+    }
+
+    private synchronized void sourceChanged(ResponseSnapshot snapshot) {
+        state = snapshot == null ? null : AgentState.parse(snapshot);
+        publishedLimit = limit.getLimit();
+        publishState();
+    }
+
+    private synchronized void limitChanged(int current) {
+        metrics.setConcurrencyLimit(current);
+        if (current != publishedLimit) {
+            publishedLimit = current;
+            publishState();
+        }
+    }
+
+    private void publishState() {
+        if (state == null) {
+            publisher.accept(null);
+            return;
+        }
+        final int maxconn = state.getMaxconn() >= 0 ? Math.min(state.getMaxconn(), publishedLimit) : publishedLimit;
+        publisher.accept(state.withMaxconn(maxconn).toSnapshot());
+    }
+}
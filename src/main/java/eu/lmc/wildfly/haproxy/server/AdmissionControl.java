@@ -0,0 +1,125 @@
+package eu.lmc.wildfly.haproxy.server;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Admission of check connections, so that misconfigured haproxy (or anything else flooding the port) cannot take over
+ * IO threads shared with the application:
+ * <ul>
+ * <li>at most <code>maxConnections</code> check connections are open at once,</li>
+ * <li>each peer address may open <code>rate</code> connections per second, with bursts of <code>burst</code>
+ * connections (token bucket).</li>
+ * </ul>
+ * Bucket of peer is single {@link AtomicLong} (theoretical arrival time of the next connection, GCRA), updated by CAS,
+ * so IO threads never block on each other. Buckets of idle peers are dropped when there are more than
+ * {@link #MAX_PEERS} of them; while the table stays full, new peers are rejected.
+ */
+class AdmissionControl {
+
+    static final int MAX_PEERS = 1024;
+
+    private final AtomicInteger open = new AtomicInteger();
+    private final ConcurrentMap<InetAddress, AtomicLong> peers = new ConcurrentHashMap<>();
+
+    private volatile int maxConnections;
+    private volatile long intervalNanos;
+    private volatile long burstNanos;
+
+    /**
+     * @param maxConnections maximum number of open check connections; 0 = unlimited
+     */
+    void setMaxConnections(int maxConnections) {
+        this.maxConnections = maxConnections;
+    }
+
+    /**
+     * @param rate  connections per second of one peer; 0 = unlimited
+     * @param burst connections peer may open at once; 0 = same as rate
+     */
+    void setRate(int rate, int burst) {
+        final long interval = rate > 0 ? TimeUnit.SECONDS.toNanos(1) / rate : 0;
+        this.burstNanos = interval * (burst > 0 ? burst : Math.max(1, rate));
+        this.intervalNanos = interval;
+        peers.clear();
+    }
+
+    /**
+     * Admit new connection; admitted connection must be {@link #release() released} when closed.
+     *
+     * @param peer remote address of the connection
+     * @param now  current {@link System#nanoTime()}
+     * @return whether the connection is admitted
+     */
+    boolean tryAcquire(SocketAddress peer, long now) {
+        final long interval = intervalNanos;
+        if (interval > 0 && peer instanceof InetSocketAddress && !allowRate(((InetSocketAddress) peer).getAddress(), now, interval)) {
+            return false;
+        }
+        final int max = maxConnections;
+        if (max <= 0) {
+            open.incrementAndGet();
+            return true;
+        }
+        int current;
+        do {
+            current = open.get();
+            if (current >= max) {
+                return false;
+            }
+        } while (!open.compareAndSet(current, current + 1));
+        return true;
+    }
+
+    void release() {
+        open.decrementAndGet();
+    }
+
+    /**
+     * Number of open connections.
+     */
+    int getOpen() {
+        return open.get();
+    }
+
+    private boolean allowRate(InetAddress address, long now, long interval) {
+        AtomicLong bucket = peers.get(address);
+        if (bucket == null) {
+            if (peers.size() >= MAX_PEERS) {
+                expire(now);
+                if (peers.size() >= MAX_PEERS) {
+                    return false;
+                }
+            }
+            final AtomicLong created = new AtomicLong(now);
+            bucket = peers.putIfAbsent(address, created);
+            if (bucket == null) {
+                bucket = created;
+            }
+        }
+        final long burst = burstNanos;
+        while (true) {
+            final long arrival = bucket.get();
+            final long next = Math.max(arrival - now, 0) + interval;
+            if (next > burst) {
+                return false;
+            }
+            if (bucket.compareAndSet(arrival, now + next)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Drop buckets of peers that have full burst available again.
+     */
+    private void expire(long now) {
+        peers.values().removeIf(bucket -> bucket.get() - now <= 0);
+    }
+}
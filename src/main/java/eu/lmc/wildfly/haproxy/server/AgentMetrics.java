@@ -0,0 +1,148 @@
+package eu.lmc.wildfly.haproxy.server;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Runtime metrics of one agent server.
+ * <p/>
+ * Counters are {@link LongAdder}s, so IO threads recording checks do not contend on a single memory location.
+ */
+public class AgentMetrics {
+
+    private final LongAdder checksAccepted = new LongAdder();
+    private final LongAdder checksRejected = new LongAdder();
+    private final LongAdder checksServed = new LongAdder();
+    private final LongAdder fallbacks = new LongAdder();
+    private final LongAdder bytesWritten = new LongAdder();
+    private final LongAdder httpErrors = new LongAdder();
+    private final LongAdder timeouts = new LongAdder();
+    private final LongAdder execFailures = new LongAdder();
+    private final LatencyHistogram sourceReadLatency = new LatencyHistogram();
+
+    private volatile String sourceType = "none";
+    private volatile int concurrencyLimit = -1;
+
+    void checkAccepted() {
+        checksAccepted.increment();
+    }
+
+    /**
+     * Connection was over limits of admission control.
+     */
+    void checkRejected() {
+        checksRejected.increment();
+    }
+
+    /**
+     * Response was sent.
+     *
+     * @param fallback whether it was the fallback state (source had no state)
+     * @param bytes    response size
+     */
+    void checkServed(boolean fallback, int bytes) {
+        if (fallback) {
+            fallbacks.increment();
+        } else {
+            checksServed.increment();
+        }
+        bytesWritten.add(bytes);
+    }
+
+    void httpError() {
+        httpErrors.increment();
+    }
+
+    void timeout() {
+        timeouts.increment();
+    }
+
+    void execFailure() {
+        execFailures.increment();
+    }
+
+    /**
+     * Source (file, URL...) was read.
+     *
+     * @param startNanos {@link System#nanoTime()} when reading started
+     */
+    void sourceRead(long startNanos) {
+        sourceReadLatency.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos));
+    }
+
+    void setSourceType(String sourceType) {
+        this.sourceType = sourceType;
+    }
+
+    /**
+     * Type of source checks are served from: <code>file</code>, <code>http</code>...
+     */
+    public String getSourceType() {
+        return sourceType;
+    }
+
+    void setConcurrencyLimit(int concurrencyLimit) {
+        this.concurrencyLimit = concurrencyLimit;
+    }
+
+    /**
+     * Concurrency limit sent as maxconn; -1 when <code>adaptive-maxconn</code> is not used.
+     */
+    public int getConcurrencyLimit() {
+        return concurrencyLimit;
+    }
+
+    public long getChecksAccepted() {
+        return checksAccepted.sum();
+    }
+
+    /**
+     * Connections rejected by admission control (connection limit, rate limit of peer).
+     */
+    public long getChecksRejected() {
+        return checksRejected.sum();
+    }
+
+    /**
+     * Checks answered with state of the source.
+     */
+    public long getChecksServed() {
+        return checksServed.sum();
+    }
+
+    /**
+     * Checks answered with fallback state.
+     */
+    public long getFallbacks() {
+        return fallbacks.sum();
+    }
+
+    public long getBytesWritten() {
+        return bytesWritten.sum();
+    }
+
+    public long getHttpErrors() {
+        return httpErrors.sum();
+    }
+
+    /**
+     * Source requests cancelled and checks closed because of timeout.
+     */
+    public long getTimeouts() {
+        return timeouts.sum();
+    }
+
+    /**
+     * Failed runs of command source (killed after timeout, non-zero exit code, command not started).
+     */
+    public long getExecFailures() {
+        return execFailures.sum();
+    }
+
+    /**
+     * Latency of source reads (file reload, URL request), in microseconds.
+     */
+    public LatencyHistogram getSourceReadLatency() {
+        return sourceReadLatency;
+    }
+}
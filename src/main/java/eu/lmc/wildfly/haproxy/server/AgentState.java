@@ -0,0 +1,232 @@
+package eu.lmc.wildfly.haproxy.server;
+
+import java.util.Locale;
+
+/**
+ * Parsed agent-check reply: administrative state, operational state, weight and maxconn.
+ * <p/>
+ * See haproxy documentation of <code>agent-check</code>: reply is a list of words separated by spaces, like
+ * <code>ready up 75% maxconn:30</code>; anything after <code>#</code> is a description. Immutable.
+ */
+final class AgentState {
+
+    /**
+     * States understood by haproxy; first three are administrative, rest are operational. Both groups are ordered from
+     * the best to the worst.
+     */
+    enum Status {
+        READY(true), DRAIN(true), MAINT(true),
+        UP(false), DOWN(false), FAIL(false), STOPPED(false);
+
+        private final boolean admin;
+
+        Status(boolean admin) {
+            this.admin = admin;
+        }
+
+        public boolean isAdmin() {
+            return admin;
+        }
+
+        public String getKeyword() {
+            return name().toLowerCase(Locale.ROOT);
+        }
+
+        /**
+         * The worse of two states of the same group; <code>null</code> = not set.
+         */
+        static Status worse(Status a, Status b) {
+            if (a == null || b == null) {
+                return a == null ? b : a;
+            }
+            return a.ordinal() >= b.ordinal() ? a : b;
+        }
+
+        static Status find(String keyword) {
+            for (Status status : values()) {
+                if (status.getKeyword().equals(keyword)) {
+                    return status;
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Nothing set: haproxy keeps what it has.
+     */
+    static final AgentState EMPTY = new AgentState(null, null, -1, -1, null);
+
+    private final Status admin;
+    private final Status operational;
+    private final int weight;
+    private final int maxconn;
+    private final String description;
+
+    /**
+     * @param admin       administrative state; <code>null</code> = not set
+     * @param operational operational state; <code>null</code> = not set
+     * @param weight      weight in percent; negative = not set
+     * @param maxconn     maximum connections; negative = not set
+     * @param description text after <code>#</code>; <code>null</code> = none
+     */
+    AgentState(Status admin, Status operational, int weight, int maxconn, String description) {
+        this.admin = admin;
+        this.operational = operational;
+        this.weight = weight;
+        this.maxconn = maxconn;
+        this.description = description;
+    }
+
+    /**
+     * Parse agent reply; unknown words are ignored.
+     */
+    static AgentState parse(CharSequence reply) {
+        String text = reply.toString();
+        String description = null;
+        final int hash = text.indexOf('#');
+        if (hash >= 0) {
+            description = text.substring(hash + 1).trim();
+            text = text.substring(0, hash);
+        }
+        Status admin = null;
+        Status operational = null;
+        int weight = -1;
+        int maxconn = -1;
+        for (String word : text.trim().toLowerCase(Locale.ROOT).split("[\\s,]+")) {
+            try {
+                if (word.endsWith("%")) {
+                    weight = Integer.parseInt(word.substring(0, word.length() - 1));
+                } else if (word.startsWith("maxconn:")) {
+                    maxconn = Integer.parseInt(word.substring("maxconn:".length()));
+                } else {
+                    final Status status = Status.find(word);
+                    if (status != null && status.isAdmin()) {
+                        admin = status;
+                    } else if (status != null) {
+                        operational = status;
+                    }
+                }
+            } catch (NumberFormatException ignored) {
+                //not a number: ignore the word, as haproxy does
+            }
+        }
+        return new AgentState(admin, operational, weight, maxconn, description);
+    }
+
+    static AgentState parse(ResponseSnapshot snapshot) {
+        return parse(snapshot.toString());
+    }
+
+    Status getAdmin() {
+        return admin;
+    }
+
+    Status getOperational() {
+        return operational;
+    }
+
+    /**
+     * @return weight in percent; negative when not set
+     */
+    int getWeight() {
+        return weight;
+    }
+
+    /**
+     * @return maxconn; negative when not set
+     */
+    int getMaxconn() {
+        return maxconn;
+    }
+
+    String getDescription() {
+        return description;
+    }
+
+    AgentState withAdmin(Status admin) {
+        return new AgentState(admin, operational, weight, maxconn, description);
+    }
+
+    AgentState withOperational(Status operational) {
+        return new AgentState(admin, operational, weight, maxconn, description);
+    }
+
+    AgentState withWeight(int weight) {
+        return new AgentState(admin, operational, weight, maxconn, description);
+    }
+
+    AgentState withMaxconn(int maxconn) {
+        return new AgentState(admin, operational, weight, maxconn, description);
+    }
+
+    /**
+     * Values of this state, missing ones taken from <code>base</code>.
+     */
+    AgentState over(AgentState base) {
+        return new AgentState(admin != null ? admin : base.admin,
+                operational != null ? operational : base.operational,
+                weight >= 0 ? weight : base.weight,
+                maxconn >= 0 ? maxconn : base.maxconn,
+                description != null ? description : base.description);
+    }
+
+    /**
+     * Format as agent reply, including trailing newline.
+     */
+    String format() {
+        final StringBuilder sb = new StringBuilder(32);
+        if (admin != null) {
+            sb.append(admin.getKeyword()).append(' ');
+        }
+        if (weight >= 0) {
+            sb.append(weight).append("% ");
+        }
+        if (maxconn >= 0) {
+            sb.append("maxconn:").append(maxconn).append(' ');
+        }
+        //operational state goes last, so that description follows it
+        if (operational != null) {
+            sb.append(operational.getKeyword()).append(' ');
+        }
+        if (description != null && !description.isEmpty()) {
+            sb.append('#').append(description).append(' ');
+        }
+        if (sb.length() > 0) {
+            sb.setLength(sb.length() - 1);
+        }
+        return sb.append('\n').toString();
+    }
+
+    ResponseSnapshot toSnapshot() {
+        return ResponseSnapshot.of(format());
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof AgentState)) {
+            return false;
+        }
+        final AgentState that = (AgentState) o;
+        return weight == that.weight && maxconn == that.maxconn && admin == that.admin
+                && operational == that.operational
+                && (description == null ? that.description == null : description.equals(that.description));
+    }
+
+    @Override
+    public int hashCode() {
+        int result = admin != null ? admin.hashCode() : 0;
+        result = 31 * result + (operational != null ? operational.hashCode() : 0);
+        result = 31 * result + weight;
+        result = 31 * result + maxconn;
+        return 31 * result + (description != null ? description.hashCode() : 0);
+    }
+
+    @Override
+    public String toString() {
+        return format().trim();
+    }
+}
@@ -0,0 +1,203 @@
+package eu.lmc.wildfly.haproxy.server;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import static org.xnio.IoUtils.safeClose;
+
+/**
+ * Responses of several haproxy backends served by one port: haproxy identifies the backend by <code>agent-send</code>
+ * string, its first line is looked up in table of backend names.
+ * <p/>
+ * Each backend has its own source (<code>backends</code> attribute: <code>name=source;name=source</code>), publishing
+ * into its slot. Names are precomputed into open addressing hash table of bytes, so that lookup of received bytes
+ * does not allocate. State override of the server (<code>set-state</code>, <code>set-weight</code>) is applied to each
+ * slot when the slot or the override changes, not per check.
+ */
+class BackendDispatch implements Closeable {
+
+    /**
+     * Maximum length of <code>agent-send</code> line read from haproxy.
+     */
+    static final int MAX_REQUEST = 64;
+
+    static final String SEPARATOR = ";";
+
+    private final byte[][] names;
+    /**
+     * Hash table: index of backend + 1; 0 = empty.
+     */
+    private final int[] table;
+    private final int mask;
+    /**
+     * Replies of backends, override applied; <code>null</code> = backend has no state.
+     */
+    private final AtomicReferenceArray<ResponseSnapshot> responses;
+    /**
+     * Replies published by sources of backends; guarded by this.
+     */
+    private final ResponseSnapshot[] published;
+    private final List<StateSource> sources = new ArrayList<>();
+    /**
+     * Override of the server and reply when backend has no state; guarded by this.
+     */
+    private AgentState override;
+    private ResponseSnapshot fallback;
+
+    /**
+     * Create sources of all backends.
+     *
+     * @param backends backend name to source definition
+     * @param server   settings of the sources (intervals, metrics...)
+     */
+    BackendDispatch(Map<String, String> backends, AbstractAgentCheckServer server) {
+        final int size = backends.size();
+        names = new byte[size][];
+        responses = new AtomicReferenceArray<>(size);
+        published = new ResponseSnapshot[size];
+        int capacity = 2;
+        while (capacity < size * 2) {
+            capacity <<= 1;
+        }
+        table = new int[capacity];
+        mask = capacity - 1;
+        int index = 0;
+        for (Map.Entry<String, String> backend : backends.entrySet()) {
+            names[index] = backend.getKey().getBytes(StandardCharsets.US_ASCII);
+            try {
+                sources.add(StateSources.create(backend.getValue(), server, server.scheduler));
+            } catch (RuntimeException e) {
+                close();
+                throw e;
+            }
+            int slot = hash(names[index], 0, names[index].length) & mask;
+            while (table[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            table[slot] = ++index;
+        }
+    }
+
+    /**
+     * Parse <code>name=source;name=source</code>.
+     */
+    static Map<String, String> parse(String backends) {
+        final Map<String, String> result = new LinkedHashMap<>();
+        for (String backend : backends.split(SEPARATOR)) {
+            if (backend.trim().isEmpty()) {
+                continue;
+            }
+            final int eq = backend.indexOf('=');
+            if (eq <= 0 || eq == backend.length() - 1) {
+                throw new IllegalArgumentException("backend must be name=source: " + backend);
+            }
+            final String name = backend.substring(0, eq).trim();
+            if (name.length() > MAX_REQUEST || result.put(name, backend.substring(eq + 1).trim()) != null) {
+                throw new IllegalArgumentException("invalid or duplicate backend name: " + name);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Start sources of all backends.
+     */
+    void start() {
+        for (int i = 0; i < sources.size(); i++) {
+            final int index = i;
+            sources.get(i).start(snapshot -> publish(index, snapshot));
+        }
+    }
+
+    private synchronized void publish(int index, ResponseSnapshot snapshot) {
+        published[index] = snapshot;
+        responses.set(index, override == null ? snapshot
+                : AbstractAgentCheckServer.overridden(override, snapshot != null ? snapshot : fallback));
+    }
+
+    /**
+     * Apply override of the server to replies of all backends.
+     *
+     * @param override values to replace in states of backends; <code>null</code> = none
+     * @param fallback reply overridden when backend has no state
+     */
+    synchronized void setOverride(AgentState override, ResponseSnapshot fallback) {
+        this.override = override;
+        this.fallback = fallback;
+        for (int i = 0; i < published.length; i++) {
+            publish(i, published[i]);
+        }
+    }
+
+    @Override
+    public void close() {
+        sources.forEach(source -> safeClose(source));
+    }
+
+    /**
+     * Find response of backend named by the first line of the request.
+     *
+     * @param request received bytes, from position to limit; not modified
+     * @return response of the backend, <code>null</code> when the backend has no state; <code>unknown</code> for
+     * unknown backend
+     */
+    ResponseSnapshot lookup(ByteBuffer request, ResponseSnapshot unknown) {
+        int start = request.position();
+        int end = start;
+        while (end < request.limit() && request.get(end) != '\n' && request.get(end) != '\r') {
+            end++;
+        }
+        while (start < end && request.get(start) == ' ') {
+            start++;
+        }
+        while (end > start && request.get(end - 1) == ' ') {
+            end--;
+        }
+        int slot = hash(request, start, end) & mask;
+        int index;
+        while ((index = table[slot]) != 0) {
+            if (matches(names[index - 1], request, start, end)) {
+                return responses.get(index - 1);
+            }
+            slot = (slot + 1) & mask;
+        }
+        return unknown;
+    }
+
+    private static boolean matches(byte[] name, ByteBuffer request, int start, int end) {
+        if (name.length != end - start) {
+            return false;
+        }
+        for (int i = 0; i < name.length; i++) {
+            if (name[i] != request.get(start + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * FNV-1a.
+     */
+    private static int hash(byte[] bytes, int start, int end) {
+        int hash = 0x811c9dc5;
+        for (int i = start; i < end; i++) {
+            hash = (hash ^ (bytes[i] & 0xff)) * 0x01000193;
+        }
+        return hash;
+    }
+
+    private static int hash(ByteBuffer bytes, int start, int end) {
+        int hash = 0x811c9dc5;
+        for (int i = start; i < end; i++) {
+            hash = (hash ^ (bytes.get(i) & 0xff)) * 0x01000193;
+        }
+        return hash;
+    }
+}
@@ -0,0 +1,173 @@
+package eu.lmc.wildfly.haproxy.server;
+
+import org.jboss.threads.JBossThreadFactory;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+import static org.xnio.IoUtils.safeClose;
+
+/**
+ * File source that keeps file content in memory, so agent check does no file I/O at all.
+ * <p/>
+ * Content is reloaded only when {@link WatchService} reports change of the file. As a fallback for filesystems
+ * without change notification (NFS etc.), modification time and size of the file are polled periodically.
+ */
+class CachedFileSource implements StateSource {
+
+    private final static Logger logger = Logger.getLogger(CachedFileSource.class.getName());
+
+    private final Path path;
+    private final AgentMetrics metrics;
+    private final int maxSize;
+    private final long pollMillis;
+
+    private Consumer<ResponseSnapshot> publisher;
+
+    /**
+     * Whether the file existed (and was readable) on last reload.
+     */
+    private volatile boolean present;
+
+    /**
+     * Attributes of file at the time of last reload; used by mtime poll.
+     */
+    private FileTime lastModified;
+    private long lastSize = -1;
+
+    private WatchService watchService;
+    private Thread watcher;
+    private volatile boolean closed;
+
+    /**
+     * @param path       file to serve
+     * @param metrics    metrics to record reload latency to
+     * @param maxSize    maximum number of bytes to cache
+     * @param pollMillis interval of mtime poll (and also maximum time the watcher blocks waiting for an event)
+     */
+    CachedFileSource(Path path, AgentMetrics metrics, int maxSize, long pollMillis) {
+        this.path = path.toAbsolutePath();
+        this.metrics = metrics;
+        this.maxSize = maxSize;
+        this.pollMillis = pollMillis;
+    }
+
+    /**
+     * Load the file and start watching for changes.
+     * Snapshot of file content is published on every reload; <code>null</code> when file does not exist or cannot be read.
+     */
+    @Override
+    public void start(Consumer<ResponseSnapshot> publisher) {
+        this.publisher = publisher;
+        reload();
+        final Path dir = path.getParent();
+        try {
+            watchService = path.getFileSystem().newWatchService();
+            //watch directory, not the file: this way we also see file being created or replaced by rename
+            dir.register(watchService, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE);
+        } catch (IOException | UnsupportedOperationException e) {
+            logger.log(Level.INFO, "cannot watch " + dir + ", falling back to polling every " + pollMillis + "ms: " + e);
+            safeClose(watchService);
+            watchService = null;
+        }
+        watcher = new JBossThreadFactory(null, true, null, "fileWatch-%i", null, null).newThread(this::watch);
+        watcher.start();
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        safeClose(watchService);
+        if (watcher != null) {
+            watcher.interrupt();
+        }
+    }
+
+    private void watch() {
+        while (!closed) {
+            try {
+                boolean changed = false;
+                if (watchService != null) {
+                    final WatchKey key = watchService.poll(pollMillis, TimeUnit.MILLISECONDS);
+                    if (key != null) {
+                        for (WatchEvent<?> event : key.pollEvents()) {
+                            changed |= event.kind() == OVERFLOW || path.getFileName().equals(event.context());
+                        }
+                        key.reset();
+                    }
+                } else {
+                    Thread.sleep(pollMillis);
+                }
+                if (changed || isModified()) {
+                    reload();
+                }
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                break;
+            } catch (RuntimeException e) {
+                logger.log(Level.WARNING, "error watching " + path, e);
+            }
+        }
+    }
+
+    /**
+     * mtime poll: compare current attributes with the ones seen on last reload.
+     */
+    private boolean isModified() {
+        try {
+            final BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+            return attrs.size() != lastSize || !attrs.lastModifiedTime().equals(lastModified);
+        } catch (IOException e) {
+            //file is gone: modified only when we still serve its content
+            return present;
+        }
+    }
+
+    private synchronized void reload() {
+        final long start = System.nanoTime();
+        try (final FileChannel fc = FileChannel.open(path, StandardOpenOption.READ)) {
+            final BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+            lastModified = attrs.lastModifiedTime();
+            lastSize = attrs.size();
+            final ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(lastSize, maxSize));
+            while (buffer.hasRemaining() && fc.read(buffer) >= 0) {
+                //read until full or EOF (file might have been truncated meanwhile)
+            }
+            if (logger.isLoggable(Level.FINE)) {
+                logger.fine("reloaded file: " + path + " " + buffer.position() + "B");
+            }
+            present = true;
+            metrics.sourceRead(start);
+            publisher.accept(ResponseSnapshot.of(Arrays.copyOf(buffer.array(), buffer.position())));
+            return;
+        } catch (NoSuchFileException | FileNotFoundException ignored) {
+        } catch (IOException e) {
+            logger.log(Level.INFO, "error reading " + path, e);
+        }
+        lastModified = null;
+        lastSize = -1;
+        present = false;
+        metrics.sourceRead(start);
+        publisher.accept(null);
+    }
+}
@@ -0,0 +1,271 @@
+package eu.lmc.wildfly.haproxy.server;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Container source (<code>cgroup:dir?params</code>): weight computed from CPU and memory statistics of control group
+ * the server runs in (default directory <code>/sys/fs/cgroup</code>), so that haproxy reacts to CPU throttling of the
+ * container, which is not visible in heap or thread metrics.
+ * <ul>
+ * <li>throttled periods: share of CFS periods in which the group was throttled, since last sample,</li>
+ * <li>usage against quota: CPU time used since last sample relative to the quota,</li>
+ * <li>memory pressure: <code>some avg10</code> of PSI (<code>memory.pressure</code>), percent of time some task
+ * stalled on memory.</li>
+ * </ul>
+ * Cgroup v2 (directory with <code>cgroup.controllers</code>: <code>cpu.stat</code>, <code>cpu.max</code>,
+ * <code>memory.pressure</code>) and v1 (<code>cpu/cpu.stat</code>, <code>cpu/cpu.cfs_quota_us</code>,
+ * <code>cpuacct/cpuacct.usage</code>) are read; values missing in the group (no quota, no PSI) do not take part. Each
+ * value is turned into factor 0 - 1 by {@link JvmHealthSource#linear} and the worst one is the weight. Fallback is
+ * sent when the directory is neither v2 group nor has v1 CPU statistics.
+ * <p/>
+ * Parameters: <code>throttle-low</code>, <code>throttle-high</code> (percent of throttled periods, default 5 and 50),
+ * <code>usage-low</code> (percent of quota, default 80; weight reaches minimum at 100), <code>pressure-low</code>,
+ * <code>pressure-high</code> (percent, default 10 and 40).
+ */
+class CgroupSource implements StateSource {
+
+    private final static Logger logger = Logger.getLogger(CgroupSource.class.getName());
+
+    static final String PREFIX = "cgroup:";
+
+    static final String DEFAULT_DIRECTORY = "/sys/fs/cgroup";
+
+    private final Path directory;
+    private final double throttleLow;
+    private final double throttleHigh;
+    private final double usageLow;
+    private final double pressureLow;
+    private final double pressureHigh;
+    private final ScheduledExecutorService scheduler;
+    private final AgentMetrics metrics;
+    private final long intervalMillis;
+
+    private Consumer<ResponseSnapshot> publisher;
+    private ScheduledFuture<?> sampler;
+    private AgentState lastState;
+    private boolean published;
+
+    /**
+     * Counters of previous sample; <code>lastSample</code> = 0 when there is none.
+     */
+    private long lastSample;
+    private long lastPeriods;
+    private long lastThrottled;
+    private long lastThrottledMicros;
+    private long lastUsageMicros;
+
+    /**
+     * @param definition directory (empty = {@link #DEFAULT_DIRECTORY}) and parameters
+     */
+    CgroupSource(String definition, ScheduledExecutorService scheduler, AgentMetrics metrics, long intervalMillis) {
+        final int query = definition.indexOf('?');
+        final String dir = query < 0 ? definition : definition.substring(0, query);
+        this.directory = Paths.get(dir.isEmpty() ? DEFAULT_DIRECTORY : dir);
+        final Map<String, String> params = StateSources.parameters(query < 0 ? "" : definition.substring(query + 1));
+        this.throttleLow = Integer.parseInt(params.getOrDefault("throttle-low", "5")) / 100.0;
+        this.throttleHigh = Integer.parseInt(params.getOrDefault("throttle-high", "50")) / 100.0;
+        this.usageLow = Integer.parseInt(params.getOrDefault("usage-low", "80")) / 100.0;
+        this.pressureLow = Integer.parseInt(params.getOrDefault("pressure-low", "10"));
+        this.pressureHigh = Integer.parseInt(params.getOrDefault("pressure-high", "40"));
+        if (throttleHigh <= throttleLow || pressureHigh <= pressureLow || usageLow >= 1) {
+            throw new IllegalArgumentException("high limit must be above low limit: " + definition);
+        }
+        this.scheduler = scheduler;
+        this.metrics = metrics;
+        this.intervalMillis = intervalMillis;
+    }
+
+    @Override
+    public void start(Consumer<ResponseSnapshot> publisher) {
+        this.publisher = publisher;
+        sample();
+        sampler = scheduler.scheduleWithFixedDelay(this::sample, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void close() {
+        if (sampler != null) {
+            sampler.cancel(false);
+        }
+    }
+
+    private void sample() {
+        final long start = System.nanoTime();
+        try {
+            final AgentState state = sample(start);
+            metrics.sourceRead(start);
+            publish(state);
+        } catch (IOException | RuntimeException e) {
+            logger.log(Level.WARNING, "failed to sample cgroup " + directory, e);
+            lastSample = 0;
+            publish(null);
+        }
+    }
+
+    /**
+     * Read statistics and compute state.
+     *
+     * @param now current {@link System#nanoTime()}
+     * @return state; <code>null</code> when the directory is not v2 group and has no v1 CPU statistics
+     */
+    AgentState sample(long now) throws IOException {
+        //every v2 group has cgroup.controllers; cpu.max is missing without cpu controller (no quota)
+        final boolean v2 = Files.exists(directory.resolve("cgroup.controllers"));
+        List<String> cpuStat = readLines(v2 ? directory.resolve("cpu.stat") : directory.resolve("cpu/cpu.stat"));
+        if (cpuStat == null) {
+            if (!v2) {
+                lastSample = 0;
+                return null;
+            }
+            //v2 without CPU statistics: memory pressure only
+            cpuStat = Collections.emptyList();
+        }
+        final long periods = value(cpuStat, "nr_periods");
+        final long throttled = value(cpuStat, "nr_throttled");
+        final long throttledMicros = v2 ? value(cpuStat, "throttled_usec")
+                : TimeUnit.NANOSECONDS.toMicros(value(cpuStat, "throttled_time"));
+        final long usageMicros = v2 ? value(cpuStat, "usage_usec") : usageMicrosV1();
+        final double quota = v2 ? quotaV2() : quotaV1();
+        final double pressure = pressure();
+
+        double factor = 1;
+        double throttledShare = -1;
+        double usage = -1;
+        if (lastSample != 0) {
+            final long wallMicros = TimeUnit.NANOSECONDS.toMicros(now - lastSample);
+            if (periods > lastPeriods) {
+                throttledShare = (double) (throttled - lastThrottled) / (periods - lastPeriods);
+                factor = Math.min(factor, JvmHealthSource.linear(throttledShare, throttleLow, throttleHigh));
+            }
+            if (quota > 0 && usageMicros >= 0 && wallMicros > 0) {
+                usage = (usageMicros - lastUsageMicros) / (wallMicros * quota);
+                factor = Math.min(factor, JvmHealthSource.linear(usage, usageLow, 1.0));
+            }
+        }
+        if (pressure >= 0) {
+            factor = Math.min(factor, JvmHealthSource.linear(pressure, pressureLow, pressureHigh));
+        }
+        final int weight = Math.max(JvmHealthSource.MIN_WEIGHT, (int) Math.round(factor * 100));
+        if (logger.isLoggable(Level.FINE)) {
+            logger.fine(String.format("cgroup %s: throttled %.2f (%dus), usage %.2f of quota %.2f, memory pressure %.2f => %d%%",
+                    directory, throttledShare, throttledMicros - lastThrottledMicros, usage, quota, pressure, weight));
+        }
+        lastSample = now;
+        lastPeriods = periods;
+        lastThrottled = throttled;
+        lastThrottledMicros = throttledMicros;
+        lastUsageMicros = usageMicros;
+        return new AgentState(AgentState.Status.READY, null, weight, -1, null);
+    }
+
+    /**
+     * Quota in CPUs from <code>cpu.max</code> (<code>quota period</code>).
+     *
+     * @return negative when unlimited
+     */
+    private double quotaV2() throws IOException {
+        final List<String> lines = readLines(directory.resolve("cpu.max"));
+        if (lines == null || lines.isEmpty()) {
+            return -1;
+        }
+        final String[] fields = lines.get(0).trim().split("\\s+");
+        if (fields.length < 2 || "max".equals(fields[0])) {
+            return -1;
+        }
+        return Double.parseDouble(fields[0]) / Double.parseDouble(fields[1]);
+    }
+
+    /**
+     * Quota in CPUs from <code>cpu.cfs_quota_us</code> and <code>cpu.cfs_period_us</code>.
+     *
+     * @return negative when unlimited
+     */
+    private double quotaV1() throws IOException {
+        final long quota = firstValue(directory.resolve("cpu/cpu.cfs_quota_us"));
+        final long period = firstValue(directory.resolve("cpu/cpu.cfs_period_us"));
+        return quota > 0 && period > 0 ? (double) quota / period : -1;
+    }
+
+    private long usageMicrosV1() throws IOException {
+        final long nanos = firstValue(directory.resolve("cpuacct/cpuacct.usage"));
+        return nanos < 0 ? -1 : TimeUnit.NANOSECONDS.toMicros(nanos);
+    }
+
+    /**
+     * <code>some avg10</code> of memory PSI.
+     *
+     * @return percent; negative when not available
+     */
+    private double pressure() throws IOException {
+        final List<String> lines = readLines(directory.resolve("memory.pressure"));
+        if (lines == null) {
+            return -1;
+        }
+        for (String line : lines) {
+            if (line.startsWith("some ")) {
+                for (String field : line.split("\\s+")) {
+                    if (field.startsWith("avg10=")) {
+                        return Double.parseDouble(field.substring("avg10=".length()));
+                    }
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Value of <code>key value</code> line.
+     *
+     * @return 0 when missing
+     */
+    private static long value(List<String> lines, String key) {
+        for (String line : lines) {
+            if (line.startsWith(key) && line.length() > key.length() && line.charAt(key.length()) == ' ') {
+                return Long.parseLong(line.substring(key.length() + 1).trim());
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * @return number on first line; -1 when file does not exist
+     */
+    private static long firstValue(Path file) throws IOException {
+        final List<String> lines = readLines(file);
+        return lines == null || lines.isEmpty() ? -1 : Long.parseLong(lines.get(0).trim());
+    }
+
+    /**
+     * @return lines; <code>null</code> when file does not exist
+     */
+    private static List<String> readLines(Path file) throws IOException {
+        try {
+            return Files.readAllLines(file, StandardCharsets.US_ASCII);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    private void publish(AgentState state) {
+        if (!published || !Objects.equals(state, lastState)) {
+            published = true;
+            lastState = state;
+            publisher.accept(state == null ? null : state.toSnapshot());
+        }
+    }
+}
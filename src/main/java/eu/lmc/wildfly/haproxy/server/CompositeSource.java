@@ -0,0 +1,172 @@
+package eu.lmc.wildfly.haproxy.server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.function.Consumer;
+
+import static org.xnio.IoUtils.safeClose;
+
+/**
+ * Composite source (<code>composite:source|source|...</code>): merges states of several sources, like maintenance
+ * file, application readiness URL and JVM health.
+ * <p/>
+ * Each source refreshes in background on its own, independently of others; whenever one of them publishes, the states
+ * are merged and the result is published (when changed), so the check costs the same as with single source.
+ * Merge rules:
+ * <ul>
+ * <li>the worst administrative and operational state wins (any <code>drain</code> or <code>down</code>),</li>
+ * <li>weight and maxconn are the minimum of those set,</li>
+ * <li>descriptions are joined,</li>
+ * <li>source without state (failing URL, command, provider...) takes part with fallback state of the server, so its
+ * failure is not hidden by states of other sources; optional source (file by default, any source marked
+ * <code>optional:</code>) does not take part, as its absence is expected (no maintenance file). File marked
+ * <code>required:</code> takes part with fallback state. When no source has state, fallback is sent.</li>
+ * </ul>
+ */
+class CompositeSource implements StateSource {
+
+    static final String PREFIX = "composite:";
+    static final String SEPARATOR = "|";
+    static final String OPTIONAL_PREFIX = "optional:";
+    static final String REQUIRED_PREFIX = "required:";
+
+    private final List<StateSource> sources;
+    /**
+     * Whether source without state does not take part.
+     */
+    private final boolean[] optional;
+    /**
+     * State of source without state, unless optional.
+     */
+    private final AgentState fallback;
+    private final AgentState[] states;
+
+    private Consumer<ResponseSnapshot> publisher;
+    private boolean published;
+    private AgentState merged;
+
+    /**
+     * @param optional whether source of the same index does not take part when it has no state
+     * @param fallback state of other sources without state
+     */
+    CompositeSource(List<StateSource> sources, boolean[] optional, AgentState fallback) {
+        this.sources = sources;
+        this.optional = optional;
+        this.fallback = fallback;
+        this.states = new AgentState[sources.size()];
+    }
+
+    /**
+     * @param part part of composite definition
+     * @return definition of the source without <code>optional:</code> or <code>required:</code> mark
+     */
+    static String definition(String part) {
+        if (part.startsWith(OPTIONAL_PREFIX)) {
+            return part.substring(OPTIONAL_PREFIX.length()).trim();
+        }
+        if (part.startsWith(REQUIRED_PREFIX)) {
+            return part.substring(REQUIRED_PREFIX.length()).trim();
+        }
+        return part;
+    }
+
+    /**
+     * @param part part of composite definition
+     * @param file whether the part is file source
+     * @return whether the source does not take part when it has no state
+     */
+    static boolean isOptional(String part, boolean file) {
+        return part.startsWith(OPTIONAL_PREFIX) || (file && !part.startsWith(REQUIRED_PREFIX));
+    }
+
+    @Override
+    public void start(Consumer<ResponseSnapshot> publisher) {
+        this.publisher = publisher;
+        for (int i = 0; i < sources.size(); i++) {
+            final int index = i;
+            sources.get(i).start(snapshot -> sourceChanged(index, snapshot));
+        }
+        synchronized (this) {
+            if (!published) {
+                //no source has state yet
+                published = true;
+                publisher.accept(null);
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        for (StateSource source : sources) {
+            safeClose(source);
+        }
+    }
+
+    private synchronized void sourceChanged(int index, ResponseSnapshot snapshot) {
+        states[index] = snapshot == null ? null : AgentState.parse(snapshot);
+        final AgentState next = merge(votes());
+        if (!published || !Objects.equals(next, merged)) {
+            published = true;
+            merged = next;
+            publisher.accept(next == null ? null : next.toSnapshot());
+        }
+    }
+
+    /**
+     * States taking part in merge: sources without state vote with fallback state, unless optional.
+     *
+     * @return states; none when no source has state
+     */
+    private AgentState[] votes() {
+        final AgentState[] votes = new AgentState[states.length];
+        boolean any = false;
+        for (int i = 0; i < states.length; i++) {
+            any |= states[i] != null;
+            votes[i] = states[i] != null || optional[i] ? states[i] : fallback;
+        }
+        return any ? votes : new AgentState[0];
+    }
+
+    /**
+     * Merge states; <code>null</code> items (sources without state) are skipped.
+     *
+     * @return merged state; <code>null</code> when there is no state at all
+     */
+    static AgentState merge(AgentState... states) {
+        AgentState.Status admin = null;
+        AgentState.Status operational = null;
+        int weight = -1;
+        int maxconn = -1;
+        final List<String> descriptions = new ArrayList<>();
+        boolean any = false;
+        for (AgentState state : states) {
+            if (state == null) {
+                continue;
+            }
+            any = true;
+            admin = AgentState.Status.worse(admin, state.getAdmin());
+            operational = AgentState.Status.worse(operational, state.getOperational());
+            weight = min(weight, state.getWeight());
+            maxconn = min(maxconn, state.getMaxconn());
+            if (state.getDescription() != null && !state.getDescription().isEmpty()) {
+                descriptions.add(state.getDescription());
+            }
+        }
+        if (!any) {
+            return null;
+        }
+        return new AgentState(admin, operational, weight, maxconn,
+                descriptions.isEmpty() ? null : String.join("; ", descriptions));
+    }
+
+    /**
+     * Minimum of values that are set (non-negative).
+     */
+    private static int min(int a, int b) {
+        if (a < 0 || b < 0) {
+            return Math.max(a, b);
+        }
+        return Math.min(a, b);
+    }
+}
@@ -0,0 +1,161 @@
+package eu.lmc.wildfly.haproxy.server;
+
+import eu.lmc.wildfly.haproxy.api.AgentStatusProvider;
+import eu.lmc.wildfly.haproxy.api.AgentStatusProviders;
+import org.jboss.threads.JBossThreadFactory;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Deployment source (<code>deployment:name</code>): status of {@link AgentStatusProvider} registered by application,
+ * read by direct call in background, without http round trip.
+ * <p/>
+ * Provider is called every <code>intervalMillis</code> on thread of this source (so slow provider does not delay
+ * other sources), at most one call at a time. Call that does not finish in <code>timeoutMillis</code> is abandoned and
+ * last status is served until it is older than <code>maxStaleMillis</code>, as with http source. Fallback is sent
+ * while no provider of the name is registered (application not deployed).
+ */
+class DeploymentStatusSource implements StateSource {
+
+    private final static Logger logger = Logger.getLogger(DeploymentStatusSource.class.getName());
+
+    static final String PREFIX = "deployment:";
+
+    private final String name;
+    private final ScheduledExecutorService scheduler;
+    private final AgentMetrics metrics;
+    private final int maxSize;
+    private final long intervalMillis;
+    private final long maxStaleNanos;
+    private final long timeoutMillis;
+
+    private final AtomicBoolean inFlight = new AtomicBoolean();
+    private volatile long lastSuccess;
+    private volatile boolean stale = true;
+    private byte[] lastStatus;
+    private boolean published;
+
+    private Consumer<ResponseSnapshot> publisher;
+    private ExecutorService caller;
+    private ScheduledFuture<?> poller;
+
+    DeploymentStatusSource(String name, ScheduledExecutorService scheduler, AgentMetrics metrics, int maxSize,
+                           long intervalMillis, long maxStaleMillis, long timeoutMillis) {
+        this.name = name;
+        this.scheduler = scheduler;
+        this.metrics = metrics;
+        this.maxSize = maxSize;
+        this.intervalMillis = intervalMillis;
+        this.maxStaleNanos = TimeUnit.MILLISECONDS.toNanos(maxStaleMillis);
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    @Override
+    public void start(Consumer<ResponseSnapshot> publisher) {
+        this.publisher = publisher;
+        caller = Executors.newSingleThreadExecutor(new JBossThreadFactory(null, true, null, "statusProvider-%i", null, null));
+        poller = scheduler.scheduleWithFixedDelay(this::refresh, 0, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void close() {
+        if (poller != null) {
+            poller.cancel(false);
+        }
+        if (caller != null) {
+            caller.shutdownNow();
+        }
+    }
+
+    void refresh() {
+        if (!stale && System.nanoTime() - lastSuccess > maxStaleNanos) {
+            logger.info("no status from provider " + name + " for " + TimeUnit.NANOSECONDS.toMillis(maxStaleNanos) + "ms, serving fallback");
+            publishStatus(null);
+        }
+        final AgentStatusProvider provider = AgentStatusProviders.get(name);
+        if (provider == null) {
+            logger.fine("no status provider " + name);
+            publishStatus(null);
+            return;
+        }
+        if (!inFlight.compareAndSet(false, true)) {
+            return;
+        }
+        //either the call finishes, or the deadline expires: whichever is first
+        final AtomicBoolean finished = new AtomicBoolean();
+        final Future<?> call = caller.submit(() -> {
+            final long start = System.nanoTime();
+            try {
+                final String status = callProvider(provider);
+                if (!finished.compareAndSet(false, true)) {
+                    //too late, abandoned
+                    return;
+                }
+                metrics.sourceRead(start);
+                lastSuccess = System.nanoTime();
+                publishStatus(status == null ? null : status.getBytes(StandardCharsets.US_ASCII));
+            } catch (RuntimeException e) {
+                finished.set(true);
+                logger.log(Level.INFO, "status provider " + name + " failed", e);
+            } finally {
+                inFlight.set(false);
+            }
+        });
+        scheduler.schedule(() -> {
+            if (finished.compareAndSet(false, true)) {
+                call.cancel(true);
+                metrics.timeout();
+                logger.info("status provider " + name + " did not answer in " + timeoutMillis + "ms");
+            }
+        }, timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Call provider with its class loader as context class loader.
+     */
+    private static String callProvider(AgentStatusProvider provider) {
+        final Thread thread = Thread.currentThread();
+        final ClassLoader original = thread.getContextClassLoader();
+        thread.setContextClassLoader(provider.getClass().getClassLoader());
+        try {
+            return provider.getStatus();
+        } finally {
+            thread.setContextClassLoader(original);
+        }
+    }
+
+    /**
+     * Publish status when changed.
+     *
+     * @param status reply; <code>null</code> = no status
+     */
+    private synchronized void publishStatus(byte[] status) {
+        if (status == null) {
+            if (!stale || !published) {
+                publisher.accept(null);
+            }
+            stale = true;
+            published = true;
+            lastStatus = null;
+            return;
+        }
+        final byte[] bytes = status.length > maxSize ? Arrays.copyOf(status, maxSize) : status;
+        if (stale || !Arrays.equals(bytes, lastStatus)) {
+            publisher.accept(ResponseSnapshot.of(bytes));
+        }
+        stale = false;
+        published = true;
+        lastStatus = bytes;
+    }
+}
@@ -0,0 +1,196 @@
+package eu.lmc.wildfly.haproxy.server;
+
+import org.jboss.threads.JBossThreadFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Command source (<code>exec:command args...</code>): standard output of command run in background is the reply.
+ * <p/>
+ * Command is run every <code>intervalMillis</code> on thread of this source, never by check itself, and at most one
+ * run at a time: run that is not finished when the next one is due is not overlapped, the next one is skipped.
+ * Command line is split on whitespace and run without shell. Output is collected from the pipe when the command exits
+ * (so output larger than pipe buffer makes the command time out), capped at <code>maxSize</code> bytes; standard error
+ * is discarded. Output is not read until end of stream, because a child left behind by the command might keep the
+ * pipe open.
+ * <p/>
+ * Process that does not finish in <code>timeoutMillis</code> is killed. Killed process, non-zero exit code or failure
+ * to start the command counts as failed run; last reply is served until it is older than <code>maxStaleMillis</code>,
+ * as with http source.
+ */
+class ExecSource implements StateSource {
+
+    private final static Logger logger = Logger.getLogger(ExecSource.class.getName());
+
+    static final String PREFIX = "exec:";
+
+    private static final File NULL_FILE = new File(
+            System.getProperty("os.name", "").startsWith("Windows") ? "NUL" : "/dev/null");
+
+    private final List<String> command;
+    private final ScheduledExecutorService scheduler;
+    private final AgentMetrics metrics;
+    private final int maxSize;
+    private final long intervalMillis;
+    private final long maxStaleNanos;
+    private final long timeoutMillis;
+
+    private final AtomicBoolean inFlight = new AtomicBoolean();
+    private volatile long lastSuccess;
+    private volatile boolean stale = true;
+    private volatile Process process;
+    private byte[] lastStatus;
+    private boolean published;
+
+    private Consumer<ResponseSnapshot> publisher;
+    private ExecutorService runner;
+    private ScheduledFuture<?> poller;
+
+    /**
+     * @param commandLine command and its arguments, separated by whitespace
+     */
+    ExecSource(String commandLine, ScheduledExecutorService scheduler, AgentMetrics metrics, int maxSize,
+               long intervalMillis, long maxStaleMillis, long timeoutMillis) {
+        final String trimmed = commandLine.trim();
+        if (trimmed.isEmpty()) {
+            throw new IllegalArgumentException("no command in " + PREFIX + " source");
+        }
+        this.command = Arrays.asList(trimmed.split("\\s+"));
+        this.scheduler = scheduler;
+        this.metrics = metrics;
+        this.maxSize = maxSize;
+        this.intervalMillis = intervalMillis;
+        this.maxStaleNanos = TimeUnit.MILLISECONDS.toNanos(maxStaleMillis);
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    @Override
+    public void start(Consumer<ResponseSnapshot> publisher) {
+        this.publisher = publisher;
+        runner = Executors.newSingleThreadExecutor(new JBossThreadFactory(null, true, null, "execSource-%i", null, null));
+        poller = scheduler.scheduleWithFixedDelay(this::refresh, 0, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void close() {
+        if (poller != null) {
+            poller.cancel(false);
+        }
+        if (runner != null) {
+            runner.shutdownNow();
+        }
+        final Process running = process;
+        if (running != null) {
+            running.destroyForcibly();
+        }
+    }
+
+    void refresh() {
+        if (!stale && System.nanoTime() - lastSuccess > maxStaleNanos) {
+            logger.info("no output of " + command.get(0) + " for " + TimeUnit.NANOSECONDS.toMillis(maxStaleNanos) + "ms, serving fallback");
+            publishStatus(null);
+        }
+        if (!inFlight.compareAndSet(false, true)) {
+            //previous run still in progress
+            return;
+        }
+        try {
+            runner.execute(this::run);
+        } catch (RuntimeException e) {
+            //closed
+            inFlight.set(false);
+        }
+    }
+
+    private void run() {
+        final long start = System.nanoTime();
+        try {
+            final Process started = new ProcessBuilder(command)
+                    .redirectInput(ProcessBuilder.Redirect.from(NULL_FILE))
+                    .redirectError(ProcessBuilder.Redirect.appendTo(NULL_FILE))
+                    .start();
+            process = started;
+            if (!started.waitFor(timeoutMillis, TimeUnit.MILLISECONDS)) {
+                metrics.execFailure();
+                logger.info("command " + command.get(0) + " did not finish in " + timeoutMillis + "ms");
+                return;
+            }
+            final byte[] output = readOutput(started.getInputStream(), maxSize);
+            metrics.sourceRead(start);
+            final int exitCode = started.exitValue();
+            if (exitCode != 0) {
+                metrics.execFailure();
+                logger.info("command " + command.get(0) + " exited with " + exitCode);
+                return;
+            }
+            lastSuccess = System.nanoTime();
+            publishStatus(output.length == 0 ? null : output);
+        } catch (IOException e) {
+            metrics.execFailure();
+            logger.log(Level.INFO, "failed to run " + command.get(0), e);
+        } catch (InterruptedException e) {
+            //closed
+            Thread.currentThread().interrupt();
+        } finally {
+            final Process running = process;
+            if (running != null) {
+                running.destroyForcibly();
+            }
+            process = null;
+            inFlight.set(false);
+        }
+    }
+
+    /**
+     * Read at most <code>maxSize</code> bytes available in the stream, without blocking.
+     */
+    static byte[] readOutput(InputStream in, int maxSize) throws IOException {
+        final byte[] buffer = new byte[maxSize];
+        int length = 0;
+        int available;
+        while (length < maxSize && (available = in.available()) > 0) {
+            final int read = in.read(buffer, length, Math.min(available, maxSize - length));
+            if (read < 0) {
+                break;
+            }
+            length += read;
+        }
+        return length == maxSize ? buffer : Arrays.copyOf(buffer, length);
+    }
+
+    /**
+     * Publish status when changed.
+     *
+     * @param status reply; <code>null</code> = no status
+     */
+    private synchronized void publishStatus(byte[] status) {
+        if (status == null) {
+            if (!stale || !published) {
+                publisher.accept(null);
+            }
+            stale = true;
+            published = true;
+            lastStatus = null;
+            return;
+        }
+        if (stale || !Arrays.equals(status, lastStatus)) {
+            publisher.accept(ResponseSnapshot.of(status));
+        }
+        stale = false;
+        published = true;
+        lastStatus = status;
+    }
+}
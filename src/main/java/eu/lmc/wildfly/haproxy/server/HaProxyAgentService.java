@@ -2,6 +2,9 @@ package eu.lmc.wildfly.haproxy.server;
 
 import eu.lmc.wildfly.haproxy.extension.ServerDefinition;
 import org.jboss.as.network.SocketBinding;
+import org.jboss.as.server.suspend.ServerActivity;
+import org.jboss.as.server.suspend.ServerActivityCallback;
+import org.jboss.as.server.suspend.SuspendController;
 import org.jboss.logging.Logger;
 import org.jboss.msc.service.Service;
 import org.jboss.msc.service.ServiceName;
@@ -12,16 +15,15 @@ import org.jboss.msc.value.InjectedValue;
 import org.jboss.threads.JBossThreadFactory;
 import org.xnio.XnioWorker;
 
-import java.io.File;
 import java.io.IOException;
 import java.net.InetAddress;
-import java.net.MalformedURLException;
-import java.net.URI;
-import java.net.URISyntaxException;
-import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.Optional;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.List;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.atomic.AtomicReference;
 
@@ -36,10 +38,70 @@ public class HaProxyAgentService implements Service<HaProxyAgentService> {
 
     private final InjectedValue<SocketBinding> injectedSocketBinding = new InjectedValue<>();
     private final InjectedValue<XnioWorker> injectedXnioWorker = new InjectedValue<>();
+    private final InjectedValue<HttpClientService> injectedHttpClient = new InjectedValue<>();
+    private final InjectedValue<SourceRegistryService> injectedSourceRegistry = new InjectedValue<>();
+    private final InjectedValue<SuspendController> injectedSuspendController = new InjectedValue<>();
+    /**
+     * Follows suspend/resume of the server: drain while suspended, slow start after resume.
+     */
+    private final ServerActivity activity = new ServerActivity() {
+        @Override
+        public void preSuspend(ServerActivityCallback listener) {
+            final AbstractAgentCheckServer running = server;
+            if (running != null) {
+                running.getLifecycle().suspend();
+            }
+            listener.done();
+        }
+
+        @Override
+        public void suspended(ServerActivityCallback listener) {
+            listener.done();
+        }
+
+        @Override
+        public void resume() {
+            final AbstractAgentCheckServer running = server;
+            if (running != null) {
+                running.getLifecycle().resume();
+            }
+        }
+    };
     private final String name;
-    private final String source;
+    private String source;
 
-    private AbstractAgentCheckServer server;
+    private long refreshIntervalMillis = 1000;
+    private long maxStaleMillis = 10000;
+    private int timeoutSeconds = 4;
+    private String fallbackState = "ready";
+    private String adaptiveMaxconn;
+    private int weightSmoothing = 100;
+    private int weightStep = 100;
+    private long stateDwellMillis;
+    private long slowStartMillis;
+    private int slowStartWeight = 10;
+    private boolean slowStartJit;
+    private int backlog = -1;
+    private Boolean tcpNoDelay;
+    private int receiveBuffer = -1;
+    private int sendBuffer = -1;
+    private Boolean reuseAddress;
+    private boolean closeAbort;
+    private String backends;
+    private String backendDefault;
+    private String peerRules;
+    private int maxConnections;
+    private int peerRate;
+    private int peerBurst;
+    private String overloadReply;
+
+    private final AgentMetrics metrics = new AgentMetrics();
+
+    private volatile AbstractAgentCheckServer server;
+    /**
+     * Settings the running source pipeline was built with, see {@link #sourceSettings()}.
+     */
+    private List<Object> runningSourceSettings;
 
     public HaProxyAgentService(String name, String source) {
         this.name = name;
@@ -50,6 +112,269 @@ public class HaProxyAgentService implements Service<HaProxyAgentService> {
         return name;
     }
 
+    /**
+     * Source definition, see {@link StateSources}.
+     */
+    public void setSource(String source) {
+        this.source = source;
+    }
+
+    /**
+     * Interval of source refresh (URL poll, file modification time poll).
+     */
+    public void setRefreshIntervalMillis(long refreshIntervalMillis) {
+        this.refreshIntervalMillis = refreshIntervalMillis;
+    }
+
+    /**
+     * How long last good response of failing URL might be served.
+     */
+    public void setMaxStaleMillis(long maxStaleMillis) {
+        this.maxStaleMillis = maxStaleMillis;
+    }
+
+    /**
+     * Time budget of single check and source request.
+     */
+    public void setTimeoutSeconds(int timeoutSeconds) {
+        this.timeoutSeconds = timeoutSeconds;
+    }
+
+    /**
+     * State sent when source has no state to offer.
+     */
+    public void setFallbackState(String fallbackState) {
+        this.fallbackState = fallbackState;
+    }
+
+    /**
+     * Name of {@link AdaptiveConcurrencyLimit} whose estimate is sent as maxconn; <code>null</code> = none.
+     */
+    public void setAdaptiveMaxconn(String adaptiveMaxconn) {
+        this.adaptiveMaxconn = adaptiveMaxconn;
+    }
+
+    /**
+     * Weight of new sample in moving average of weights, percent.
+     */
+    public void setWeightSmoothing(int weightSmoothing) {
+        this.weightSmoothing = weightSmoothing;
+    }
+
+    /**
+     * Maximum change of weight per refresh interval, percent.
+     */
+    public void setWeightStep(int weightStep) {
+        this.weightStep = weightStep;
+    }
+
+    /**
+     * Minimum time state is kept.
+     */
+    public void setStateDwellMillis(long stateDwellMillis) {
+        this.stateDwellMillis = stateDwellMillis;
+    }
+
+    /**
+     * Time of weight ramp after resume of the server; 0 = no slow start.
+     */
+    public void setSlowStartMillis(long slowStartMillis) {
+        this.slowStartMillis = slowStartMillis;
+    }
+
+    /**
+     * Weight at start of slow start, percent of weight of the source.
+     */
+    public void setSlowStartWeight(int slowStartWeight) {
+        this.slowStartWeight = slowStartWeight;
+    }
+
+    /**
+     * Whether slow start advances only when JIT compiler is mostly idle.
+     */
+    public void setSlowStartJit(boolean slowStartJit) {
+        this.slowStartJit = slowStartJit;
+    }
+
+    /**
+     * Length of queue of connections waiting for accept; negative = default.
+     */
+    public void setBacklog(int backlog) {
+        this.backlog = backlog;
+    }
+
+    /**
+     * TCP_NODELAY of check connections; <code>null</code> = default.
+     */
+    public void setTcpNoDelay(Boolean tcpNoDelay) {
+        this.tcpNoDelay = tcpNoDelay;
+    }
+
+    /**
+     * SO_RCVBUF of the listening socket; negative = default.
+     */
+    public void setReceiveBuffer(int receiveBuffer) {
+        this.receiveBuffer = receiveBuffer;
+    }
+
+    /**
+     * SO_SNDBUF of check connections; negative = default.
+     */
+    public void setSendBuffer(int sendBuffer) {
+        this.sendBuffer = sendBuffer;
+    }
+
+    /**
+     * SO_REUSEADDR of the listening socket; <code>null</code> = default.
+     */
+    public void setReuseAddress(Boolean reuseAddress) {
+        this.reuseAddress = reuseAddress;
+    }
+
+    /**
+     * Close check connections with SO_LINGER=0 (no TIME_WAIT).
+     */
+    public void setCloseAbort(boolean closeAbort) {
+        this.closeAbort = closeAbort;
+    }
+
+    /**
+     * Backends dispatched by <code>agent-send</code> string: <code>name=source;name=source</code>;
+     * <code>null</code> = not used.
+     */
+    public void setBackends(String backends) {
+        this.backends = backends;
+    }
+
+    /**
+     * Reply to unknown backend; <code>null</code> = state of the source.
+     */
+    public void setBackendDefault(String backendDefault) {
+        this.backendDefault = backendDefault;
+    }
+
+    /**
+     * Replies depending on address of haproxy: <code>cidr=action;cidr=action</code>; <code>null</code> = not used.
+     */
+    public void setPeerRules(String peerRules) {
+        this.peerRules = peerRules;
+    }
+
+    /**
+     * Maximum number of open check connections; 0 = unlimited.
+     */
+    public void setMaxConnections(int maxConnections) {
+        this.maxConnections = maxConnections;
+    }
+
+    /**
+     * Connections per second of single peer address, and burst; 0 = unlimited (burst: same as rate).
+     */
+    public void setPeerRate(int peerRate, int peerBurst) {
+        this.peerRate = peerRate;
+        this.peerBurst = peerBurst;
+    }
+
+    /**
+     * Reply to connection over limits; <code>null</code> = close without reply.
+     */
+    public void setOverloadReply(String overloadReply) {
+        this.overloadReply = overloadReply;
+    }
+
+    /**
+     * Runtime metrics; kept over restarts of the service.
+     */
+    public AgentMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Override state of the source (see <code>set-state</code> operation); values not set in <code>state</code> are
+     * kept from the current override or the source.
+     *
+     * @param state        agent reply, e.g. <code>drain</code> or <code>maint #upgrade</code>
+     * @param ttlMillis    time after which the override expires; 0 = until cleared
+     * @param writeThrough also write resulting state to file of file source, so it survives restart
+     * @return reply now sent to haproxy
+     */
+    public synchronized String setState(String state, long ttlMillis, boolean writeThrough) throws IOException {
+        final AgentState parsed = AgentState.parse(state);
+        if (parsed.equals(AgentState.EMPTY)) {
+            throw new IllegalArgumentException("no agent state in '" + state + "'");
+        }
+        return override(parsed, ttlMillis, writeThrough);
+    }
+
+    /**
+     * Override weight sent to haproxy, keeping state of the source (see <code>set-weight</code> operation).
+     *
+     * @return reply now sent to haproxy
+     */
+    public synchronized String setWeight(int weight, long ttlMillis, boolean writeThrough) throws IOException {
+        return override(new AgentState(null, null, weight, -1, null), ttlMillis, writeThrough);
+    }
+
+    /**
+     * Remove override, the state of the source is sent again.
+     *
+     * @return reply now sent to haproxy
+     */
+    public synchronized String clearOverride() {
+        runningServer().clearOverride();
+        return readCurrentState();
+    }
+
+    /**
+     * @return reply currently sent to haproxy, without trailing newline
+     */
+    public synchronized String readCurrentState() {
+        return runningServer().currentResponse().toString().trim();
+    }
+
+    private String override(AgentState state, long ttlMillis, boolean writeThrough) throws IOException {
+        final AbstractAgentCheckServer server = runningServer();
+        Path file = null;
+        if (writeThrough) {
+            if (ttlMillis > 0) {
+                throw new IllegalArgumentException("state written through to file does not expire, ttl cannot be used");
+            }
+            if ((file = StateSources.filePath(source)) == null) {
+                throw new IllegalArgumentException("write-through needs file source, not " + source);
+            }
+        }
+        final AgentState current = server.getOverride();
+        server.setOverride(current == null ? state : state.over(current), ttlMillis);
+        final String reply = readCurrentState();
+        if (file != null) {
+            writeAtomically(file, reply + "\n");
+        }
+        logger.info("haproxy agent " + getName() + " state overridden: " + reply
+                + (ttlMillis > 0 ? " for " + ttlMillis + "ms" : ""));
+        return reply;
+    }
+
+    /**
+     * Replace file content at once, so that the file source never reads partially written state.
+     */
+    private static void writeAtomically(Path file, String content) throws IOException {
+        final Path absolute = file.toAbsolutePath();
+        final Path temp = Files.createTempFile(absolute.getParent(), absolute.getFileName().toString(), ".tmp");
+        try {
+            Files.write(temp, content.getBytes(StandardCharsets.US_ASCII));
+            Files.move(temp, absolute, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    private AbstractAgentCheckServer runningServer() {
+        if (server == null) {
+            throw new IllegalStateException("haproxy agent " + getName() + " is not running");
+        }
+        return server;
+    }
+
     @Override
     public HaProxyAgentService getValue() throws IllegalStateException, IllegalArgumentException {
         return this;
@@ -69,6 +394,48 @@ public class HaProxyAgentService implements Service<HaProxyAgentService> {
         return injectedXnioWorker;
     }
 
+    /**
+     * Whether the source needs http client.
+     */
+    public boolean usesHttpClient() {
+        if (backends != null) {
+            for (String backend : backends.split(BackendDispatch.SEPARATOR)) {
+                if (StateSources.usesHttp(backend.substring(backend.indexOf('=') + 1).trim())) {
+                    return true;
+                }
+            }
+        }
+        return StateSources.usesHttp(source);
+    }
+
+    /**
+     * Whether shared http client was injected: dependency is added only when the server uses it at start.
+     */
+    public boolean hasHttpClient() {
+        return injectedHttpClient.getOptionalValue() != null;
+    }
+
+    /**
+     * Suspend controller holder: used to fill dependency in subsystem handler.
+     */
+    public InjectedValue<SuspendController> getInjectedSuspendController() {
+        return injectedSuspendController;
+    }
+
+    /**
+     * Shared http client holder: used to fill dependency in subsystem handler.
+     */
+    public InjectedValue<HttpClientService> getInjectedHttpClient() {
+        return injectedHttpClient;
+    }
+
+    /**
+     * Shared source registry holder: used to fill dependency in subsystem handler.
+     */
+    public InjectedValue<SourceRegistryService> getInjectedSourceRegistry() {
+        return injectedSourceRegistry;
+    }
+
     public static ServiceName createServiceName(final String source) {
         return ServiceName.JBOSS.append("haproxy-agent", source);
     }
@@ -80,38 +447,99 @@ public class HaProxyAgentService implements Service<HaProxyAgentService> {
         final InetAddress bindAddr = socketBinding != null ? socketBinding.getAddress() : null;
         logger.info("haproxy agent " + getName() + " for  " + source + ", binding to port " + port);
 
-        startXnio(port, bindAddr, source);
-    }
-
-    private void startXnio(int port, InetAddress bindAddr, String source) throws StartException {
-        Optional<File> file = Optional.empty();
-        Optional<URI> uri = Optional.empty();
-
-        if (source.matches("^https?://.*")) {
-            try {
-                final URI value = new URL(source).toURI();
-                uri = Optional.of(value);
-            } catch (URISyntaxException|MalformedURLException ignored) {
-                //ok, it's obviously not URL
-            }
-        }
-        if (!uri.isPresent()) {
-            file = Optional.of(new File(source));
+        startServer(port, bindAddr, source);
+        final SuspendController suspendController = injectedSuspendController.getOptionalValue();
+        if (suspendController != null) {
+            suspendController.registerActivity(activity);
         }
+    }
 
+    private void startServer(int port, InetAddress bindAddr, String source) throws StartException {
         try {
-            final XnioWorker xnio = getInjectedXnioWorker().getValue();
-            server = new XnioAgentCheckServer(xnio, file, uri);
+            final XnioWorker xnio = getInjectedXnioWorker().getOptionalValue();
+            //no worker: own IO thread, isolated from the application
+            server = xnio != null ? new XnioAgentCheckServer(xnio, source) : new NioAgentCheckServer(source);
+            configure(server);
+            server.setBacklog(backlog);
+            server.setReceiveBuffer(receiveBuffer);
+            server.setReuseAddress(reuseAddress);
+            server.setMetrics(metrics);
+            final SuspendController suspendController = injectedSuspendController.getOptionalValue();
+            if (suspendController != null && suspendController.getState() != SuspendController.State.RUNNING) {
+                //server boots suspended: drain until resumed
+                server.getLifecycle().suspend();
+            }
+            final HttpClientService httpClient = injectedHttpClient.getOptionalValue();
+            if (httpClient != null) {
+                server.setHttpClient(httpClient.getClient());
+            }
+            server.setSourceRegistry(injectedSourceRegistry.getOptionalValue());
             server.start(bindAddr, port);
+            runningSourceSettings = sourceSettings();
         } catch (IOException e) {
             logger.error("failed to start...", e);
             throw new StartException(e);
         }
     }
 
+    private void configure(AbstractAgentCheckServer server) {
+        server.setRefreshIntervalMillis(refreshIntervalMillis);
+        server.setMaxStaleMillis(maxStaleMillis);
+        server.setTimeoutSeconds(timeoutSeconds);
+        server.setFallbackState(fallbackState);
+        server.setAdaptiveMaxconn(adaptiveMaxconn);
+        server.setWeightSmoothing(weightSmoothing);
+        server.setWeightStep(weightStep);
+        server.setStateDwellMillis(stateDwellMillis);
+        server.setSlowStartMillis(slowStartMillis);
+        server.setSlowStartWeight(slowStartWeight);
+        server.setSlowStartJit(slowStartJit);
+        server.setTcpNoDelay(tcpNoDelay);
+        server.setSendBuffer(sendBuffer);
+        server.setCloseAbort(closeAbort);
+        server.setBackends(backends);
+        server.setBackendDefault(backendDefault);
+        server.setPeerRules(peerRules);
+        server.setMaxConnections(maxConnections);
+        server.setPeerRate(peerRate, peerBurst);
+        server.setOverloadReply(overloadReply);
+    }
+
+    /**
+     * Settings the source pipeline (sources, smoothing, adaptive maxconn, slow start updater) is built with; other
+     * settings are read by the running server.
+     */
+    private List<Object> sourceSettings() {
+        return Arrays.asList(source, backends, refreshIntervalMillis, maxStaleMillis, timeoutSeconds, fallbackState,
+                adaptiveMaxconn, weightSmoothing, weightStep, stateDwellMillis, slowStartMillis);
+    }
+
+    /**
+     * Apply current settings to running server, listening socket is kept. Source is restarted only when settings it
+     * is built with changed, so that smoothed weight, pollers and slow start are not reset by other changes.
+     */
+    public synchronized void reconfigure() {
+        if (server == null) {
+            return;
+        }
+        configure(server);
+        final List<Object> settings = sourceSettings();
+        if (settings.equals(runningSourceSettings)) {
+            logger.info("haproxy agent " + getName() + " reconfigured");
+            return;
+        }
+        server.startSource(source);
+        runningSourceSettings = settings;
+        logger.info("haproxy agent " + getName() + " reconfigured, source " + source);
+    }
+
     @Override
     public synchronized void stop(StopContext stopContext) {
         logger.info("haproxy agent " + getName() + " shutting down");
+        final SuspendController suspendController = injectedSuspendController.getOptionalValue();
+        if (suspendController != null) {
+            suspendController.unRegisterActivity(activity);
+        }
         if (server != null) {
             try {
                 server.close();
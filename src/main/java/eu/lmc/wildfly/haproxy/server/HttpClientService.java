@@ -0,0 +1,120 @@
+package eu.lmc.wildfly.haproxy.server;
+
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
+import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.apache.http.nio.reactor.IOReactorException;
+import org.jboss.logging.Logger;
+import org.jboss.msc.service.Service;
+import org.jboss.msc.service.ServiceName;
+import org.jboss.msc.service.StartContext;
+import org.jboss.msc.service.StartException;
+import org.jboss.msc.service.StopContext;
+import org.jboss.threads.JBossThreadFactory;
+
+import static org.xnio.IoUtils.safeClose;
+
+/**
+ * HTTP client shared by http sources of all servers: one IO reactor and one pool of keep-alive connections
+ * (typically to the local application), instead of reactor and pool per server.
+ * <p/>
+ * Lifecycle is bound to the subsystem; request timeouts are set per request by each server.
+ */
+public class HttpClientService implements Service<HttpClientService> {
+
+    public static final ServiceName SERVICE_NAME = ServiceName.JBOSS.append("haproxy-agent-http-client");
+
+    private final Logger logger = Logger.getLogger(HttpClientService.class);
+
+    private int maxConnections = 20;
+    private int maxConnectionsPerRoute = 5;
+    private int ioThreads = 1;
+    private long keepAliveMillis = 30000;
+
+    private CloseableHttpAsyncClient client;
+
+    /**
+     * Maximum number of pooled connections.
+     */
+    public void setMaxConnections(int maxConnections) {
+        this.maxConnections = maxConnections;
+    }
+
+    /**
+     * Maximum number of pooled connections to single host.
+     */
+    public void setMaxConnectionsPerRoute(int maxConnectionsPerRoute) {
+        this.maxConnectionsPerRoute = maxConnectionsPerRoute;
+    }
+
+    /**
+     * Number of IO reactor threads.
+     */
+    public void setIoThreads(int ioThreads) {
+        this.ioThreads = ioThreads;
+    }
+
+    /**
+     * Maximum time idle connection is kept for reuse.
+     */
+    public void setKeepAliveMillis(long keepAliveMillis) {
+        this.keepAliveMillis = keepAliveMillis;
+    }
+
+    @Override
+    public HttpClientService getValue() throws IllegalStateException, IllegalArgumentException {
+        return this;
+    }
+
+    /**
+     * @return started client; <code>null</code> when service is not running
+     */
+    public CloseableHttpAsyncClient getClient() {
+        return client;
+    }
+
+    @Override
+    public synchronized void start(StartContext context) throws StartException {
+        try {
+            client = createClient(maxConnections, maxConnectionsPerRoute, ioThreads, keepAliveMillis);
+        } catch (IOReactorException e) {
+            throw new StartException(e);
+        }
+        logger.info("haproxy agent http client started, max connections " + maxConnections);
+    }
+
+    @Override
+    public synchronized void stop(StopContext context) {
+        safeClose(client);
+        client = null;
+    }
+
+    /**
+     * Create and start pooling client with keep-alive connections.
+     *
+     * @param keepAliveMillis maximum time idle connection is kept; server might request shorter time
+     */
+    static CloseableHttpAsyncClient createClient(int maxConnections, int maxConnectionsPerRoute, int ioThreads,
+                                                 long keepAliveMillis) throws IOReactorException {
+        final DefaultConnectingIOReactor ioReactor = new DefaultConnectingIOReactor(
+                IOReactorConfig.custom().setIoThreadCount(ioThreads).build(),
+                new JBossThreadFactory(null, true, null, "httpAsync-%i", null, null));
+        final PoolingNHttpClientConnectionManager connectionManager = new PoolingNHttpClientConnectionManager(ioReactor);
+        connectionManager.setMaxTotal(maxConnections);
+        connectionManager.setDefaultMaxPerRoute(maxConnectionsPerRoute);
+        final CloseableHttpAsyncClient client = HttpAsyncClients.custom()
+                .setConnectionManager(connectionManager)
+                //keep-alive requested by the server (Keep-Alive header), but at most keepAliveMillis
+                .setKeepAliveStrategy((response, context) -> {
+                    final long serverKeepAlive = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+                    return serverKeepAlive > 0 ? Math.min(serverKeepAlive, keepAliveMillis) : keepAliveMillis;
+                })
+                .disableCookieManagement()
+                .build();
+        client.start();
+        return client;
+    }
+}
@@ -0,0 +1,224 @@
+package eu.lmc.wildfly.haproxy.server;
+
+import org.apache.http.HttpException;
+import org.apache.http.HttpResponse;
+import org.apache.http.StatusLine;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.nio.IOControl;
+import org.apache.http.nio.client.methods.AsyncByteConsumer;
+import org.apache.http.nio.client.methods.HttpAsyncMethods;
+import org.apache.http.nio.reactor.IOReactorException;
+import org.apache.http.protocol.HttpContext;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static org.xnio.IoUtils.safeClose;
+
+/**
+ * HTTP source: polls the URL in background, checks are answered from the last good response.
+ * <p/>
+ * At most one request is in flight at any time; refresh requested while a request is running is coalesced with it.
+ * When the URL fails (error, non-2xx status), last good response is served until it is older than
+ * <code>maxStaleMillis</code>; then the source reports no state and fallback is served.
+ * Request that does not finish in <code>timeoutMillis</code> is cancelled and counts as failure.
+ * <p/>
+ * Requests go through the client shared by all servers ({@link HttpClientService}); private client is created only
+ * when there is no shared one (server running outside of the subsystem).
+ */
+class HttpPollingSource implements StateSource {
+
+    private final static Logger logger = Logger.getLogger(HttpPollingSource.class.getName());
+
+    private final URI uri;
+    private final ScheduledExecutorService scheduler;
+    private final AgentMetrics metrics;
+    private final int maxSize;
+    private final long intervalMillis;
+    private final long maxStaleNanos;
+    private final long timeoutMillis;
+
+    private final AtomicBoolean inFlight = new AtomicBoolean();
+    /**
+     * Time ({@link System#nanoTime()}) of last successful response.
+     */
+    private volatile long lastSuccess;
+    /**
+     * Whether we serve last good response (false) or nothing (true).
+     */
+    private volatile boolean stale = true;
+    /**
+     * Whether last request failed; used to log only the first failure of a series at INFO level.
+     */
+    private volatile boolean failing;
+
+    private final RequestConfig requestConfig;
+
+    private Consumer<ResponseSnapshot> publisher;
+    private CloseableHttpAsyncClient httpAsyncClient;
+    /**
+     * Whether {@link #httpAsyncClient} is private client of this source, to be closed with it.
+     */
+    private boolean ownClient;
+    private ScheduledFuture<?> poller;
+
+    /**
+     * @param uri            URL to poll
+     * @param httpClient     shared client; <code>null</code> = create private one
+     * @param scheduler      scheduler for polling
+     * @param metrics        metrics to record requests to
+     * @param maxSize        maximum response size; longer body is truncated
+     * @param intervalMillis poll interval
+     * @param maxStaleMillis how long last good response might be served when URL fails
+     * @param timeoutMillis  request deadline
+     */
+    HttpPollingSource(URI uri, CloseableHttpAsyncClient httpClient, ScheduledExecutorService scheduler,
+                      AgentMetrics metrics, int maxSize, long intervalMillis, long maxStaleMillis, long timeoutMillis) {
+        this.uri = uri;
+        this.httpAsyncClient = httpClient;
+        this.scheduler = scheduler;
+        this.metrics = metrics;
+        this.maxSize = maxSize;
+        this.intervalMillis = intervalMillis;
+        this.maxStaleNanos = TimeUnit.MILLISECONDS.toNanos(maxStaleMillis);
+        this.timeoutMillis = timeoutMillis;
+        this.requestConfig = RequestConfig.custom()
+                .setConnectTimeout((int) timeoutMillis)
+                .setSocketTimeout((int) timeoutMillis)
+                .setConnectionRequestTimeout((int) timeoutMillis)
+                .build();
+    }
+
+    @Override
+    public void start(Consumer<ResponseSnapshot> publisher) {
+        this.publisher = publisher;
+        if (httpAsyncClient == null) {
+            try {
+                httpAsyncClient = HttpClientService.createClient(2, 1, 1, intervalMillis * 2);
+            } catch (IOReactorException e) {
+                throw new IllegalStateException("cannot start http client", e);
+            }
+            ownClient = true;
+        }
+        poller = scheduler.scheduleWithFixedDelay(this::refresh, 0, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void close() {
+        if (poller != null) {
+            poller.cancel(false);
+        }
+        if (ownClient) {
+            safeClose(httpAsyncClient);
+        }
+    }
+
+    /**
+     * Start new request, unless there is one already in flight. Also expires last good response, when too old.
+     */
+    void refresh() {
+        if (!stale && System.nanoTime() - lastSuccess > maxStaleNanos) {
+            logger.info("no valid response from " + uri + " for " + TimeUnit.NANOSECONDS.toMillis(maxStaleNanos) + "ms, serving fallback");
+            stale = true;
+            publisher.accept(null);
+        }
+        if (!inFlight.compareAndSet(false, true)) {
+            return;
+        }
+        final long start = System.nanoTime();
+        try {
+            final HttpClientContext context = HttpClientContext.create();
+            context.setRequestConfig(requestConfig);
+            final Future<byte[]> request = httpAsyncClient.execute(HttpAsyncMethods.createGet(uri), new BodyConsumer(), context, new FutureCallback<byte[]>() {
+                @Override
+                public void completed(byte[] body) {
+                    metrics.sourceRead(start);
+                    if (body != null) {
+                        lastSuccess = System.nanoTime();
+                        stale = false;
+                        failing = false;
+                        publisher.accept(ResponseSnapshot.of(body));
+                    }
+                    inFlight.set(false);
+                }
+
+                @Override
+                public void failed(Exception ex) {
+                    metrics.sourceRead(start);
+                    metrics.httpError();
+                    logFailure("error reading from http " + uri, ex);
+                    inFlight.set(false);
+                }
+
+                @Override
+                public void cancelled() {
+                    metrics.timeout();
+                    logFailure("http request to " + uri + " cancelled after " + timeoutMillis + "ms", null);
+                    inFlight.set(false);
+                }
+            });
+            scheduler.schedule(() -> request.cancel(true), timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (RuntimeException e) {
+            //client already closed
+            logger.log(Level.FINE, "cannot start request to " + uri, e);
+            inFlight.set(false);
+        }
+    }
+
+    private void logFailure(String message, Exception ex) {
+        logger.log(failing ? Level.FINE : Level.INFO, message, ex);
+        failing = true;
+    }
+
+    /**
+     * Collects first {@link #maxSize} bytes of body; result is <code>null</code> when status code is not OK.
+     */
+    private class BodyConsumer extends AsyncByteConsumer<byte[]> {
+        private final ByteArrayOutputStream body = new ByteArrayOutputStream(maxSize);
+        private volatile boolean ok;
+
+        @Override
+        protected void onResponseReceived(HttpResponse response) throws HttpException, IOException {
+            final StatusLine statusLine = response.getStatusLine();
+            final int statusCode = statusLine.getStatusCode();
+            if (logger.isLoggable(Level.FINE)) {
+                logger.fine("onResponseReceived: " + response);
+            }
+            ok = statusCode < 300;
+            if (!ok) {
+                metrics.httpError();
+                logFailure("non-OK status code received from " + uri + ": " + statusCode + " " + statusLine.getReasonPhrase(), null);
+            }
+        }
+
+        @Override
+        protected void onByteReceived(ByteBuffer buf, IOControl ioctrl) throws IOException {
+            final int length = Math.min(buf.remaining(), maxSize - body.size());
+            if (ok && length > 0) {
+                final byte[] bytes = new byte[length];
+                buf.get(bytes);
+                body.write(bytes);
+            }
+            //rest of the body is discarded
+            buf.position(buf.limit());
+        }
+
+        @Override
+        protected byte[] buildResult(HttpContext context) throws Exception {
+            return ok ? body.toByteArray() : null;
+        }
+    }
+}
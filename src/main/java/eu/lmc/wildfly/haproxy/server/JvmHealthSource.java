@@ -0,0 +1,233 @@
+package eu.lmc.wildfly.haproxy.server;
+
+import javax.management.ListenerNotFoundException;
+import javax.management.MBeanServer;
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * JVM health source (<code>jvm:</code>): weight computed inside the JVM from
+ * <ul>
+ * <li>heap occupancy after GC (of pools that are collected: old generation),</li>
+ * <li>recent GC pause time, reported by {@link GarbageCollectorMXBean} notifications,</li>
+ * <li>CPU load of the process (or system load average, when the former is not available).</li>
+ * </ul>
+ * Each of them is turned into factor 0 - 1 (1 = healthy) and the worst one is the weight, so that a node that is
+ * GC-thrashing gets less traffic before its latency falls apart. Sampled on background schedule.
+ */
+class JvmHealthSource implements StateSource {
+
+    private final static Logger logger = Logger.getLogger(JvmHealthSource.class.getName());
+
+    /**
+     * Notification type of {@link GarbageCollectorMXBean}s (com.sun.management.GarbageCollectionNotificationInfo).
+     */
+    private static final String GC_NOTIFICATION = "com.sun.management.gc.notification";
+
+    /**
+     * Heap occupancy after GC where weight starts to drop, and where it reaches minimum.
+     */
+    static final double HEAP_LOW = 0.70;
+    static final double HEAP_HIGH = 0.95;
+    /**
+     * Fraction of time spent in GC pauses where weight reaches minimum.
+     */
+    static final double GC_HIGH = 0.20;
+    /**
+     * CPU load where weight starts to drop (reaching minimum at 100%).
+     */
+    static final double CPU_LOW = 0.80;
+    /**
+     * Minimum weight: node still gets a bit of traffic, haproxy stays able to see it recovering.
+     */
+    static final int MIN_WEIGHT = 1;
+    /**
+     * Number of samples GC pause time is summed over.
+     */
+    private static final int GC_WINDOW = 10;
+
+    private final ScheduledExecutorService scheduler;
+    private final AgentMetrics metrics;
+    private final long intervalMillis;
+
+    private final LongAdder gcPauseMillis = new LongAdder();
+    private final long[] windowPauses = new long[GC_WINDOW];
+    private final long[] windowLengths = new long[GC_WINDOW];
+    private int windowIndex;
+    private long lastSample;
+
+    private final List<NotificationEmitter> emitters = new ArrayList<>();
+    private final NotificationListener gcListener = this::onGcNotification;
+    private Consumer<ResponseSnapshot> publisher;
+    private ScheduledFuture<?> sampler;
+    private AgentState lastState;
+
+    JvmHealthSource(ScheduledExecutorService scheduler, AgentMetrics metrics, long intervalMillis) {
+        this.scheduler = scheduler;
+        this.metrics = metrics;
+        this.intervalMillis = intervalMillis;
+    }
+
+    @Override
+    public void start(Consumer<ResponseSnapshot> publisher) {
+        this.publisher = publisher;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            if (gc instanceof NotificationEmitter) {
+                final NotificationEmitter emitter = (NotificationEmitter) gc;
+                emitter.addNotificationListener(gcListener, n -> GC_NOTIFICATION.equals(n.getType()), null);
+                emitters.add(emitter);
+            }
+        }
+        lastSample = System.nanoTime();
+        sample();
+        sampler = scheduler.scheduleWithFixedDelay(this::sample, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void close() {
+        if (sampler != null) {
+            sampler.cancel(false);
+        }
+        for (NotificationEmitter emitter : emitters) {
+            try {
+                emitter.removeNotificationListener(gcListener);
+            } catch (ListenerNotFoundException ignored) {
+            }
+        }
+        emitters.clear();
+    }
+
+    private void onGcNotification(Notification notification, Object handback) {
+        final Object userData = notification.getUserData();
+        if (userData instanceof CompositeData) {
+            final Object gcInfo = ((CompositeData) userData).get("gcInfo");
+            if (gcInfo instanceof CompositeData) {
+                final Object duration = ((CompositeData) gcInfo).get("duration");
+                if (duration instanceof Long) {
+                    gcPauseMillis.add((Long) duration);
+                }
+            }
+        }
+    }
+
+    private void sample() {
+        final long start = System.nanoTime();
+        try {
+            final double heap = heapOccupancy();
+            final double gc = gcFraction(start);
+            final double cpu = cpuLoad();
+            final int weight = weight(heap, gc, cpu);
+            final AgentState state = new AgentState(AgentState.Status.READY, null, weight, -1, null);
+            if (logger.isLoggable(Level.FINE)) {
+                logger.fine(String.format("jvm: heap %.2f, gc %.3f, cpu %.2f => %d%%", heap, gc, cpu, weight));
+            }
+            metrics.sourceRead(start);
+            if (!state.equals(lastState)) {
+                lastState = state;
+                publisher.accept(state.toSnapshot());
+            }
+        } catch (RuntimeException e) {
+            logger.log(Level.WARNING, "failed to sample JVM health", e);
+        }
+    }
+
+    /**
+     * Combine the metrics into weight.
+     *
+     * @param heap heap occupancy after GC, 0 - 1
+     * @param gc   fraction of time spent in GC pauses, 0 - 1
+     * @param cpu  CPU load 0 - 1; negative when unknown
+     * @return weight in percent
+     */
+    static int weight(double heap, double gc, double cpu) {
+        double factor = Math.min(linear(heap, HEAP_LOW, HEAP_HIGH), linear(gc, 0, GC_HIGH));
+        if (cpu >= 0) {
+            factor = Math.min(factor, linear(cpu, CPU_LOW, 1.0));
+        }
+        return Math.max(MIN_WEIGHT, (int) Math.round(factor * 100));
+    }
+
+    /**
+     * @return 1 for value &lt;= low, 0 for value &gt;= high, linear in between
+     */
+    static double linear(double value, double low, double high) {
+        return Math.max(0, Math.min(1, (high - value) / (high - low)));
+    }
+
+    /**
+     * Highest occupancy (after last GC) of collected heap pools with usage threshold: old generation (eden and
+     * survivor spaces do not support usage threshold and are empty after GC anyway).
+     */
+    private static double heapOccupancy() {
+        double occupancy = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() != MemoryType.HEAP || !pool.isUsageThresholdSupported()) {
+                continue;
+            }
+            final MemoryUsage usage = pool.getCollectionUsage();
+            if (usage == null) {
+                continue;
+            }
+            final long max = usage.getMax() > 0 ? usage.getMax() : usage.getCommitted();
+            if (max > 0) {
+                occupancy = Math.max(occupancy, (double) usage.getUsed() / max);
+            }
+        }
+        return occupancy;
+    }
+
+    /**
+     * Fraction of time spent in GC pauses over the last {@link #GC_WINDOW} samples.
+     */
+    private double gcFraction(long now) {
+        windowPauses[windowIndex] = gcPauseMillis.sumThenReset();
+        windowLengths[windowIndex] = TimeUnit.NANOSECONDS.toMillis(now - lastSample);
+        windowIndex = (windowIndex + 1) % GC_WINDOW;
+        lastSample = now;
+        long pauses = 0;
+        long length = 0;
+        for (int i = 0; i < GC_WINDOW; i++) {
+            pauses += windowPauses[i];
+            length += windowLengths[i];
+        }
+        return length > 0 ? Math.min(1.0, (double) pauses / length) : 0;
+    }
+
+    /**
+     * CPU load of this process (HotSpot specific attribute), falling back to system load average per processor.
+     *
+     * @return 0 - 1; negative when unknown
+     */
+    private static double cpuLoad() {
+        final MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+        try {
+            final Object load = mbeanServer.getAttribute(new ObjectName(ManagementFactory.OPERATING_SYSTEM_MXBEAN_NAME), "ProcessCpuLoad");
+            if (load instanceof Double && (Double) load >= 0) {
+                return (Double) load;
+            }
+        } catch (Exception ignored) {
+            //not HotSpot
+        }
+        final OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        final double loadAverage = os.getSystemLoadAverage();
+        return loadAverage < 0 ? -1 : Math.min(1.0, loadAverage / os.getAvailableProcessors());
+    }
+}
@@ -0,0 +1,116 @@
+package eu.lmc.wildfly.haproxy.server;
+
+import java.util.Objects;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Applies {@link ServerLifecycle} (drain while suspended, slow start after resume) to state of another source.
+ * <p/>
+ * Republishes at once on suspend and resume, and every <code>intervalMillis</code> while the weight ramps. When
+ * the server is running and warm, reply of the source is passed unchanged. While suspended, drain is sent even when
+ * the source has published nothing yet (e.g. URL fails since boot), so fallback state does not report the server
+ * ready.
+ */
+class LifecycleSource implements StateSource {
+
+    private final StateSource delegate;
+    private final ServerLifecycle lifecycle;
+    private final ScheduledExecutorService scheduler;
+    private final long intervalMillis;
+    private final Runnable listener = this::lifecycleChanged;
+
+    private Consumer<ResponseSnapshot> publisher;
+    private ScheduledFuture<?> updater;
+
+    /**
+     * Last reply and state of the source, <code>null</code> when it has none.
+     */
+    private ResponseSnapshot snapshot;
+    private AgentState state;
+    private boolean received;
+    private AgentState output;
+    private boolean published;
+    /**
+     * Whether the output was adjusted by lifecycle.
+     */
+    private boolean adjusted;
+
+    LifecycleSource(StateSource delegate, ServerLifecycle lifecycle, ScheduledExecutorService scheduler, long intervalMillis) {
+        this.delegate = delegate;
+        this.lifecycle = lifecycle;
+        this.scheduler = scheduler;
+        this.intervalMillis = intervalMillis;
+    }
+
+    @Override
+    public void start(Consumer<ResponseSnapshot> publisher) {
+        this.publisher = publisher;
+        lifecycle.addListener(listener);
+        delegate.start(this::sourceChanged);
+        started();
+        if (lifecycle.getSlowStartMillis() > 0) {
+            updater = scheduler.scheduleWithFixedDelay(this::update, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @Override
+    public void close() {
+        lifecycle.removeListener(listener);
+        if (updater != null) {
+            updater.cancel(false);
+        }
+        delegate.close();
+    }
+
+    private synchronized void sourceChanged(ResponseSnapshot snapshot) {
+        this.snapshot = snapshot;
+        state = snapshot == null ? null : AgentState.parse(snapshot);
+        received = true;
+        publishState(true);
+    }
+
+    private synchronized void started() {
+        if (!received && lifecycle.isSuspended()) {
+            publishState(false);
+        }
+    }
+
+    private synchronized void lifecycleChanged() {
+        //nothing received: drain while suspended, back to fallback on resume
+        if (received || lifecycle.isSuspended() || published) {
+            publishState(false);
+        }
+    }
+
+    private synchronized void update() {
+        if (received && lifecycle.isRamping()) {
+            lifecycle.update(System.nanoTime());
+            publishState(false);
+        }
+    }
+
+    /**
+     * @param always publish even when unchanged (source published)
+     */
+    private void publishState(boolean always) {
+        if (!lifecycle.isSuspended() && !lifecycle.isRamping()) {
+            if (always || !published || adjusted) {
+                published = true;
+                adjusted = false;
+                output = state;
+                publisher.accept(snapshot);
+            }
+            return;
+        }
+        final AgentState next = lifecycle.apply(state);
+        if (always || !published || !adjusted || !Objects.equals(next, output)) {
+            published = true;
+            adjusted = true;
+            output = next;
+            publisher.accept(next == null ? null : next.toSnapshot());
+        }
+    }
+}
@@ -0,0 +1,220 @@
+package eu.lmc.wildfly.haproxy.server;
+
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Shared memory source (<code>mmap:path?poll=ms</code>): status written by external process (sidecar) to memory-mapped
+ * file, for writers that change status many times per second. File is never rewritten, so reader never sees it half
+ * written, and reading does no syscall.
+ * <p/>
+ * Layout of the file (little endian), written in place by the writer:
+ * <pre>
+ *     0: long   sequence, odd while the writer is writing
+ *     8: int    length of status
+ *    12: byte[] status (up to the end of file)
+ * </pre>
+ * Writer increments sequence (to odd), writes length and status, and increments sequence again (to even), with
+ * release ordering between the steps (seqlock). Reader reads sequence, status and sequence again, and accepts the
+ * status only when both sequences are the same even number.
+ * <p/>
+ * Sequence is polled every <code>poll</code> ms (default {@link #DEFAULT_POLL_MILLIS}) in background: unchanged
+ * sequence costs one memory read. Status is published when it changes, so checks serve cached snapshot as with any
+ * source. Every <code>intervalMillis</code> the file is checked and mapped again when it was replaced; fallback is
+ * sent while it does not exist.
+ */
+class MappedStatusSource implements StateSource {
+
+    private final static Logger logger = Logger.getLogger(MappedStatusSource.class.getName());
+
+    static final String PREFIX = "mmap:";
+
+    static final int SEQUENCE_OFFSET = 0;
+    static final int LENGTH_OFFSET = 8;
+    static final int DATA_OFFSET = 12;
+    static final long DEFAULT_POLL_MILLIS = 10;
+    /**
+     * Attempts to read consistent status while the writer keeps writing; next poll tries again.
+     */
+    private static final int READ_ATTEMPTS = 100;
+
+    private final Path path;
+    private final long pollMillis;
+    private final ScheduledExecutorService scheduler;
+    private final AgentMetrics metrics;
+    private final int maxSize;
+    private final long intervalNanos;
+
+    /**
+     * Written and read to order reads of mapped memory, which are plain reads.
+     */
+    private volatile long fence;
+
+    private Consumer<ResponseSnapshot> publisher;
+    private ScheduledFuture<?> poller;
+    private MappedByteBuffer buffer;
+    private Object fileKey;
+    private long lastCheck;
+    private long lastSequence = -1;
+    private byte[] lastStatus;
+    private boolean published;
+
+    /**
+     * @param definition path and parameters
+     */
+    MappedStatusSource(String definition, ScheduledExecutorService scheduler, AgentMetrics metrics, int maxSize,
+                       long intervalMillis) {
+        final int query = definition.indexOf('?');
+        this.path = Paths.get(query < 0 ? definition : definition.substring(0, query)).toAbsolutePath();
+        final Map<String, String> params = StateSources.parameters(query < 0 ? "" : definition.substring(query + 1));
+        this.pollMillis = Long.parseLong(params.getOrDefault("poll", Long.toString(DEFAULT_POLL_MILLIS)));
+        if (pollMillis <= 0) {
+            throw new IllegalArgumentException("poll must be positive: " + definition);
+        }
+        this.scheduler = scheduler;
+        this.metrics = metrics;
+        this.maxSize = maxSize;
+        this.intervalNanos = TimeUnit.MILLISECONDS.toNanos(intervalMillis);
+    }
+
+    @Override
+    public void start(Consumer<ResponseSnapshot> publisher) {
+        this.publisher = publisher;
+        poll();
+        poller = scheduler.scheduleWithFixedDelay(this::poll, pollMillis, pollMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void close() {
+        if (poller != null) {
+            poller.cancel(false);
+        }
+    }
+
+    synchronized void poll() {
+        final long now = System.nanoTime();
+        try {
+            if (buffer == null || now - lastCheck > intervalNanos) {
+                lastCheck = now;
+                checkFile();
+            }
+            if (buffer == null) {
+                publishStatus(null);
+                return;
+            }
+            read(now);
+        } catch (IOException | InternalError e) {
+            //InternalError: file truncated under the mapping
+            logger.log(Level.WARNING, "failed to read status from " + path, e);
+            buffer = null;
+            fileKey = null;
+            publishStatus(null);
+        }
+    }
+
+    /**
+     * Map the file, when it is not mapped yet or it was replaced.
+     */
+    private void checkFile() throws IOException {
+        final BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        } catch (NoSuchFileException e) {
+            buffer = null;
+            fileKey = null;
+            return;
+        }
+        final Object key = attributes.fileKey();
+        if (buffer != null && key != null && key.equals(fileKey) && attributes.size() == buffer.capacity()) {
+            return;
+        }
+        if (attributes.size() < DATA_OFFSET) {
+            logger.fine("status file " + path + " too short");
+            buffer = null;
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, attributes.size());
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+        }
+        fileKey = key;
+        lastSequence = -1;
+        logger.fine("mapped status file " + path);
+    }
+
+    /**
+     * Read status when sequence changed.
+     */
+    private void read(long start) {
+        for (int attempt = 0; attempt < READ_ATTEMPTS; attempt++) {
+            final long sequence = buffer.getLong(SEQUENCE_OFFSET);
+            if (sequence == lastSequence) {
+                return;
+            }
+            if ((sequence & 1) != 0) {
+                //writer is writing
+                Thread.yield();
+                continue;
+            }
+            fullFence();
+            final int length = buffer.getInt(LENGTH_OFFSET);
+            final byte[] status = length < 0 || length > buffer.capacity() - DATA_OFFSET
+                    ? null : new byte[Math.min(length, maxSize)];
+            if (status != null) {
+                for (int i = 0; i < status.length; i++) {
+                    status[i] = buffer.get(DATA_OFFSET + i);
+                }
+            }
+            fullFence();
+            if (buffer.getLong(SEQUENCE_OFFSET) != sequence) {
+                //torn read
+                continue;
+            }
+            if (status == null) {
+                logger.fine("invalid status length " + length + " in " + path);
+                return;
+            }
+            lastSequence = sequence;
+            metrics.sourceRead(start);
+            publishStatus(status.length == 0 ? null : status);
+            return;
+        }
+    }
+
+    /**
+     * Volatile write followed by volatile read: reads before cannot move after it and reads after cannot move before it.
+     */
+    private long fullFence() {
+        fence = 0;
+        return fence;
+    }
+
+    /**
+     * Publish status when changed.
+     *
+     * @param status reply; <code>null</code> = no status
+     */
+    private void publishStatus(byte[] status) {
+        if (!published || !Arrays.equals(status, lastStatus)) {
+            published = true;
+            lastStatus = status;
+            publisher.accept(status == null ? null : ResponseSnapshot.of(status));
+        }
+    }
+}
@@ -0,0 +1,341 @@
+package eu.lmc.wildfly.haproxy.server;
+
+import org.jboss.threads.JBossThreadFactory;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static org.xnio.IoUtils.safeClose;
+
+/**
+ * Agent server on its own IO thread (plain NIO selector), for servers without XNIO worker.
+ * <p/>
+ * Checks do not share IO threads with the application: when IO threads of application workers stall under overload,
+ * the check is still answered at once, and the overload can be reported as low weight (e.g. by <code>worker:</code>
+ * source) instead of check timeout that marks the node down. The thread runs with maximum priority.
+ * <p/>
+ * Behaves as {@link XnioAgentCheckServer}: socket options, admission control, <code>agent-send</code> dispatch, peer
+ * rules and timeout of check are the same.
+ */
+class NioAgentCheckServer extends AbstractAgentCheckServer {
+
+    private final static Logger logger = Logger.getLogger(NioAgentCheckServer.class.getName());
+
+    /**
+     * Source definition at start, see {@link StateSources}; might be replaced by {@link #startSource(String)}.
+     */
+    protected final String sourceDefinition;
+
+    /**
+     * Checks waiting for read or write, in order of their deadlines (timeout is the same for all).
+     */
+    private final ArrayDeque<Check> pending = new ArrayDeque<>();
+
+    private Selector selector;
+    private ServerSocketChannel serverChannel;
+    private Thread ioThread;
+    private volatile boolean running;
+
+    NioAgentCheckServer(String sourceDefinition) {
+        this.sourceDefinition = sourceDefinition;
+    }
+
+    @Override
+    public void start(InetAddress listenAddress, int port) throws IOException {
+        scheduler = Executors.newSingleThreadScheduledExecutor(new JBossThreadFactory(null, true, null, "haproxyAgent-%i", null, null));
+        publish(null);
+        startSource(sourceDefinition);
+
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        try {
+            if (getReuseAddress() != null) {
+                serverChannel.setOption(StandardSocketOptions.SO_REUSEADDR, getReuseAddress());
+            }
+            if (getReceiveBuffer() > 0) {
+                serverChannel.setOption(StandardSocketOptions.SO_RCVBUF, getReceiveBuffer());
+            }
+            serverChannel.bind(new InetSocketAddress(listenAddress, port), Math.max(0, getBacklog()));
+            serverChannel.configureBlocking(false);
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        } catch (IOException e) {
+            safeClose(serverChannel);
+            safeClose(selector);
+            throw e;
+        }
+        running = true;
+        ioThread = new JBossThreadFactory(null, true, Thread.MAX_PRIORITY, "haproxyAgent-io-" + port, null, null)
+                .newThread(this::run);
+        ioThread.start();
+
+        logger.log(Level.INFO, "listening on " + serverChannel.getLocalAddress() + " (dedicated IO thread)");
+    }
+
+    /**
+     * Port the server listens on (bound port, when started with port 0).
+     */
+    int getLocalPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        if (selector != null) {
+            selector.wakeup();
+        }
+        if (ioThread != null) {
+            try {
+                ioThread.join(TimeUnit.SECONDS.toMillis(1));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        safeClose(serverChannel);
+        safeClose(selector);
+        closeSource();
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+    }
+
+    private void run() {
+        while (running) {
+            try {
+                final Check first = pending.peekFirst();
+                if (first == null) {
+                    selector.select();
+                } else {
+                    final long wait = first.deadline - System.nanoTime();
+                    if (wait <= 0) {
+                        selector.selectNow();
+                    } else {
+                        //round up: select(0) would wait forever
+                        selector.select(TimeUnit.NANOSECONDS.toMillis(wait) + 1);
+                    }
+                }
+                final Iterator<SelectionKey> selected = selector.selectedKeys().iterator();
+                while (selected.hasNext()) {
+                    final SelectionKey key = selected.next();
+                    selected.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                    } else if (key.isReadable()) {
+                        ((Check) key.attachment()).read();
+                    } else if (key.isWritable()) {
+                        ((Check) key.attachment()).write();
+                    }
+                }
+                expire(System.nanoTime());
+            } catch (IOException | RuntimeException e) {
+                logger.log(Level.WARNING, "agent IO thread failed", e);
+            }
+        }
+        for (SelectionKey key : selector.keys()) {
+            if (key.attachment() instanceof Check) {
+                ((Check) key.attachment()).close();
+            }
+        }
+    }
+
+    private void accept() {
+        for (int i = 0; i < XnioAgentCheckServer.ACCEPT_BATCH; i++) {
+            final SocketChannel channel;
+            final SocketAddress peer;
+            try {
+                if ((channel = serverChannel.accept()) == null) {
+                    break;
+                }
+                peer = channel.getRemoteAddress();
+                channel.configureBlocking(false);
+            } catch (IOException e) {
+                logger.log(Level.FINE, "failed to accept", e);
+                break;
+            }
+            if (!admit(peer)) {
+                reject(channel);
+                continue;
+            }
+            final Check check = new Check(channel, peerRule(peer));
+            try {
+                if (getTcpNoDelay() != null) {
+                    channel.setOption(StandardSocketOptions.TCP_NODELAY, getTcpNoDelay());
+                }
+                if (getSendBuffer() > 0) {
+                    channel.setOption(StandardSocketOptions.SO_SNDBUF, getSendBuffer());
+                }
+                if (isCloseAbort()) {
+                    channel.setOption(StandardSocketOptions.SO_LINGER, 0);
+                }
+                if (getDispatch() != null) {
+                    //backend is chosen by agent-send string: read it first
+                    check.await(SelectionKey.OP_READ);
+                } else {
+                    check.respond(reply(null, check.rule));
+                }
+            } catch (IOException e) {
+                logger.log(Level.FINE, "check failed", e);
+                check.close();
+            }
+        }
+    }
+
+    /**
+     * Connection over limits: cheap reply (when configured) or abortive close, see {@link AdmissionControl}.
+     */
+    private void reject(SocketChannel channel) {
+        final ResponseSnapshot reply = getOverloadResponse();
+        try {
+            if (reply == null) {
+                channel.setOption(StandardSocketOptions.SO_LINGER, 0);
+            } else {
+                channel.write(reply.duplicate());
+            }
+        } catch (IOException e) {
+            logger.log(Level.FINE, "failed to reject connection", e);
+        }
+        safeClose(channel);
+    }
+
+    /**
+     * Close checks past their deadline: send reply to unknown backend when request was not read, close when reply
+     * was not written.
+     */
+    private void expire(long now) {
+        Check check;
+        while ((check = pending.peekFirst()) != null && (check.done || now - check.deadline >= 0)) {
+            pending.pollFirst();
+            if (!check.done) {
+                check.timeout();
+            }
+        }
+    }
+
+    /**
+     * One check connection.
+     */
+    private final class Check {
+
+        private final SocketChannel channel;
+        private final PeerRules.Rule rule;
+        private ByteBuffer request;
+        private ByteBuffer response;
+        private SelectionKey key;
+        private long deadline;
+        private boolean done;
+
+        Check(SocketChannel channel, PeerRules.Rule rule) {
+            this.channel = channel;
+            this.rule = rule;
+        }
+
+        /**
+         * Wait for readiness, until the deadline.
+         */
+        void await(int operation) throws IOException {
+            if (key == null) {
+                key = channel.register(selector, operation, this);
+                deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(getTimeoutSeconds());
+                pending.addLast(this);
+            } else {
+                key.interestOps(operation);
+            }
+        }
+
+        void read() {
+            if (request == null) {
+                request = ByteBuffer.allocate(BackendDispatch.MAX_REQUEST);
+            }
+            final int start = request.position();
+            final int read;
+            try {
+                read = channel.read(request);
+            } catch (IOException e) {
+                logger.log(Level.FINE, "failed to read request", e);
+                close();
+                return;
+            }
+            if (isRequestComplete(request, start, read)) {
+                respondToRequest();
+            }
+        }
+
+        private void respondToRequest() {
+            final ByteBuffer received = request == null ? ByteBuffer.allocate(0) : request;
+            received.flip();
+            try {
+                respond(reply(received, rule));
+            } catch (IOException e) {
+                logger.log(Level.FINE, "failed to write response", e);
+                close();
+            }
+        }
+
+        /**
+         * Write the response; continues when socket is writable, when it does not fit socket buffer.
+         */
+        void respond(ResponseSnapshot snapshot) throws IOException {
+            response = snapshot.duplicate();
+            write();
+        }
+
+        void write() {
+            try {
+                channel.write(response);
+                if (response.hasRemaining()) {
+                    //rare: socket buffer full
+                    await(SelectionKey.OP_WRITE);
+                    return;
+                }
+            } catch (IOException e) {
+                logger.log(Level.INFO, "failed to write response", e);
+            }
+            close();
+        }
+
+        void timeout() {
+            if (response == null) {
+                //haproxy sent nothing: reply to unknown backend
+                respondToRequest();
+                if (!done) {
+                    //not written at once, no more time
+                    close();
+                }
+                return;
+            }
+            logger.info("check not finished in " + getTimeoutSeconds() + "s, closing");
+            getMetrics().timeout();
+            close();
+        }
+
+        void close() {
+            if (done) {
+                return;
+            }
+            done = true;
+            if (key != null) {
+                key.cancel();
+            }
+            //before close: peer seeing end of the check sees the slot free
+            getAdmission().release();
+            safeClose(channel);
+        }
+    }
+}
@@ -0,0 +1,181 @@
+package eu.lmc.wildfly.haproxy.server;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+
+/**
+ * Replies depending on address of haproxy asking (<code>peer-rules</code> attribute:
+ * <code>cidr=action;cidr=action</code>), e.g. to send lower weight to load balancers in remote datacenter:
+ * <ul>
+ * <li><code>10.2.0.0/16=25%</code>: weight of the reply is scaled to 25 %,</li>
+ * <li><code>10.3.0.0/16=drain</code>: given reply is sent instead.</li>
+ * </ul>
+ * The most specific prefix wins. Prefixes are compiled into binary trie (one for IPv4, one for IPv6), so lookup
+ * takes at most 32 (128) steps regardless of number of rules. Scaled reply is computed once per change of the reply,
+ * not on every check.
+ */
+class PeerRules {
+
+    static final String SEPARATOR = ";";
+
+    /**
+     * Action of matching rule.
+     */
+    static final class Rule {
+        /**
+         * Weight scale in percent; negative = reply is replaced.
+         */
+        private final int weightPercent;
+        private final ResponseSnapshot reply;
+        /**
+         * Last scaled reply together with the reply it was computed from.
+         */
+        private volatile Scaled last;
+
+        private Rule(int weightPercent, ResponseSnapshot reply) {
+            this.weightPercent = weightPercent;
+            this.reply = reply;
+        }
+
+        /**
+         * Reply to send to the peer.
+         *
+         * @param response reply for other peers
+         */
+        ResponseSnapshot apply(ResponseSnapshot response) {
+            if (reply != null) {
+                return reply;
+            }
+            Scaled result = last;
+            if (result == null || result.base != response) {
+                //benign race: threads computing the same both publish consistent pair
+                result = new Scaled(response, scale(response));
+                last = result;
+            }
+            return result.scaled;
+        }
+
+        private ResponseSnapshot scale(ResponseSnapshot response) {
+            final AgentState state = AgentState.parse(response);
+            final int weight = state.getWeight() >= 0 ? state.getWeight() : 100;
+            int newWeight = (int) Math.round(weight * weightPercent / 100.0);
+            if (newWeight == 0 && weight > 0 && weightPercent > 0) {
+                newWeight = 1;
+            }
+            return state.withWeight(newWeight).toSnapshot();
+        }
+    }
+
+    private static final class Scaled {
+        private final ResponseSnapshot base;
+        private final ResponseSnapshot scaled;
+
+        private Scaled(ResponseSnapshot base, ResponseSnapshot scaled) {
+            this.base = base;
+            this.scaled = scaled;
+        }
+    }
+
+    private final Trie ipv4 = new Trie();
+    private final Trie ipv6 = new Trie();
+
+    /**
+     * Parse <code>cidr=action;cidr=action</code>.
+     */
+    PeerRules(String definition) {
+        for (String rule : definition.split(SEPARATOR)) {
+            if (rule.trim().isEmpty()) {
+                continue;
+            }
+            final int eq = rule.indexOf('=');
+            if (eq <= 0 || eq == rule.length() - 1) {
+                throw new IllegalArgumentException("peer rule must be cidr=action: " + rule);
+            }
+            final String cidr = rule.substring(0, eq).trim();
+            final int slash = cidr.indexOf('/');
+            final byte[] address;
+            if (!cidr.matches("[0-9a-fA-F.:]+(/\\d+)?")) {
+                //literal address only, no DNS lookup
+                throw new IllegalArgumentException("invalid address in peer rule: " + rule);
+            }
+            try {
+                address = InetAddress.getByName(slash < 0 ? cidr : cidr.substring(0, slash)).getAddress();
+            } catch (UnknownHostException e) {
+                throw new IllegalArgumentException("invalid address in peer rule: " + rule);
+            }
+            final int prefix = slash < 0 ? address.length * 8 : Integer.parseInt(cidr.substring(slash + 1));
+            if (prefix < 0 || prefix > address.length * 8) {
+                throw new IllegalArgumentException("invalid prefix length in peer rule: " + rule);
+            }
+            (address.length == 4 ? ipv4 : ipv6).add(address, prefix, action(rule.substring(eq + 1).trim()));
+        }
+    }
+
+    private static Rule action(String action) {
+        if (action.matches("\\d+%")) {
+            return new Rule(Integer.parseInt(action.substring(0, action.length() - 1)), null);
+        }
+        return new Rule(-1, ResponseSnapshot.of(action.endsWith("\n") ? action : action + "\n"));
+    }
+
+    /**
+     * Rule of the longest prefix matching the peer.
+     *
+     * @return rule; <code>null</code> when none matches
+     */
+    Rule find(SocketAddress peer) {
+        if (!(peer instanceof InetSocketAddress) || ((InetSocketAddress) peer).getAddress() == null) {
+            return null;
+        }
+        final byte[] address = ((InetSocketAddress) peer).getAddress().getAddress();
+        return (address.length == 4 ? ipv4 : ipv6).find(address);
+    }
+
+    /**
+     * Binary trie of prefixes in arrays: node <code>n</code> has children <code>children[2n]</code> (bit 0) and
+     * <code>children[2n + 1]</code> (bit 1), 0 = none (root is node 0, never a child).
+     */
+    private static final class Trie {
+        private int[] children = new int[64];
+        private Rule[] rules = new Rule[32];
+        private int size = 1;
+
+        void add(byte[] address, int prefix, Rule rule) {
+            int node = 0;
+            for (int bit = 0; bit < prefix; bit++) {
+                final int child = 2 * node + bit(address, bit);
+                if (children[child] == 0) {
+                    if (size == rules.length) {
+                        rules = Arrays.copyOf(rules, size * 2);
+                        children = Arrays.copyOf(children, size * 4);
+                    }
+                    children[child] = size++;
+                }
+                node = children[child];
+            }
+            rules[node] = rule;
+        }
+
+        Rule find(byte[] address) {
+            int node = 0;
+            Rule found = rules[0];
+            for (int bit = 0; bit < address.length * 8; bit++) {
+                node = children[2 * node + bit(address, bit)];
+                if (node == 0) {
+                    break;
+                }
+                if (rules[node] != null) {
+                    found = rules[node];
+                }
+            }
+            return found;
+        }
+
+        private static int bit(byte[] address, int bit) {
+            return (address[bit >> 3] >> (7 - (bit & 7))) & 1;
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package eu.lmc.wildfly.haproxy.server;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Immutable, pre-encoded response sent to haproxy.
+ * <p/>
+ * Content is held in read-only direct buffer, so writing it to socket is just {@link #duplicate()} and copy
+ * of a few bytes; no encoding or copying into a temporary direct buffer happens on IO thread.
+ */
+final class ResponseSnapshot {
+
+    private final ByteBuffer buffer;
+    private final boolean fallback;
+
+    private ResponseSnapshot(ByteBuffer buffer, boolean fallback) {
+        this.buffer = buffer;
+        this.fallback = fallback;
+    }
+
+    /**
+     * Create snapshot from raw content.
+     *
+     * @param content bytes to send; copied, so caller is free to reuse the array
+     */
+    public static ResponseSnapshot of(byte[] content) {
+        final ByteBuffer direct = ByteBuffer.allocateDirect(content.length);
+        direct.put(content).flip();
+        return new ResponseSnapshot(direct.asReadOnlyBuffer(), false);
+    }
+
+    /**
+     * Create snapshot from text; non-ascii characters are replaced.
+     */
+    public static ResponseSnapshot of(String content) {
+        return of(content.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    /**
+     * Same content, marked as fallback: sent because the source has no state.
+     */
+    public ResponseSnapshot asFallback() {
+        return fallback ? this : new ResponseSnapshot(buffer, true);
+    }
+
+    /**
+     * Whether this is the fallback state (possibly under override), see {@link #asFallback()}.
+     */
+    public boolean isFallback() {
+        return fallback;
+    }
+
+    /**
+     * Fresh view of the content, with its own position and limit.
+     */
+    public ByteBuffer duplicate() {
+        return buffer.duplicate();
+    }
+
+    public int size() {
+        return buffer.remaining();
+    }
+
+    /**
+     * Content as text.
+     */
+    @Override
+    public String toString() {
+        return StandardCharsets.US_ASCII.decode(buffer.duplicate()).toString();
+    }
+}
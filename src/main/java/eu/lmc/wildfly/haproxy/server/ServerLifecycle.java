@@ -0,0 +1,175 @@
+package eu.lmc.wildfly.haproxy.server;
+
+import java.lang.management.CompilationMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Lifecycle of the application server as seen by haproxy: <code>drain</code> while the server is suspended (or
+ * suspending before shutdown), then slow start: weight ramps from <code>slowStartWeight</code> to 100% of weight of
+ * the source, so that cold JIT does not get full traffic at once.
+ * <p/>
+ * Ramp is either timed (<code>slowStartMillis</code>), or driven by JIT: it advances only in intervals when
+ * the compiler is mostly idle ({@link CompilationMXBean}), and ends at latest after twice the slow start time.
+ * <p/>
+ * Kept by the server, so that replacing the source does not restart the ramp; applied by {@link LifecycleSource}.
+ */
+class ServerLifecycle {
+
+    /**
+     * Share of interval spent compiling, below which JIT is considered settled.
+     */
+    static final double JIT_SETTLED = 0.1;
+
+    private final CompilationMXBean compilation = ManagementFactory.getCompilationMXBean();
+
+    private long slowStartNanos;
+    private int slowStartWeight = 10;
+    private boolean slowStartJit;
+
+    private boolean suspended;
+    /**
+     * Ramp progress, 0 - 1; 1 = warm.
+     */
+    private double progress = 1;
+    private long resumedAt;
+    private long lastUpdate;
+    private long lastCompilationMillis = -1;
+
+    private final List<Runnable> listeners = new CopyOnWriteArrayList<>();
+
+    /**
+     * @param slowStartMillis time of ramp after resume; 0 = no ramp
+     */
+    synchronized void setSlowStartMillis(long slowStartMillis) {
+        this.slowStartNanos = TimeUnit.MILLISECONDS.toNanos(slowStartMillis);
+        if (slowStartMillis <= 0) {
+            progress = 1;
+        }
+    }
+
+    long getSlowStartMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(slowStartNanos);
+    }
+
+    /**
+     * @param slowStartWeight weight at start of ramp, percent
+     */
+    synchronized void setSlowStartWeight(int slowStartWeight) {
+        this.slowStartWeight = slowStartWeight;
+    }
+
+    /**
+     * @param slowStartJit whether ramp advances only when JIT compiler is mostly idle
+     */
+    synchronized void setSlowStartJit(boolean slowStartJit) {
+        this.slowStartJit = slowStartJit;
+    }
+
+    /**
+     * Called on change of state (suspend, resume).
+     */
+    void addListener(Runnable listener) {
+        listeners.add(listener);
+    }
+
+    void removeListener(Runnable listener) {
+        listeners.remove(listener);
+    }
+
+    void suspend() {
+        changeState(true, System.nanoTime());
+    }
+
+    void resume() {
+        changeState(false, System.nanoTime());
+    }
+
+    /**
+     * Suspend or resume; on resume the ramp starts.
+     *
+     * @param now current {@link System#nanoTime()}
+     */
+    void changeState(boolean suspend, long now) {
+        synchronized (this) {
+            if (suspended == suspend) {
+                return;
+            }
+            suspended = suspend;
+            if (!suspend && slowStartNanos > 0) {
+                progress = 0;
+                resumedAt = now;
+                lastUpdate = now;
+                lastCompilationMillis = compilationMillis();
+            }
+        }
+        listeners.forEach(Runnable::run);
+    }
+
+    synchronized boolean isSuspended() {
+        return suspended;
+    }
+
+    synchronized boolean isRamping() {
+        return !suspended && progress < 1;
+    }
+
+    /**
+     * Advance the ramp.
+     *
+     * @param now current {@link System#nanoTime()}
+     */
+    synchronized void update(long now) {
+        if (!isRamping()) {
+            return;
+        }
+        if (!slowStartJit || lastCompilationMillis < 0) {
+            progress = Math.min(1, (double) (now - resumedAt) / slowStartNanos);
+        } else {
+            final long compilationMillis = compilationMillis();
+            update(now, compilationMillis - lastCompilationMillis);
+            lastCompilationMillis = compilationMillis;
+        }
+        lastUpdate = now;
+    }
+
+    /**
+     * Advance JIT driven ramp by time since last update, when the compiler was mostly idle.
+     *
+     * @param compiledMillis time spent compiling since last update
+     */
+    void update(long now, long compiledMillis) {
+        final long elapsed = now - lastUpdate;
+        if (elapsed > 0 && TimeUnit.MILLISECONDS.toNanos(compiledMillis) < JIT_SETTLED * elapsed) {
+            progress += (double) elapsed / slowStartNanos;
+        }
+        if (progress >= 1 || now - resumedAt >= 2 * slowStartNanos) {
+            progress = 1;
+        }
+        lastUpdate = now;
+    }
+
+    /**
+     * State of the source adjusted to the lifecycle.
+     *
+     * @param state state of the source; <code>null</code> = none (fallback is sent)
+     */
+    synchronized AgentState apply(AgentState state) {
+        if (suspended) {
+            return (state == null ? AgentState.EMPTY : state).withAdmin(AgentState.Status.DRAIN);
+        }
+        if (state == null || progress >= 1) {
+            return state;
+        }
+        final int sourceWeight = state.getWeight() >= 0 ? state.getWeight() : 100;
+        final double ramp = (slowStartWeight + (100 - slowStartWeight) * progress) / 100;
+        return state.withWeight(Math.max(JvmHealthSource.MIN_WEIGHT, (int) Math.round(sourceWeight * ramp)));
+    }
+
+    private long compilationMillis() {
+        return compilation != null && compilation.isCompilationTimeMonitoringSupported()
+                ? compilation.getTotalCompilationTime() : -1;
+    }
+}
@@ -0,0 +1,141 @@
+package eu.lmc.wildfly.haproxy.server;
+
+import java.util.Objects;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Smooths state of another source, so that noisy source does not make haproxy flap weights and states:
+ * <ul>
+ * <li>weight is exponentially weighted moving average of weights of the source,</li>
+ * <li>weight changes by at most <code>weightStep</code> percent per interval,</li>
+ * <li>state (administrative, operational, fallback) is kept for at least <code>stateDwellMillis</code>.</li>
+ * </ul>
+ * Smoothed state is computed on background schedule (every <code>intervalMillis</code>), so the EWMA does not depend
+ * on how often the source publishes; only changes are published.
+ */
+class SmoothingSource implements StateSource {
+
+    private final StateSource delegate;
+    private final ScheduledExecutorService scheduler;
+    private final long intervalMillis;
+    /**
+     * Weight of new sample in EWMA, 0 - 1.
+     */
+    private final double alpha;
+    private final int weightStep;
+    private final long stateDwellNanos;
+
+    private Consumer<ResponseSnapshot> publisher;
+    private ScheduledFuture<?> updater;
+
+    /**
+     * Last state of the source, <code>null</code> when it has none.
+     */
+    private AgentState raw;
+    private boolean received;
+
+    private boolean published;
+    private AgentState output;
+    private double average = -1;
+    private long stateSince;
+
+    /**
+     * @param smoothing        weight of new sample in EWMA, percent; 100 = no averaging
+     * @param weightStep       maximum weight change per interval, percent
+     * @param stateDwellMillis minimum time state is kept
+     */
+    SmoothingSource(StateSource delegate, ScheduledExecutorService scheduler, long intervalMillis, int smoothing,
+                    int weightStep, long stateDwellMillis) {
+        this.delegate = delegate;
+        this.scheduler = scheduler;
+        this.intervalMillis = intervalMillis;
+        this.alpha = smoothing / 100.0;
+        this.weightStep = weightStep;
+        this.stateDwellNanos = TimeUnit.MILLISECONDS.toNanos(stateDwellMillis);
+    }
+
+    @Override
+    public void start(Consumer<ResponseSnapshot> publisher) {
+        this.publisher = publisher;
+        delegate.start(this::sourceChanged);
+        updater = scheduler.scheduleWithFixedDelay(this::update, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void close() {
+        if (updater != null) {
+            updater.cancel(false);
+        }
+        delegate.close();
+    }
+
+    private synchronized void sourceChanged(ResponseSnapshot snapshot) {
+        raw = snapshot == null ? null : AgentState.parse(snapshot);
+        received = true;
+        if (!published) {
+            //first state is sent at once
+            update(System.nanoTime());
+        }
+    }
+
+    private synchronized void update() {
+        if (received) {
+            update(System.nanoTime());
+        }
+    }
+
+    /**
+     * Compute and publish smoothed state.
+     *
+     * @param now current {@link System#nanoTime()}
+     */
+    void update(long now) {
+        final AgentState next = smooth(raw, now);
+        if (!published || !Objects.equals(next, output)) {
+            published = true;
+            output = next;
+            publisher.accept(next == null ? null : next.toSnapshot());
+        }
+    }
+
+    private AgentState smooth(AgentState state, long now) {
+        if (!published) {
+            stateSince = now;
+            average = state == null ? -1 : state.getWeight();
+            return state;
+        }
+        AgentState next = state;
+        if (!sameStatus(state, output)) {
+            if (now - stateSince < stateDwellNanos) {
+                //too early to change state: keep current one, only weight follows the source
+                next = output == null || state == null || state.getWeight() < 0
+                        ? output : output.withWeight(state.getWeight());
+            } else {
+                stateSince = now;
+            }
+        }
+        if (next == null) {
+            return null;
+        }
+        if (next.getWeight() < 0) {
+            average = -1;
+            return next;
+        }
+        average = average < 0 ? next.getWeight() : average * (1 - alpha) + next.getWeight() * alpha;
+        int weight = (int) Math.round(average);
+        if (output != null && output.getWeight() >= 0) {
+            weight = Math.max(output.getWeight() - weightStep, Math.min(output.getWeight() + weightStep, weight));
+        }
+        return next.withWeight(weight);
+    }
+
+    private static boolean sameStatus(AgentState a, AgentState b) {
+        if (a == null || b == null) {
+            return a == b;
+        }
+        return a.getAdmin() == b.getAdmin() && a.getOperational() == b.getOperational();
+    }
+}
@@ -0,0 +1,231 @@
+package eu.lmc.wildfly.haproxy.server;
+
+import org.jboss.logging.Logger;
+import org.jboss.msc.service.Service;
+import org.jboss.msc.service.ServiceName;
+import org.jboss.msc.service.StartContext;
+import org.jboss.msc.service.StartException;
+import org.jboss.msc.service.StopContext;
+import org.jboss.threads.JBossThreadFactory;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.function.Consumer;
+import java.util.function.BiFunction;
+
+import static org.xnio.IoUtils.safeClose;
+
+/**
+ * Sources shared by servers of the subsystem: servers (and backends) with the same source and the same source
+ * settings subscribe to one running source, so that file or URL is read once, not once per port.
+ * <p/>
+ * Sources are reference counted: created on first {@link #acquire}, closed when the last subscriber closes its
+ * handle. New subscriber gets the last state of the source at once. Shared sources run on scheduler of this service,
+ * so they outlive the server that created them; their reads, errors and timeouts are recorded to metrics of all
+ * servers subscribed at the moment.
+ * <p/>
+ * Lifecycle is bound to the subsystem.
+ */
+public class SourceRegistryService implements Service<SourceRegistryService> {
+
+    public static final ServiceName SERVICE_NAME = ServiceName.JBOSS.append("haproxy-agent-source-registry");
+
+    private final Logger logger = Logger.getLogger(SourceRegistryService.class);
+
+    private final Map<String, Entry> entries = new HashMap<>();
+    private ScheduledExecutorService scheduler;
+
+    @Override
+    public SourceRegistryService getValue() throws IllegalStateException, IllegalArgumentException {
+        return this;
+    }
+
+    @Override
+    public void start(StartContext context) throws StartException {
+        start(Executors.newSingleThreadScheduledExecutor(new JBossThreadFactory(null, true, null, "haproxyAgentShared-%i", null, null)));
+    }
+
+    synchronized void start(ScheduledExecutorService scheduler) {
+        this.scheduler = scheduler;
+    }
+
+    @Override
+    public void stop(StopContext context) {
+        final List<Entry> running;
+        synchronized (this) {
+            running = new ArrayList<>(entries.values());
+            entries.clear();
+        }
+        for (Entry entry : running) {
+            safeClose(entry.source);
+        }
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+    }
+
+    /**
+     * Handle of shared source of given key; source is created by <code>factory</code> when there is none.
+     *
+     * @param key     normalized definition of the source and settings it depends on
+     * @param factory creates the source with given scheduler and metrics; the metrics pass records to all subscribers
+     * @param metrics metrics of the subscriber: source type is copied to them, source records to them while subscribed
+     * @return handle: {@link StateSource#start} subscribes to the shared source, {@link StateSource#close()}
+     * unsubscribes
+     */
+    synchronized StateSource acquire(String key, BiFunction<ScheduledExecutorService, AgentMetrics, StateSource> factory,
+                                     AgentMetrics metrics) {
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            final SubscriberMetrics sourceMetrics = new SubscriberMetrics();
+            entry = new Entry(key, factory.apply(scheduler, sourceMetrics), sourceMetrics);
+            entries.put(key, entry);
+            logger.debug("shared source created: " + key);
+        }
+        metrics.setSourceType(entry.metrics.getSourceType());
+        entry.references++;
+        return new Handle(entry, metrics);
+    }
+
+    /**
+     * Number of running shared sources.
+     */
+    synchronized int size() {
+        return entries.size();
+    }
+
+    private synchronized boolean release(Entry entry) {
+        if (--entry.references > 0) {
+            return false;
+        }
+        if (entries.get(entry.key) == entry) {
+            entries.remove(entry.key);
+        }
+        return true;
+    }
+
+    /**
+     * Running source with its subscribers.
+     */
+    private static class Entry {
+        final String key;
+        final StateSource source;
+        final SubscriberMetrics metrics;
+        final List<Consumer<ResponseSnapshot>> subscribers = new CopyOnWriteArrayList<>();
+        /**
+         * Guarded by registry.
+         */
+        int references;
+        private boolean started;
+        private boolean published;
+        private ResponseSnapshot last;
+
+        Entry(String key, StateSource source, SubscriberMetrics metrics) {
+            this.key = key;
+            this.source = source;
+            this.metrics = metrics;
+        }
+
+        synchronized void subscribe(Consumer<ResponseSnapshot> subscriber) {
+            subscribers.add(subscriber);
+            if (!started) {
+                started = true;
+                source.start(this::publish);
+            } else if (published) {
+                subscriber.accept(last);
+            }
+        }
+
+        synchronized void unsubscribe(Consumer<ResponseSnapshot> subscriber) {
+            subscribers.remove(subscriber);
+        }
+
+        private synchronized void publish(ResponseSnapshot snapshot) {
+            published = true;
+            last = snapshot;
+            for (Consumer<ResponseSnapshot> subscriber : subscribers) {
+                subscriber.accept(snapshot);
+            }
+        }
+    }
+
+    /**
+     * Metrics the shared source records to: forwarded to metrics of current subscribers.
+     */
+    private static class SubscriberMetrics extends AgentMetrics {
+        private final List<AgentMetrics> subscribers = new CopyOnWriteArrayList<>();
+
+        @Override
+        void httpError() {
+            for (AgentMetrics metrics : subscribers) {
+                metrics.httpError();
+            }
+        }
+
+        @Override
+        void timeout() {
+            for (AgentMetrics metrics : subscribers) {
+                metrics.timeout();
+            }
+        }
+
+        @Override
+        void execFailure() {
+            for (AgentMetrics metrics : subscribers) {
+                metrics.execFailure();
+            }
+        }
+
+        @Override
+        void sourceRead(long startNanos) {
+            for (AgentMetrics metrics : subscribers) {
+                metrics.sourceRead(startNanos);
+            }
+        }
+    }
+
+    /**
+     * Subscription of one server to shared source.
+     */
+    private class Handle implements StateSource {
+        private final Entry entry;
+        private final AgentMetrics metrics;
+        private Consumer<ResponseSnapshot> publisher;
+        private boolean closed;
+
+        Handle(Entry entry, AgentMetrics metrics) {
+            this.entry = entry;
+            this.metrics = metrics;
+        }
+
+        @Override
+        public void start(Consumer<ResponseSnapshot> publisher) {
+            this.publisher = publisher;
+            //before subscribing: first source starts with a read
+            entry.metrics.subscribers.add(metrics);
+            entry.subscribe(publisher);
+        }
+
+        @Override
+        public void close() {
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+            }
+            if (publisher != null) {
+                entry.unsubscribe(publisher);
+                entry.metrics.subscribers.remove(metrics);
+            }
+            if (release(entry)) {
+                safeClose(entry.source);
+            }
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package eu.lmc.wildfly.haproxy.server;
+
+import java.io.Closeable;
+import java.util.function.Consumer;
+
+/**
+ * Source of agent state: something that produces {@link ResponseSnapshot} whenever the state changes.
+ * <p/>
+ * Sources do their work (file reading, remote calls...) outside of IO threads; check itself only writes
+ * the last published snapshot.
+ */
+interface StateSource extends Closeable {
+
+    /**
+     * Start producing state.
+     *
+     * @param publisher consumer of new states; <code>null</code> means the source has no state to offer
+     *                  (and default should be used)
+     */
+    void start(Consumer<ResponseSnapshot> publisher);
+
+    @Override
+    void close();
+}
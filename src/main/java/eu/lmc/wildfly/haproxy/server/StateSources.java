@@ -0,0 +1,206 @@
+package eu.lmc.wildfly.haproxy.server;
+
+import java.io.File;
+import java.net.MalformedURLException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * Creates {@link StateSource} from <code>source</code> attribute of server:
+ * <ul>
+ * <li><code>http://...</code>, <code>https://...</code>: URL polled in background</li>
+ * <li><code>jvm:</code>: weight computed from JVM health</li>
+ * <li><code>worker:name?params</code>: weight computed from saturation of XNIO worker task pool</li>
+ * <li><code>cgroup:dir?params</code>: weight computed from CPU throttling and memory pressure of control group</li>
+ * <li><code>deployment:name</code>: status of {@link eu.lmc.wildfly.haproxy.api.AgentStatusProvider} of application</li>
+ * <li><code>exec:command args...</code>: output of command run in background</li>
+ * <li><code>mmap:path?params</code>: status written by external process to memory-mapped file</li>
+ * <li><code>composite:source|source|...</code>: merged state of several sources</li>
+ * <li>anything else: file</li>
+ * </ul>
+ * Base source is shared by servers with the same source and source settings when the server has
+ * {@link SourceRegistryService}. Source might be wrapped by {@link SmoothingSource} (server has smoothing configured) and
+ * {@link AdaptiveMaxconnSource} (server has <code>adaptive-maxconn</code>); {@link LifecycleSource} (drain while
+ * suspended, slow start) is always the last stage.
+ */
+final class StateSources {
+
+    static final String JVM_PREFIX = "jvm:";
+
+    private StateSources() {
+    }
+
+    /**
+     * @param source    source definition
+     * @param server    settings of the server (sizes, intervals, metrics)
+     * @param scheduler scheduler for background work of the source
+     */
+    static StateSource create(String source, AbstractAgentCheckServer server, ScheduledExecutorService scheduler) {
+        final SourceRegistryService registry = server.getSourceRegistry();
+        final String definition = source.trim();
+        StateSource stateSource = registry == null ? createSource(definition, server, scheduler, server.getMetrics())
+                : registry.acquire(sharedKey(definition, server),
+                (shared, metrics) -> createSource(definition, server, shared, metrics), server.getMetrics());
+        if (server.isSmoothing()) {
+            stateSource = new SmoothingSource(stateSource, scheduler, server.getRefreshIntervalMillis(),
+                    server.getWeightSmoothing(), server.getWeightStep(), server.getStateDwellMillis());
+        }
+        if (server.getAdaptiveMaxconn() != null) {
+            stateSource = new AdaptiveMaxconnSource(stateSource, AdaptiveConcurrencyLimit.get(server.getAdaptiveMaxconn()),
+                    scheduler, server.getMetrics(), server.getRefreshIntervalMillis());
+        }
+        return new LifecycleSource(stateSource, server.getLifecycle(), scheduler, server.getRefreshIntervalMillis());
+    }
+
+    /**
+     * @param metrics metrics the source records to: of the server, or of subscribers of shared source
+     */
+    private static StateSource createSource(String source, AbstractAgentCheckServer server, ScheduledExecutorService scheduler,
+                                            AgentMetrics metrics) {
+        if (source.startsWith(CompositeSource.PREFIX)) {
+            final List<StateSource> sources = new ArrayList<>();
+            final List<Boolean> optional = new ArrayList<>();
+            final String parts = source.substring(CompositeSource.PREFIX.length());
+            for (String part : parts.split(Pattern.quote(CompositeSource.SEPARATOR))) {
+                if (!part.trim().isEmpty()) {
+                    final String definition = CompositeSource.definition(part.trim());
+                    sources.add(createSource(definition, server, scheduler, metrics));
+                    optional.add(CompositeSource.isOptional(part.trim(), filePath(definition) != null));
+                }
+            }
+            final boolean[] optionalParts = new boolean[optional.size()];
+            for (int i = 0; i < optionalParts.length; i++) {
+                optionalParts[i] = optional.get(i);
+            }
+            metrics.setSourceType("composite");
+            return new CompositeSource(sources, optionalParts, AgentState.parse(server.getFallbackResponse()));
+        }
+        if (source.startsWith(JVM_PREFIX)) {
+            metrics.setSourceType("jvm");
+            return new JvmHealthSource(scheduler, metrics, server.getRefreshIntervalMillis());
+        }
+        if (source.startsWith(DeploymentStatusSource.PREFIX)) {
+            metrics.setSourceType("deployment");
+            return new DeploymentStatusSource(source.substring(DeploymentStatusSource.PREFIX.length()), scheduler, metrics,
+                    server.getMaxSize(), server.getRefreshIntervalMillis(), server.getMaxStaleMillis(),
+                    TimeUnit.SECONDS.toMillis(server.getTimeoutSeconds()));
+        }
+        if (source.startsWith(CgroupSource.PREFIX)) {
+            metrics.setSourceType("cgroup");
+            return new CgroupSource(source.substring(CgroupSource.PREFIX.length()), scheduler, metrics,
+                    server.getRefreshIntervalMillis());
+        }
+        if (source.startsWith(MappedStatusSource.PREFIX)) {
+            metrics.setSourceType("mmap");
+            return new MappedStatusSource(source.substring(MappedStatusSource.PREFIX.length()), scheduler, metrics,
+                    server.getMaxSize(), server.getRefreshIntervalMillis());
+        }
+        if (source.startsWith(ExecSource.PREFIX)) {
+            metrics.setSourceType("exec");
+            return new ExecSource(source.substring(ExecSource.PREFIX.length()), scheduler, metrics,
+                    server.getMaxSize(), server.getRefreshIntervalMillis(), server.getMaxStaleMillis(),
+                    TimeUnit.SECONDS.toMillis(server.getTimeoutSeconds()));
+        }
+        if (source.startsWith(WorkerPoolSource.PREFIX)) {
+            metrics.setSourceType("worker");
+            return new WorkerPoolSource(source.substring(WorkerPoolSource.PREFIX.length()), scheduler, metrics,
+                    server.getRefreshIntervalMillis());
+        }
+        final URI uri = toURI(source);
+        if (uri != null) {
+            metrics.setSourceType("http");
+            return new HttpPollingSource(uri, server.getHttpClient(), scheduler, metrics, server.getMaxSize(), server.getRefreshIntervalMillis(),
+                    server.getMaxStaleMillis(), TimeUnit.SECONDS.toMillis(server.getTimeoutSeconds()));
+        }
+        metrics.setSourceType("file");
+        return new CachedFileSource(new File(source).toPath(), metrics, server.getMaxSize(), server.getRefreshIntervalMillis());
+    }
+
+    /**
+     * Key of shared source: normalized definition and settings the source depends on.
+     *
+     * @param source trimmed source definition
+     */
+    static String sharedKey(String source, AbstractAgentCheckServer server) {
+        final StringBuilder key = new StringBuilder();
+        if (source.startsWith(CompositeSource.PREFIX)) {
+            key.append(CompositeSource.PREFIX);
+            for (String part : source.substring(CompositeSource.PREFIX.length()).split(Pattern.quote(CompositeSource.SEPARATOR))) {
+                if (!part.trim().isEmpty()) {
+                    key.append(part.trim()).append(CompositeSource.SEPARATOR);
+                }
+            }
+            //sources without state vote with it
+            key.append('\n').append(server.getFallbackResponse().toString().trim());
+        } else {
+            key.append(source);
+        }
+        return key.append('\n').append(server.getMaxSize()).append(',').append(server.getRefreshIntervalMillis())
+                .append(',').append(server.getMaxStaleMillis()).append(',').append(server.getTimeoutSeconds()).toString();
+    }
+
+    /**
+     * File of file source.
+     *
+     * @return path; <code>null</code> when the source is not file
+     */
+    static Path filePath(String source) {
+        if (source.startsWith(CompositeSource.PREFIX) || source.startsWith(JVM_PREFIX)
+                || source.startsWith(DeploymentStatusSource.PREFIX) || source.startsWith(WorkerPoolSource.PREFIX)
+                || source.startsWith(ExecSource.PREFIX) || source.startsWith(CgroupSource.PREFIX)
+                || source.startsWith(MappedStatusSource.PREFIX) || toURI(source) != null) {
+            return null;
+        }
+        return new File(source).toPath();
+    }
+
+    /**
+     * Whether the source (or any part of composite source) is URL.
+     */
+    static boolean usesHttp(String source) {
+        if (source.startsWith(CompositeSource.PREFIX)) {
+            final String parts = source.substring(CompositeSource.PREFIX.length());
+            for (String part : parts.split(Pattern.quote(CompositeSource.SEPARATOR))) {
+                if (toURI(CompositeSource.definition(part.trim())) != null) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        return toURI(source) != null;
+    }
+
+    /**
+     * Parse parameters of source definition: <code>name=value&amp;name=value</code>.
+     */
+    static Map<String, String> parameters(String query) {
+        final Map<String, String> params = new HashMap<>();
+        for (String param : query.split("&")) {
+            if (!param.isEmpty()) {
+                final int eq = param.indexOf('=');
+                params.put(eq < 0 ? param : param.substring(0, eq), eq < 0 ? "" : param.substring(eq + 1));
+            }
+        }
+        return params;
+    }
+
+    private static URI toURI(String source) {
+        if (source.matches("^https?://.*")) {
+            try {
+                return new URL(source).toURI();
+            } catch (URISyntaxException | MalformedURLException ignored) {
+                //ok, it's obviously not URL
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,223 @@
+package eu.lmc.wildfly.haproxy.server;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Worker pool source (<code>worker:name?params</code>): weight computed from saturation of task pool of XNIO worker
+ * (the one undertow uses for requests, usually <code>default</code>).
+ * <ul>
+ * <li>pool sizes and queue size are read from XnioWorkerMXBean,</li>
+ * <li>busy task threads are counted from thread states: XNIO 3.3 does not report them. Running or blocked thread is
+ * busy; waiting thread is idle when it waits in {@link java.util.concurrent.ThreadPoolExecutor} <code>getTask</code>,
+ * which only its stack tells.</li>
+ * </ul>
+ * Thread states are read without stack traces, which does not stop the application. Stacks of waiting threads are
+ * walked (at safepoint) at most every <code>stack-interval</code> ms; in between, thread found idle by the last walk
+ * is idle while it waits, other waiting threads are busy.
+ * <p/>
+ * Weight drops linearly from 100% at <code>busy-low</code> percent of busy threads to minimum at <code>busy-high</code>
+ * percent. When <code>drain-queue</code> tasks wait in queue (all threads busy), <code>drain</code> is sent until the
+ * queue is empty and utilization drops below <code>busy-low</code> again.
+ */
+class WorkerPoolSource implements StateSource {
+
+    private final static Logger logger = Logger.getLogger(WorkerPoolSource.class.getName());
+
+    static final String PREFIX = "worker:";
+
+    private static final String[] ATTRIBUTES = {"MaxWorkerPoolSize", "WorkerQueueSize"};
+    /**
+     * Stack depth sufficient to find <code>getTask</code> in stack of idle pool thread.
+     */
+    private static final int STACK_DEPTH = 12;
+
+    private final String workerName;
+    private final double busyLow;
+    private final double busyHigh;
+    private final int drainQueue;
+    private final ScheduledExecutorService scheduler;
+    private final AgentMetrics metrics;
+    private final long intervalMillis;
+    private final long stackIntervalNanos;
+
+    private final MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+    private final ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+    private final String threadPrefix;
+
+    private Consumer<ResponseSnapshot> publisher;
+    private ScheduledFuture<?> sampler;
+    private ObjectName objectName;
+    private boolean draining;
+    private AgentState lastState;
+    private boolean published;
+    /**
+     * Ids of task threads idle at the last stack walk.
+     */
+    private Set<Long> idleThreads = new HashSet<>();
+    private boolean walked;
+    private long lastStackWalk;
+
+    /**
+     * @param definition worker name and parameters: <code>busy-low</code> (percent, default 75),
+     *                   <code>busy-high</code> (percent, default 100), <code>drain-queue</code> (tasks, default: max
+     *                   pool size), <code>stack-interval</code> (ms, default 10000)
+     */
+    WorkerPoolSource(String definition, ScheduledExecutorService scheduler, AgentMetrics metrics, long intervalMillis) {
+        final int query = definition.indexOf('?');
+        this.workerName = query < 0 ? definition : definition.substring(0, query);
+        final Map<String, String> params = StateSources.parameters(query < 0 ? "" : definition.substring(query + 1));
+        this.busyLow = Integer.parseInt(params.getOrDefault("busy-low", "75")) / 100.0;
+        this.busyHigh = Integer.parseInt(params.getOrDefault("busy-high", "100")) / 100.0;
+        this.drainQueue = Integer.parseInt(params.getOrDefault("drain-queue", "0"));
+        this.stackIntervalNanos = TimeUnit.MILLISECONDS.toNanos(Long.parseLong(params.getOrDefault("stack-interval", "10000")));
+        if (busyHigh <= busyLow) {
+            throw new IllegalArgumentException("busy-high must be above busy-low: " + definition);
+        }
+        this.scheduler = scheduler;
+        this.metrics = metrics;
+        this.intervalMillis = intervalMillis;
+        this.threadPrefix = workerName + " task-";
+    }
+
+    @Override
+    public void start(Consumer<ResponseSnapshot> publisher) {
+        this.publisher = publisher;
+        sample();
+        sampler = scheduler.scheduleWithFixedDelay(this::sample, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void close() {
+        if (sampler != null) {
+            sampler.cancel(false);
+        }
+    }
+
+    private void sample() {
+        final long start = System.nanoTime();
+        try {
+            if (objectName == null && (objectName = findWorker()) == null) {
+                //worker not started (yet)
+                publish(null);
+                return;
+            }
+            final AttributeList attributes = mbeanServer.getAttributes(objectName, ATTRIBUTES);
+            final int maxPoolSize = (Integer) ((Attribute) attributes.get(0)).getValue();
+            final int queueSize = (Integer) ((Attribute) attributes.get(1)).getValue();
+            final int busy = countBusyThreads(start);
+            metrics.sourceRead(start);
+            final AgentState state = state(busy, maxPoolSize, queueSize);
+            if (logger.isLoggable(Level.FINE)) {
+                logger.fine("worker " + workerName + ": busy " + busy + "/" + maxPoolSize + ", queue " + queueSize + " => " + state);
+            }
+            publish(state);
+        } catch (JMException | RuntimeException e) {
+            logger.log(Level.WARNING, "failed to sample worker " + workerName, e);
+            objectName = null;
+            publish(null);
+        }
+    }
+
+    /**
+     * Compute state from pool saturation; keeps drain state (hysteresis).
+     */
+    AgentState state(int busy, int maxPoolSize, int queueSize) {
+        final double utilization = maxPoolSize > 0 ? Math.min(1.0, (double) busy / maxPoolSize) : 0;
+        if (draining) {
+            draining = queueSize > 0 || utilization >= busyLow;
+        } else {
+            draining = queueSize >= (drainQueue > 0 ? drainQueue : Math.max(1, maxPoolSize));
+        }
+        if (draining) {
+            return new AgentState(AgentState.Status.DRAIN, null, -1, -1, null);
+        }
+        final int weight = (int) Math.round(100 * JvmHealthSource.linear(utilization, busyLow, busyHigh));
+        return new AgentState(AgentState.Status.READY, null, Math.max(JvmHealthSource.MIN_WEIGHT, weight), -1, null);
+    }
+
+    private void publish(AgentState state) {
+        if (!published || !Objects.equals(state, lastState)) {
+            published = true;
+            lastState = state;
+            publisher.accept(state == null ? null : state.toSnapshot());
+        }
+    }
+
+    private ObjectName findWorker() throws JMException {
+        final Set<ObjectName> names = mbeanServer.queryNames(
+                new ObjectName("org.xnio:type=Xnio,provider=*,worker=" + ObjectName.quote(workerName)), null);
+        if (names.isEmpty()) {
+            logger.fine("xnio worker " + workerName + " not found");
+            return null;
+        }
+        return names.iterator().next();
+    }
+
+    /**
+     * Count task threads of the worker that do not wait for task.
+     *
+     * @param now current {@link System#nanoTime()}
+     */
+    int countBusyThreads(long now) {
+        final ThreadInfo[] all = threadMXBean.getThreadInfo(threadMXBean.getAllThreadIds(), 0);
+        final long[] waiting = new long[all.length];
+        int count = 0;
+        int busy = 0;
+        for (ThreadInfo info : all) {
+            if (info == null || !info.getThreadName().startsWith(threadPrefix)) {
+                continue;
+            }
+            final Thread.State state = info.getThreadState();
+            if (state == Thread.State.WAITING || state == Thread.State.TIMED_WAITING) {
+                waiting[count++] = info.getThreadId();
+            } else {
+                busy++;
+            }
+        }
+        if (count > 0 && (!walked || now - lastStackWalk >= stackIntervalNanos)) {
+            walked = true;
+            lastStackWalk = now;
+            final Set<Long> idle = new HashSet<>();
+            for (ThreadInfo info : threadMXBean.getThreadInfo(Arrays.copyOf(waiting, count), STACK_DEPTH)) {
+                if (info != null && isIdle(info.getStackTrace())) {
+                    idle.add(info.getThreadId());
+                }
+            }
+            idleThreads = idle;
+        }
+        for (int i = 0; i < count; i++) {
+            if (!idleThreads.contains(waiting[i])) {
+                busy++;
+            }
+        }
+        return busy;
+    }
+
+    private static boolean isIdle(StackTraceElement[] stack) {
+        for (StackTraceElement element : stack) {
+            if ("getTask".equals(element.getMethodName())
+                    && "java.util.concurrent.ThreadPoolExecutor".equals(element.getClassName())) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -1,39 +1,25 @@
 package eu.lmc.wildfly.haproxy.server;
 
-import org.apache.http.HttpException;
-import org.apache.http.HttpResponse;
-import org.apache.http.StatusLine;
-import org.apache.http.concurrent.FutureCallback;
-import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
-import org.apache.http.impl.nio.client.HttpAsyncClientBuilder;
-import org.apache.http.nio.IOControl;
-import org.apache.http.nio.client.methods.AsyncByteConsumer;
-import org.apache.http.nio.client.methods.HttpAsyncMethods;
-import org.apache.http.nio.protocol.HttpAsyncRequestProducer;
-import org.apache.http.protocol.HttpContext;
 import org.jboss.threads.JBossThreadFactory;
 import org.xnio.ChannelListener;
-import org.xnio.FileAccess;
 import org.xnio.IoUtils;
 import org.xnio.OptionMap;
+import org.xnio.Options;
 import org.xnio.StreamConnection;
 import org.xnio.Xnio;
+import org.xnio.XnioExecutor;
 import org.xnio.XnioWorker;
 import org.xnio.channels.AcceptingChannel;
 import org.xnio.channels.StreamSinkChannel;
 import org.xnio.conduits.ConduitStreamSinkChannel;
+import org.xnio.conduits.ConduitStreamSourceChannel;
 
-import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
-import java.net.URI;
 import java.nio.ByteBuffer;
-import java.nio.channels.FileChannel;
-import java.nio.channels.WritableByteChannel;
-import java.nio.file.NoSuchFileException;
-import java.util.Optional;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -42,30 +28,31 @@ import static org.xnio.IoUtils.safeClose;
 /**
  * XNIO implementation of haproxy-agent:
  * Start raw TCP socket that writes status from static file (or just default value).
+ * <p/>
+ * Sources publish their state in background (see {@link StateSources}): file content is cached in memory,
+ * URL is polled, so the check itself does no I/O except writing the response.
  */
 class XnioAgentCheckServer extends AbstractAgentCheckServer {
 
     private final static Logger logger = Logger.getLogger(XnioAgentCheckServer.class.getName());
 
-    protected final XnioWorker worker;
     /**
-     * Filename; optional, might be completely skipped.
+     * Connections accepted in one run of accept listener; the rest waits for next run, so that flood of connections
+     * does not keep the IO thread from other channels.
      */
-    protected final Optional<File> filename;
-    protected final Optional<URI> httpUri;
-
-    private AcceptingChannel<StreamConnection> server;
+    static final int ACCEPT_BATCH = 64;
 
+    protected final XnioWorker worker;
     /**
-     * Optional: http client.
+     * Source definition at start, see {@link StateSources}; might be replaced by {@link #startSource(String)}.
      */
-    private CloseableHttpAsyncClient httpAsyncClient;
-    private HttpAsyncRequestProducer httpRequestProducer;
+    protected final String sourceDefinition;
+
+    private AcceptingChannel<StreamConnection> server;
 
-    public XnioAgentCheckServer(XnioWorker worker, Optional<File> filename, Optional<URI> httpUri) {
+    public XnioAgentCheckServer(XnioWorker worker, String sourceDefinition) {
         this.worker = worker;
-        this.filename = filename;
-        this.httpUri = httpUri;
+        this.sourceDefinition = sourceDefinition;
     }
 
     protected XnioWorker getWorker() {
@@ -79,41 +66,24 @@ class XnioAgentCheckServer extends AbstractAgentCheckServer {
     @Override
     public void close() {
         safeClose(server);
-        safeClose(httpAsyncClient);
+        closeSource();
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
     }
 
     @Override
     public void start(InetAddress listenAddress, int port) throws IOException {
+        scheduler = Executors.newSingleThreadScheduledExecutor(new JBossThreadFactory(null, true, null, "haproxyAgent-%i", null, null));
+        publish(null);
+        startSource(sourceDefinition);
 
-        if (httpUri.isPresent()) {
-            httpAsyncClient = HttpAsyncClientBuilder.create()
-                    .disableCookieManagement()
-                    .setThreadFactory(new JBossThreadFactory(null, true, null, "httpAsync-%i", null, null))
-                    .build();
-            httpAsyncClient.start();
-            httpRequestProducer = HttpAsyncMethods.createGet(httpUri.get());
-        }
-
-
-        ChannelListener<StreamSinkChannel> writeListener = channel -> {
-            if (copyFile(channel))
-                return;
-
-            ByteBuffer responseBuffer = ByteBuffer.wrap(DEFAULT_STATE);
-            try {
-                if (logger.isLoggable(Level.FINER)) {
-                    logger.finer("writing: " + responseBuffer);
-                }
-                channel.writeFinal(responseBuffer);
-            } catch (IOException e) {
-                logger.log(Level.INFO, "failed to write response", e);
-                IoUtils.safeClose(channel);
-            }
-        };
+        final AdmissionControl admission = getAdmission();
+        ChannelListener<StreamSinkChannel> writeListener = channel -> respond(channel, reply(null, null));
 
         ChannelListener<AcceptingChannel<StreamConnection>> acceptListener = bindChannel -> {
             // channel is ready to accept zero or more connections
-            while (true) {
+            for (int i = 0; i < ACCEPT_BATCH; i++) {
                 final StreamConnection accepted;
                 try {
                     if ((accepted = bindChannel.accept()) == null)
@@ -121,17 +91,24 @@ class XnioAgentCheckServer extends AbstractAgentCheckServer {
                 } catch (IOException ignored) {
                     break;
                 }
-                if (logger.isLoggable(Level.FINE)) {
-                    logger.fine("accepted " + accepted.getPeerAddress());
+                if (!admit(accepted.getPeerAddress())) {
+                    reject(accepted);
+                    continue;
                 }
+                accepted.getCloseSetter().set(x -> admission.release());
+                setConnectionOptions(accepted);
+                final PeerRules.Rule rule = peerRule(accepted.getPeerAddress());
                 final ConduitStreamSinkChannel sinkChannel = accepted.getSinkChannel();
                 //this is important: close the StreamConnection, otherwise the socket hangs half-closed!
                 sinkChannel.getCloseSetter().set(x -> IoUtils.safeClose(accepted));
-                //URI is special because async
-                if (startURI(sinkChannel))
-                    return;
-                else {
-                    sinkChannel.getWriteSetter().set(writeListener);
+                if (getDispatch() != null) {
+                    //backend is chosen by agent-send string: read it first
+                    final ConduitStreamSourceChannel sourceChannel = accepted.getSourceChannel();
+                    sourceChannel.getReadSetter().set(new RequestReader(accepted, rule));
+                    sourceChannel.resumeReads();
+                } else {
+                    sinkChannel.getWriteSetter().set(rule == null ? writeListener
+                            : channel -> respond(channel, reply(null, rule)));
                     sinkChannel.resumeWrites();
                 }
             }
@@ -140,7 +117,7 @@ class XnioAgentCheckServer extends AbstractAgentCheckServer {
         server = worker.createStreamConnectionServer(
                 new InetSocketAddress(listenAddress, port),
                 acceptListener,
-                OptionMap.EMPTY
+                socketOptions()
         );
         // lets start accepting connections
         server.resumeAccepts();
@@ -149,110 +126,158 @@ class XnioAgentCheckServer extends AbstractAgentCheckServer {
     }
 
     /**
-     * File implementation: if present, copy file content to specified channel.
-     *
-     * @param channel channel to write file content to
-     * @return true when copied; false when no file is configured, present or something failed
+     * Connection over limits: cheap reply (when configured) is written at once (whatever does not fit socket buffer is
+     * dropped) and connection is closed; without reply it is closed abortively, leaving no TIME_WAIT.
      */
-    private boolean copyFile(WritableByteChannel channel) {
-        if (!filename.isPresent()) {
-            return false;
-        }
-        try (final FileChannel fc = getXnio().openFile(filename.get(), FileAccess.READ_ONLY)) {
-            final long fileSize = fc.size();
-            if (logger.isLoggable(Level.FINE)) {
-                logger.fine("writing from file: " + filename.get() + " " + fileSize + "B");
+    private void reject(StreamConnection connection) {
+        final ResponseSnapshot reply = getOverloadResponse();
+        if (reply == null) {
+            setCloseAbort(connection);
+        } else {
+            try {
+                connection.getSinkChannel().write(reply.duplicate());
+            } catch (IOException e) {
+                logger.log(Level.FINE, "failed to write reply to rejected connection", e);
             }
-            fc.transferTo(0, Math.min(fileSize, getMaxSize()), channel);
-            fc.close();
-            safeClose(channel);
-            return true;
-        } catch (NoSuchFileException | FileNotFoundException ignored) {
-        } catch (IOException e) {
-            logger.log(Level.INFO, "error reading " + filename, e);
         }
-        return false;
+        safeClose(connection);
     }
 
     /**
-     * URI implementation: if present, copy file content to specified channel.
-     *
-     * @param channel channel to write file content to
-     * @return true when copied; false when no file is configured, present or something failed
+     * Write the response to the check; continues in background, when it does not fit socket buffer.
      */
-    private boolean startURI(StreamSinkChannel channel) {
-        if (httpRequestProducer == null) {
-            return false;
+    private void respond(StreamSinkChannel channel, ResponseSnapshot response) {
+        final AgentMetrics metrics = getMetrics();
+        final ByteBuffer responseBuffer = response.duplicate();
+        if (logger.isLoggable(Level.FINER)) {
+            logger.finer("writing: " + responseBuffer);
         }
+        if (!writeFinal(channel, responseBuffer)) {
+            //rare: socket buffer full, continue with this very buffer, but only until the deadline
+            final XnioExecutor.Key deadline = channel.getIoThread().executeAfter(() -> {
+                logger.info("check not finished in " + getTimeoutSeconds() + "s, closing");
+                metrics.timeout();
+                safeClose(channel);
+            }, getTimeoutSeconds(), TimeUnit.SECONDS);
+            channel.getWriteSetter().set(ch -> {
+                if (writeFinal(ch, responseBuffer)) {
+                    deadline.remove();
+                }
+            });
+            channel.resumeWrites();
+        }
+    }
 
-        AsyncByteConsumer<HttpResponse> consumer = new AsyncByteConsumer<HttpResponse>() {
-            private volatile HttpResponse response;
-            private volatile int count;
-            private volatile boolean stop = false;
+    /**
+     * Reads <code>agent-send</code> line of haproxy (at most {@link BackendDispatch#MAX_REQUEST} bytes) without
+     * blocking, then responds with state of the backend. When haproxy sends nothing until the timeout, reply to
+     * unknown backend is sent.
+     */
+    private final class RequestReader implements ChannelListener<ConduitStreamSourceChannel> {
 
-            @Override
-            protected void onByteReceived(ByteBuffer buf, IOControl ioctrl) throws IOException {
-                if (logger.isLoggable(Level.FINE)) {
-                    logger.fine("onByteReceived: " + buf);
-                }
-                if (stop || !channel.isOpen()) {
-                    ioctrl.shutdown();
-                    return;
-                }
-                count += channel.write(buf);
-                if (buf.remaining() + count > getMaxSize()) {
-                    channel.shutdownWrites();
-                    ioctrl.shutdown();
-                } else {
-                    channel.resumeWrites();
-                }
-            }
+        private final StreamConnection connection;
+        private final PeerRules.Rule rule;
+        private final ByteBuffer request = ByteBuffer.allocate(BackendDispatch.MAX_REQUEST);
+        private final XnioExecutor.Key deadline;
+        private boolean done;
 
-            @Override
-            protected void onResponseReceived(HttpResponse response) throws HttpException, IOException {
-                this.response = response;
-                final StatusLine statusLine = response.getStatusLine();
-                final int statusCode = statusLine.getStatusCode();
-                if (logger.isLoggable(Level.FINE)) {
-                    logger.fine("onResponseReceived: " + response);
-                }
-                if (statusCode >= 300) {
-                    logger.info("non-OK status code received: " + statusCode + " " + statusLine.getReasonPhrase());
-                    if (channel.isOpen()) {
-                        channel.writeFinal(ByteBuffer.wrap(DEFAULT_STATE));
-                        channel.shutdownWrites();
-                    }
-                    stop = true;
-                }
-            }
+        /**
+         * @param rule rule of the peer; <code>null</code> = none
+         */
+        RequestReader(StreamConnection connection, PeerRules.Rule rule) {
+            this.connection = connection;
+            this.rule = rule;
+            this.deadline = connection.getIoThread().executeAfter(this::finish, getTimeoutSeconds(), TimeUnit.SECONDS);
+        }
 
-            @Override
-            protected HttpResponse buildResult(HttpContext context) throws Exception {
-                return response;
+        @Override
+        public void handleEvent(ConduitStreamSourceChannel channel) {
+            final int start = request.position();
+            final int read;
+            try {
+                read = channel.read(request);
+            } catch (IOException e) {
+                logger.log(Level.FINE, "failed to read request", e);
+                deadline.remove();
+                done = true;
+                safeClose(connection);
+                return;
             }
-        };
-
-        final FutureCallback<HttpResponse> callback = new FutureCallback<HttpResponse>() {
-            @Override
-            public void completed(HttpResponse result) {
-                safeClose(channel);
+            if (isRequestComplete(request, start, read)) {
+                deadline.remove();
+                finish();
             }
+        }
 
-            @Override
-            public void failed(Exception ex) {
-                logger.log(Level.INFO, "error reading from http", ex);
-                safeClose(channel);
+        private void finish() {
+            if (done) {
+                return;
             }
+            done = true;
+            connection.getSourceChannel().suspendReads();
+            request.flip();
+            respond(connection.getSinkChannel(), reply(request, rule));
+        }
+    }
 
-            @Override
-            public void cancelled() {
-                logger.log(Level.INFO, "http reading cancelled");
-                safeClose(channel);
+    /**
+     * Options of the listening socket, those not set are left to XNIO defaults.
+     */
+    OptionMap socketOptions() {
+        final OptionMap.Builder options = OptionMap.builder();
+        if (getBacklog() > 0) {
+            options.set(Options.BACKLOG, getBacklog());
+        }
+        if (getReceiveBuffer() > 0) {
+            options.set(Options.RECEIVE_BUFFER, getReceiveBuffer());
+        }
+        if (getReuseAddress() != null) {
+            options.set(Options.REUSE_ADDRESSES, getReuseAddress());
+        }
+        return options.getMap();
+    }
+
+    /**
+     * Options of accepted connection; read for each connection, so that changes apply without reload.
+     */
+    private void setConnectionOptions(StreamConnection connection) {
+        try {
+            if (getTcpNoDelay() != null) {
+                connection.setOption(Options.TCP_NODELAY, getTcpNoDelay());
             }
-        };
-        httpAsyncClient.execute(httpRequestProducer, consumer, callback);
+            if (getSendBuffer() > 0) {
+                connection.setOption(Options.SEND_BUFFER, getSendBuffer());
+            }
+        } catch (IOException e) {
+            logger.log(Level.FINE, "failed to set socket options", e);
+        }
+        if (isCloseAbort()) {
+            setCloseAbort(connection);
+        }
+    }
 
-        return true;
+    private static void setCloseAbort(StreamConnection connection) {
+        try {
+            connection.setOption(Options.CLOSE_ABORT, true);
+        } catch (IOException e) {
+            logger.log(Level.FINE, "failed to set SO_LINGER", e);
+        }
+    }
+
+    /**
+     * Write the response and shut down writes.
+     *
+     * @return true when done (written or failed); false when some data remain to be written
+     */
+    private static boolean writeFinal(StreamSinkChannel channel, ByteBuffer responseBuffer) {
+        try {
+            channel.writeFinal(responseBuffer);
+            return !responseBuffer.hasRemaining();
+        } catch (IOException e) {
+            logger.log(Level.INFO, "failed to write response", e);
+            IoUtils.safeClose(channel);
+            return true;
+        }
     }
 
 }
@@ -97,10 +97,39 @@ public class SubsystemParsingTestCase extends AbstractSubsystemTest {
     public void testParseAndMarshalModel() throws Exception {
         //Parse the subsystem xml and install into the first controller
         String subsystemXml =
-                "<subsystem xmlns=\"" + SubsystemExtension.NAMESPACE + "\">" +
+                "<subsystem xmlns=\"" + SubsystemExtension.NAMESPACE + "\"" +
+                        " http-max-connections=\"10\"" +
+                        " http-max-connections-per-route=\"2\"" +
+                        " http-io-threads=\"2\"" +
+                        " http-keep-alive=\"5000\"" +
+                        ">" +
                         "<server name=\"x1\" source=\"/tmp/wildfly-status-haproxy\"" +
                         " worker=\"w1\"" +
                         " socket-binding=\"haproxy-socket-1\"" +
+                        " refresh-interval=\"500\"" +
+                        " max-stale=\"5000\"" +
+                        " timeout=\"2\"" +
+                        " fallback=\"drain\"" +
+                        " adaptive-maxconn=\"app\"" +
+                        " weight-smoothing=\"30\"" +
+                        " weight-step=\"10\"" +
+                        " state-dwell=\"30000\"" +
+                        " slow-start=\"60000\"" +
+                        " slow-start-weight=\"5\"" +
+                        " slow-start-jit=\"true\"" +
+                        " backlog=\"1024\"" +
+                        " tcp-nodelay=\"true\"" +
+                        " receive-buffer=\"8192\"" +
+                        " send-buffer=\"8192\"" +
+                        " reuse-address=\"true\"" +
+                        " close-abort=\"true\"" +
+                        " backends=\"app1=/tmp/app1-status;app2=jvm:\"" +
+                        " backend-default=\"maint\"" +
+                        " peer-rules=\"10.2.0.0/16=25%;10.3.0.0/16=drain\"" +
+                        " max-connections=\"100\"" +
+                        " peer-rate=\"20\"" +
+                        " peer-burst=\"40\"" +
+                        " overload-reply=\"ready\"" +
                         ">" +
                         "</server>" +
                         "</subsystem>";
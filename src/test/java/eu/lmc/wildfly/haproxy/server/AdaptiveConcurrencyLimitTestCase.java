@@ -0,0 +1,87 @@
+package eu.lmc.wildfly.haproxy.server;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.function.IntConsumer;
+
+/**
+ * Tests gradient concurrency limit.
+ */
+public class AdaptiveConcurrencyLimitTestCase {
+
+    @Test
+    public void testGrowsWhileLatencyIsStable() {
+        final AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit();
+        int previous = limit.getLimit();
+        for (int i = 0; i < 50; i++) {
+            final int current = limit.update(10_000_000, limit.getLimit());
+            Assert.assertTrue(current >= previous);
+            previous = current;
+        }
+        Assert.assertTrue("limit " + previous, previous > 2 * AdaptiveConcurrencyLimit.INITIAL_LIMIT);
+    }
+
+    @Test
+    public void testShrinksWhenRequestsQueue() {
+        final AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit();
+        for (int i = 0; i < 30; i++) {
+            limit.update(10_000_000, limit.getLimit());
+        }
+        final int saturated = limit.getLimit();
+        for (int i = 0; i < 10; i++) {
+            limit.update(50_000_000, limit.getLimit());
+        }
+        Assert.assertTrue(limit.getLimit() < saturated / 2);
+        Assert.assertTrue(limit.getLimit() >= AdaptiveConcurrencyLimit.MIN_LIMIT);
+    }
+
+    @Test
+    public void testNotRaisedWhenUnused() {
+        final AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit();
+        for (int i = 0; i < 30; i++) {
+            limit.update(10_000_000, 2);
+        }
+        Assert.assertEquals(AdaptiveConcurrencyLimit.INITIAL_LIMIT, limit.getLimit());
+    }
+
+    @Test
+    public void testSamples() {
+        final AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit();
+        for (int i = 0; i < AdaptiveConcurrencyLimit.MIN_SAMPLES - 1; i++) {
+            limit.complete(limit.start());
+        }
+        Assert.assertEquals(0, limit.getInFlight());
+        //too few samples: limit kept
+        Assert.assertEquals(AdaptiveConcurrencyLimit.INITIAL_LIMIT, limit.update());
+    }
+
+    @Test
+    public void testSingleUpdaterForAllListeners() {
+        final AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit();
+        final ScheduledThreadPoolExecutor first = new ScheduledThreadPoolExecutor(1);
+        final ScheduledThreadPoolExecutor second = new ScheduledThreadPoolExecutor(1);
+        first.setRemoveOnCancelPolicy(true);
+        second.setRemoveOnCancelPolicy(true);
+        try {
+            final IntConsumer firstListener = value -> {
+            };
+            final IntConsumer secondListener = value -> {
+            };
+            limit.addListener(firstListener, first, 60000);
+            limit.addListener(secondListener, second, 60000);
+            Assert.assertEquals(1, first.getQueue().size());
+            Assert.assertEquals(0, second.getQueue().size());
+            //updater moves to scheduler of remaining listener
+            limit.removeListener(firstListener);
+            Assert.assertEquals(0, first.getQueue().size());
+            Assert.assertEquals(1, second.getQueue().size());
+            limit.removeListener(secondListener);
+            Assert.assertEquals(0, second.getQueue().size());
+        } finally {
+            first.shutdownNow();
+            second.shutdownNow();
+        }
+    }
+}
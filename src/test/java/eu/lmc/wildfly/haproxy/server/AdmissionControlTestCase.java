@@ -0,0 +1,74 @@
+package eu.lmc.wildfly.haproxy.server;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests connection limit and rate limit of peers.
+ */
+public class AdmissionControlTestCase {
+
+    private final AdmissionControl admission = new AdmissionControl();
+
+    private static InetSocketAddress peer(String address) throws UnknownHostException {
+        return new InetSocketAddress(InetAddress.getByName(address), 40000);
+    }
+
+    @Test
+    public void testUnlimited() throws UnknownHostException {
+        for (int i = 0; i < 1000; i++) {
+            Assert.assertTrue(admission.tryAcquire(peer("10.0.0.1"), 0));
+        }
+        Assert.assertEquals(1000, admission.getOpen());
+    }
+
+    @Test
+    public void testMaxConnections() throws UnknownHostException {
+        admission.setMaxConnections(2);
+        Assert.assertTrue(admission.tryAcquire(peer("10.0.0.1"), 0));
+        Assert.assertTrue(admission.tryAcquire(peer("10.0.0.2"), 0));
+        Assert.assertFalse(admission.tryAcquire(peer("10.0.0.3"), 0));
+        admission.release();
+        Assert.assertTrue(admission.tryAcquire(peer("10.0.0.3"), 0));
+    }
+
+    @Test
+    public void testPeerRate() throws UnknownHostException {
+        //10 per second, bursts of 3
+        admission.setRate(10, 3);
+        final long start = System.nanoTime();
+        for (int i = 0; i < 3; i++) {
+            Assert.assertTrue(admission.tryAcquire(peer("10.0.0.1"), start));
+        }
+        Assert.assertFalse(admission.tryAcquire(peer("10.0.0.1"), start));
+        //other peer has its own bucket
+        Assert.assertTrue(admission.tryAcquire(peer("10.0.0.2"), start));
+        //one token per 100ms
+        Assert.assertFalse(admission.tryAcquire(peer("10.0.0.1"), start + TimeUnit.MILLISECONDS.toNanos(50)));
+        Assert.assertTrue(admission.tryAcquire(peer("10.0.0.1"), start + TimeUnit.MILLISECONDS.toNanos(100)));
+        Assert.assertFalse(admission.tryAcquire(peer("10.0.0.1"), start + TimeUnit.MILLISECONDS.toNanos(100)));
+        //idle peer gets full burst again, not more
+        final long later = start + TimeUnit.SECONDS.toNanos(10);
+        for (int i = 0; i < 3; i++) {
+            Assert.assertTrue(admission.tryAcquire(peer("10.0.0.1"), later));
+        }
+        Assert.assertFalse(admission.tryAcquire(peer("10.0.0.1"), later));
+    }
+
+    @Test
+    public void testPeerTableFull() throws UnknownHostException {
+        admission.setRate(1, 1);
+        final long start = System.nanoTime();
+        for (int i = 0; i < AdmissionControl.MAX_PEERS; i++) {
+            Assert.assertTrue(admission.tryAcquire(peer("10.1." + (i >> 8) + "." + (i & 0xff)), start));
+        }
+        Assert.assertFalse(admission.tryAcquire(peer("10.2.0.1"), start));
+        //buckets of idle peers are dropped
+        Assert.assertTrue(admission.tryAcquire(peer("10.2.0.1"), start + TimeUnit.SECONDS.toNanos(2)));
+    }
+}
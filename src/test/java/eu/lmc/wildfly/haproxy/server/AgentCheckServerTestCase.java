@@ -0,0 +1,174 @@
+package eu.lmc.wildfly.haproxy.server;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import org.xnio.OptionMap;
+import org.xnio.Options;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+
+/**
+ * Tests state served by agent server: override by management operations, replacement of the source.
+ */
+public class AgentCheckServerTestCase {
+
+    private final AbstractAgentCheckServer server = new AbstractAgentCheckServer() {
+        @Override
+        public void start(InetAddress listenAddress, int port) {
+        }
+
+        @Override
+        public void close() {
+        }
+    };
+
+    private final List<Path> files = new ArrayList<>();
+
+    @After
+    public void tearDown() throws IOException {
+        server.closeSource();
+        if (server.scheduler != null) {
+            server.scheduler.shutdownNow();
+        }
+        for (Path file : files) {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    private String file(String content) throws IOException {
+        final Path file = Files.createTempFile("haproxy-agent", ".status");
+        files.add(file);
+        Files.write(file, content.getBytes(StandardCharsets.US_ASCII));
+        return file.toString();
+    }
+
+    @Test
+    public void testOverrideKeepsValuesOfSource() {
+        server.publish(ResponseSnapshot.of("up 80% maxconn:10\n"));
+        server.setOverride(AgentState.parse("drain"), 0);
+        Assert.assertEquals("drain 80% maxconn:10 up\n", server.currentResponse().toString());
+        //source changes under override
+        server.publish(ResponseSnapshot.of("up 60%\n"));
+        Assert.assertEquals("drain 60% up\n", server.currentResponse().toString());
+        server.publish(null);
+        Assert.assertEquals("drain\n", server.currentResponse().toString());
+        server.clearOverride();
+        Assert.assertTrue(server.currentResponse().isFallback());
+    }
+
+    @Test
+    public void testFallbackCountedWhenAdjusted() throws UnknownHostException {
+        server.setFallbackState("drain");
+        server.setPeerRules("127.0.0.0/8=50%");
+        final PeerRules.Rule rule = server.getPeerRules().find(new InetSocketAddress(InetAddress.getLoopbackAddress(), 1));
+        server.publish(null);
+        server.setOverride(AgentState.parse("80%"), 0);
+        Assert.assertEquals("drain 40%\n", server.serve(server.currentResponse(), rule).toString());
+        Assert.assertEquals(1, server.getMetrics().getFallbacks());
+        server.publish(ResponseSnapshot.of("up\n"));
+        server.serve(server.currentResponse(), rule);
+        Assert.assertEquals(1, server.getMetrics().getFallbacks());
+        Assert.assertEquals(1, server.getMetrics().getChecksServed());
+    }
+
+    @Test
+    public void testOverrideAppliedToBackends() throws IOException {
+        server.scheduler = Executors.newSingleThreadScheduledExecutor();
+        server.setFallbackState("up");
+        server.setBackends("app=" + file("ready 80%\n") + ";none=/nonexistent/status");
+        server.startSource(file("ready\n"));
+        server.setOverride(AgentState.parse("drain"), 0);
+        Assert.assertEquals("drain 80%\n", server.backendResponse(request("app\n")).toString());
+        //backend without state: fallback is overridden
+        final ResponseSnapshot none = server.backendResponse(request("none\n"));
+        Assert.assertEquals("drain up\n", none.toString());
+        Assert.assertTrue(none.isFallback());
+        //override set before the source is replaced applies to new backends
+        server.startSource(file("ready\n"));
+        Assert.assertEquals("drain 80%\n", server.backendResponse(request("app\n")).toString());
+        server.clearOverride();
+        Assert.assertEquals("ready 80%\n", server.backendResponse(request("app\n")).toString());
+        Assert.assertEquals("up\n", server.backendResponse(request("none\n")).toString());
+    }
+
+    private static ByteBuffer request(String text) {
+        return ByteBuffer.wrap(text.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    @Test
+    public void testOverrideExpires() throws InterruptedException {
+        server.scheduler = Executors.newSingleThreadScheduledExecutor();
+        server.publish(ResponseSnapshot.of("ready 100%\n"));
+        server.setOverride(AgentState.parse("10%"), 50);
+        Assert.assertEquals("ready 10%\n", server.currentResponse().toString());
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (server.getOverride() != null && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals("ready 100%\n", server.currentResponse().toString());
+    }
+
+    @Test
+    public void testSourceReplaced() throws IOException {
+        server.scheduler = Executors.newSingleThreadScheduledExecutor();
+        server.startSource(file("up\n"));
+        Assert.assertEquals("up\n", server.currentResponse().toString());
+        server.setOverride(AgentState.parse("50%"), 0);
+        server.startSource(file("drain\n"));
+        Assert.assertEquals("drain 50%\n", server.currentResponse().toString());
+        Assert.assertEquals("file", server.getMetrics().getSourceType());
+    }
+
+    @Test
+    public void testInvalidSourceKeepsRunningOne() throws IOException {
+        server.scheduler = Executors.newSingleThreadScheduledExecutor();
+        server.startSource(file("up\n"));
+        try {
+            server.startSource(WorkerPoolSource.PREFIX + "default?busy-low=90&busy-high=10");
+            Assert.fail("invalid source accepted");
+        } catch (IllegalArgumentException expected) {
+            //ok
+        }
+        Assert.assertEquals("up\n", server.currentResponse().toString());
+    }
+
+    @Test
+    public void testRequestComplete() {
+        final ByteBuffer request = ByteBuffer.allocate(8);
+        request.put("back".getBytes(StandardCharsets.US_ASCII));
+        Assert.assertFalse(AbstractAgentCheckServer.isRequestComplete(request, 0, 4));
+        //haproxy closed its side
+        Assert.assertTrue(AbstractAgentCheckServer.isRequestComplete(request, 4, -1));
+        request.put("1\n".getBytes(StandardCharsets.US_ASCII));
+        Assert.assertTrue(AbstractAgentCheckServer.isRequestComplete(request, 4, 2));
+        request.clear().position(8);
+        //full buffer
+        Assert.assertTrue(AbstractAgentCheckServer.isRequestComplete(request, 4, 4));
+    }
+
+    @Test
+    public void testSocketOptions() {
+        final XnioAgentCheckServer xnio = new XnioAgentCheckServer(null, "unused");
+        Assert.assertEquals(OptionMap.EMPTY, xnio.socketOptions());
+        xnio.setBacklog(1024);
+        xnio.setTcpNoDelay(true);
+        xnio.setReuseAddress(false);
+        final OptionMap options = xnio.socketOptions();
+        Assert.assertEquals(1024, options.get(Options.BACKLOG, 0));
+        Assert.assertFalse(options.get(Options.REUSE_ADDRESSES, true));
+        //per connection options are set on accepted connections
+        Assert.assertFalse(options.contains(Options.TCP_NODELAY));
+        Assert.assertFalse(options.contains(Options.SEND_BUFFER));
+    }
+}
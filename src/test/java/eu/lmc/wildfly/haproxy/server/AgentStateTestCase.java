@@ -0,0 +1,46 @@
+package eu.lmc.wildfly.haproxy.server;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests parsing and formatting of agent replies.
+ */
+public class AgentStateTestCase {
+
+    @Test
+    public void testParse() {
+        final AgentState state = AgentState.parse("Drain 75% maxconn:30 down #maintenance window\n");
+        Assert.assertEquals(AgentState.Status.DRAIN, state.getAdmin());
+        Assert.assertEquals(AgentState.Status.DOWN, state.getOperational());
+        Assert.assertEquals(75, state.getWeight());
+        Assert.assertEquals(30, state.getMaxconn());
+        Assert.assertEquals("maintenance window", state.getDescription());
+    }
+
+    @Test
+    public void testParseIgnoresUnknownWords() {
+        final AgentState state = AgentState.parse("ready, whatever x% 50%");
+        Assert.assertEquals(AgentState.Status.READY, state.getAdmin());
+        Assert.assertNull(state.getOperational());
+        Assert.assertEquals(50, state.getWeight());
+        Assert.assertEquals(-1, state.getMaxconn());
+    }
+
+    @Test
+    public void testFormat() {
+        Assert.assertEquals("ready 75% maxconn:30 up #ok\n",
+                new AgentState(AgentState.Status.READY, AgentState.Status.UP, 75, 30, "ok").format());
+        Assert.assertEquals("\n", AgentState.EMPTY.format());
+        final AgentState state = AgentState.parse("maint 0%");
+        Assert.assertEquals(state, AgentState.parse(state.format()));
+    }
+
+    @Test
+    public void testFailRoundTrip() {
+        final AgentState state = AgentState.parse("drain fail #health check failed");
+        Assert.assertEquals(AgentState.Status.FAIL, state.getOperational());
+        Assert.assertEquals("drain fail #health check failed\n", state.format());
+        Assert.assertEquals(state, AgentState.parse(state.format()));
+    }
+}
@@ -0,0 +1,87 @@
+package eu.lmc.wildfly.haproxy.server;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Tests lookup of backend by <code>agent-send</code> string.
+ */
+public class BackendDispatchTestCase {
+
+    private static final ResponseSnapshot UNKNOWN = ResponseSnapshot.of("maint\n");
+
+    private final AbstractAgentCheckServer server = new AbstractAgentCheckServer() {
+        @Override
+        public void start(InetAddress listenAddress, int port) {
+        }
+
+        @Override
+        public void close() {
+        }
+    };
+    private Path file;
+    private BackendDispatch dispatch;
+
+    @After
+    public void tearDown() throws IOException {
+        if (dispatch != null) {
+            dispatch.close();
+        }
+        if (file != null) {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void testParse() {
+        final Map<String, String> backends = BackendDispatch.parse(" app1=/tmp/a ; app2=composite:/tmp/b|jvm:;");
+        Assert.assertEquals(2, backends.size());
+        Assert.assertEquals("/tmp/a", backends.get("app1"));
+        Assert.assertEquals("composite:/tmp/b|jvm:", backends.get("app2"));
+        for (String invalid : new String[]{"app1", "=/tmp/a", "app1=", "app1=/tmp/a;app1=/tmp/b"}) {
+            try {
+                BackendDispatch.parse(invalid);
+                Assert.fail("accepted " + invalid);
+            } catch (IllegalArgumentException expected) {
+                //ok
+            }
+        }
+    }
+
+    @Test
+    public void testLookup() throws IOException {
+        file = Files.createTempFile("haproxy-agent", ".status");
+        Files.write(file, "drain\n".getBytes(StandardCharsets.US_ASCII));
+        final Map<String, String> backends = new LinkedHashMap<>();
+        for (int i = 0; i < 20; i++) {
+            backends.put("app" + i, "/nonexistent/app" + i);
+        }
+        backends.put("files", file.toString());
+        dispatch = new BackendDispatch(backends, server);
+        dispatch.start();
+        Assert.assertEquals("drain\n", dispatch.lookup(request("files\n"), UNKNOWN).toString());
+        Assert.assertEquals("drain\n", dispatch.lookup(request(" files \r\n"), UNKNOWN).toString());
+        //known backend without state
+        Assert.assertNull(dispatch.lookup(request("app7\n"), UNKNOWN));
+        Assert.assertSame(UNKNOWN, dispatch.lookup(request("app77\n"), UNKNOWN));
+        Assert.assertSame(UNKNOWN, dispatch.lookup(request("file"), UNKNOWN));
+        Assert.assertSame(UNKNOWN, dispatch.lookup(request(""), UNKNOWN));
+    }
+
+    private static ByteBuffer request(String text) {
+        final ByteBuffer buffer = ByteBuffer.allocate(BackendDispatch.MAX_REQUEST);
+        buffer.put(text.getBytes(StandardCharsets.US_ASCII));
+        buffer.flip();
+        return buffer;
+    }
+}
@@ -0,0 +1,80 @@
+package eu.lmc.wildfly.haproxy.server;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Tests in-memory cache of file source.
+ */
+public class CachedFileSourceTestCase {
+
+    private Path dir;
+    private Path file;
+    private CachedFileSource source;
+    private final AtomicReference<ResponseSnapshot> published = new AtomicReference<>();
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("haproxy-agent");
+        file = dir.resolve("status");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (source != null) {
+            source.close();
+        }
+        Files.deleteIfExists(file);
+        Files.delete(dir);
+    }
+
+    @Test
+    public void testMissingFile() {
+        source = new CachedFileSource(file, new AgentMetrics(), 100, 50);
+        source.start(published::set);
+        Assert.assertNull(published.get());
+    }
+
+    @Test
+    public void testContentTruncatedToMaxSize() throws IOException {
+        Files.write(file, "drain 50%\n".getBytes(StandardCharsets.US_ASCII));
+        source = new CachedFileSource(file, new AgentMetrics(), 5, 50);
+        source.start(published::set);
+        Assert.assertEquals("drain", published.get().toString());
+    }
+
+    @Test
+    public void testReloadOnChange() throws Exception {
+        Files.write(file, "up\n".getBytes(StandardCharsets.US_ASCII));
+        source = new CachedFileSource(file, new AgentMetrics(), 100, 50);
+        source.start(published::set);
+        Assert.assertEquals("up\n", published.get().toString());
+
+        Files.write(file, "maint\n".getBytes(StandardCharsets.US_ASCII));
+        awaitContent("maint\n");
+
+        Files.delete(file);
+        awaitContent(null);
+    }
+
+    private void awaitContent(String expected) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (System.currentTimeMillis() < deadline) {
+            final ResponseSnapshot snapshot = published.get();
+            final String actual = snapshot == null ? null : snapshot.toString();
+            if (expected == null ? actual == null : expected.equals(actual)) {
+                return;
+            }
+            Thread.sleep(20);
+        }
+        Assert.fail("content not reloaded: expected " + expected);
+    }
+}
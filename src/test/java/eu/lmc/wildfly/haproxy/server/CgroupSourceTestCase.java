@@ -0,0 +1,127 @@
+package eu.lmc.wildfly.haproxy.server;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Tests weight computed from statistics in fixture cgroup directories.
+ */
+public class CgroupSourceTestCase {
+
+    private final Path directory;
+
+    public CgroupSourceTestCase() throws IOException {
+        directory = Files.createTempDirectory("cgroup");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted((a, b) -> b.compareTo(a)).forEach(p -> p.toFile().delete());
+        }
+    }
+
+    private void write(String file, String content) throws IOException {
+        final Path path = directory.resolve(file);
+        Files.createDirectories(path.getParent());
+        Files.write(path, content.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private CgroupSource source(String params) {
+        return new CgroupSource(directory + params, null, new AgentMetrics(), 1000);
+    }
+
+    private static String cpuStatV2(long usageMicros, long periods, long throttled) {
+        return "usage_usec " + usageMicros + "\nuser_usec 0\nsystem_usec 0\nnr_periods " + periods
+                + "\nnr_throttled " + throttled + "\nthrottled_usec " + throttled * 1000 + "\n";
+    }
+
+    @Test
+    public void testThrottlingV2() throws IOException {
+        write("cgroup.controllers", "cpu memory\n");
+        write("cpu.max", "200000 100000\n");
+        write("cpu.stat", cpuStatV2(0, 100, 0));
+        final CgroupSource source = source("");
+        final long start = System.nanoTime();
+        //first sample has no deltas
+        Assert.assertEquals("ready 100%", source.sample(start).toString());
+        //1s later: 10 periods, none throttled, 1 of 2 CPUs used
+        write("cpu.stat", cpuStatV2(1000000, 110, 0));
+        Assert.assertEquals("ready 100%", source.sample(start + TimeUnit.SECONDS.toNanos(1)).toString());
+        //throttled in 5 of 10 periods
+        write("cpu.stat", cpuStatV2(2000000, 120, 5));
+        Assert.assertEquals("ready 1%", source.sample(start + TimeUnit.SECONDS.toNanos(2)).toString());
+        //throttled in 2 of 10 periods (between 5 and 50 %)
+        write("cpu.stat", cpuStatV2(3000000, 130, 7));
+        Assert.assertEquals("ready 67%", source.sample(start + TimeUnit.SECONDS.toNanos(3)).toString());
+    }
+
+    @Test
+    public void testUsageAgainstQuota() throws IOException {
+        write("cgroup.controllers", "cpu memory\n");
+        write("cpu.max", "100000 100000\n");
+        write("cpu.stat", cpuStatV2(0, 0, 0));
+        final CgroupSource source = source("?usage-low=50");
+        final long start = System.nanoTime();
+        source.sample(start);
+        //0.75 of 1 CPU quota
+        write("cpu.stat", cpuStatV2(750000, 0, 0));
+        Assert.assertEquals("ready 50%", source.sample(start + TimeUnit.SECONDS.toNanos(1)).toString());
+        //no quota: usage does not count
+        write("cpu.max", "max 100000\n");
+        write("cpu.stat", cpuStatV2(1750000, 0, 0));
+        Assert.assertEquals("ready 100%", source.sample(start + TimeUnit.SECONDS.toNanos(2)).toString());
+    }
+
+    @Test
+    public void testMemoryPressure() throws IOException {
+        write("cgroup.controllers", "cpu memory\n");
+        write("cpu.max", "max 100000\n");
+        write("cpu.stat", cpuStatV2(0, 0, 0));
+        write("memory.pressure", "some avg10=25.00 avg60=3.10 avg300=1.00 total=1234\nfull avg10=5.00 avg60=0.00 avg300=0.00 total=10\n");
+        Assert.assertEquals("ready 50%", source("").sample(System.nanoTime()).toString());
+    }
+
+    @Test
+    public void testV2WithoutCpuController() throws IOException {
+        //no cpu.max (no quota) nor cpu.stat, still v2 group with memory pressure
+        write("cgroup.controllers", "memory\n");
+        write("memory.pressure", "some avg10=25.00 avg60=3.10 avg300=1.00 total=1234\n");
+        final CgroupSource source = source("");
+        final long start = System.nanoTime();
+        Assert.assertEquals("ready 50%", source.sample(start).toString());
+        Assert.assertEquals("ready 50%", source.sample(start + TimeUnit.SECONDS.toNanos(1)).toString());
+    }
+
+    @Test
+    public void testV1() throws IOException {
+        write("cpu/cpu.cfs_quota_us", "50000\n");
+        write("cpu/cpu.cfs_period_us", "100000\n");
+        write("cpu/cpu.stat", "nr_periods 10\nnr_throttled 0\nthrottled_time 0\n");
+        write("cpuacct/cpuacct.usage", "0\n");
+        final CgroupSource source = source("");
+        final long start = System.nanoTime();
+        source.sample(start);
+        write("cpu/cpu.stat", "nr_periods 20\nnr_throttled 10\nthrottled_time 500000000\n");
+        write("cpuacct/cpuacct.usage", "500000000\n");
+        Assert.assertEquals("ready 1%", source.sample(start + TimeUnit.SECONDS.toNanos(1)).toString());
+    }
+
+    @Test
+    public void testNoStatistics() throws IOException {
+        Assert.assertNull(source("").sample(System.nanoTime()));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidLimits() {
+        source("?throttle-low=50&throttle-high=10");
+    }
+}
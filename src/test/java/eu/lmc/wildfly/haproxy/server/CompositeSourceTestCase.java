@@ -0,0 +1,87 @@
+package eu.lmc.wildfly.haproxy.server;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+/**
+ * Tests merge rules of composite source and sources without state.
+ */
+public class CompositeSourceTestCase {
+
+    private static AgentState merge(String... replies) {
+        final AgentState[] states = new AgentState[replies.length];
+        for (int i = 0; i < replies.length; i++) {
+            states[i] = replies[i] == null ? null : AgentState.parse(replies[i]);
+        }
+        return CompositeSource.merge(states);
+    }
+
+    @Test
+    public void testWorstStateAndMinimumWins() {
+        Assert.assertEquals("drain 50% maxconn:10 up",
+                merge("ready 80% maxconn:10 up", "drain", "ready 50% maxconn:30").toString());
+        Assert.assertEquals("ready 80% down #db unreachable",
+                merge("ready 80% up", "down #db unreachable").toString());
+        Assert.assertEquals("maint #a; b", merge("drain #a", "maint #b").toString());
+    }
+
+    @Test
+    public void testSourcesWithoutState() {
+        Assert.assertEquals("ready 70%", merge(null, "ready 70%", null).toString());
+        Assert.assertNull(merge(null, null));
+    }
+
+    @Test
+    public void testFailingSourceVotesWithFallback() {
+        final List<Consumer<ResponseSnapshot>> parts = new ArrayList<>();
+        final List<StateSource> sources = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            sources.add(new StateSource() {
+                @Override
+                public void start(Consumer<ResponseSnapshot> publisher) {
+                    parts.add(publisher);
+                }
+
+                @Override
+                public void close() {
+                }
+            });
+        }
+        //maintenance file (optional), readiness URL, jvm
+        final CompositeSource composite = new CompositeSource(sources, new boolean[]{true, false, false},
+                AgentState.parse("drain"));
+        final AtomicReference<ResponseSnapshot> published = new AtomicReference<>();
+        composite.start(published::set);
+        Assert.assertNull(published.get());
+        parts.get(1).accept(ResponseSnapshot.of("ready\n"));
+        parts.get(2).accept(ResponseSnapshot.of("ready 80%\n"));
+        Assert.assertEquals("ready 80%\n", published.get().toString());
+        //readiness URL stops answering: its vote is the fallback
+        parts.get(1).accept(null);
+        Assert.assertEquals("drain 80%\n", published.get().toString());
+        //missing maintenance file does not take part
+        parts.get(1).accept(ResponseSnapshot.of("ready\n"));
+        parts.get(0).accept(null);
+        Assert.assertEquals("ready 80%\n", published.get().toString());
+        //no source with state: fallback of the server
+        parts.get(1).accept(null);
+        parts.get(2).accept(null);
+        Assert.assertNull(published.get());
+        composite.close();
+    }
+
+    @Test
+    public void testPartMarks() {
+        Assert.assertEquals("http://localhost/ready", CompositeSource.definition("required:http://localhost/ready"));
+        Assert.assertEquals("jvm:", CompositeSource.definition("optional: jvm:"));
+        Assert.assertTrue(CompositeSource.isOptional("/srv/maintenance", true));
+        Assert.assertFalse(CompositeSource.isOptional("required:/srv/maintenance", true));
+        Assert.assertFalse(CompositeSource.isOptional("http://localhost/ready", false));
+        Assert.assertTrue(CompositeSource.isOptional("optional:http://localhost/ready", false));
+    }
+}
@@ -0,0 +1,92 @@
+package eu.lmc.wildfly.haproxy.server;
+
+import eu.lmc.wildfly.haproxy.api.AgentStatusProvider;
+import eu.lmc.wildfly.haproxy.api.AgentStatusProviders;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Tests source reading status of in-VM provider.
+ */
+public class DeploymentStatusSourceTestCase {
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+    private final AtomicReference<ResponseSnapshot> published = new AtomicReference<>();
+    private final AgentMetrics metrics = new AgentMetrics();
+    private final AtomicReference<String> status = new AtomicReference<>("drain 10%");
+    private volatile long delayMillis;
+    private final AgentStatusProvider provider = new AgentStatusProvider() {
+        @Override
+        public String getName() {
+            return "test";
+        }
+
+        @Override
+        public String getStatus() {
+            if (delayMillis > 0) {
+                try {
+                    Thread.sleep(delayMillis);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            return status.get();
+        }
+    };
+    private DeploymentStatusSource source;
+
+    @After
+    public void tearDown() {
+        AgentStatusProviders.unregister(provider);
+        source.close();
+        scheduler.shutdownNow();
+    }
+
+    private void start() {
+        source = new DeploymentStatusSource("test", scheduler, metrics, 100, 20, 10000, 100);
+        source.start(published::set);
+    }
+
+    @Test
+    public void testProviderRegisteredLater() throws InterruptedException {
+        published.set(ResponseSnapshot.of("x"));
+        start();
+        awaitContent(null);
+        AgentStatusProviders.register(provider);
+        awaitContent("drain 10%");
+        status.set("ready");
+        awaitContent("ready");
+        AgentStatusProviders.unregister(provider);
+        awaitContent(null);
+    }
+
+    @Test
+    public void testSlowProviderKeepsLastStatus() throws InterruptedException {
+        AgentStatusProviders.register(provider);
+        start();
+        awaitContent("drain 10%");
+        delayMillis = 1000;
+        status.set("ready");
+        Thread.sleep(300);
+        Assert.assertEquals("drain 10%", published.get().toString());
+        Assert.assertTrue(metrics.getTimeouts() > 0);
+    }
+
+    private void awaitContent(String expected) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (System.currentTimeMillis() < deadline) {
+            final ResponseSnapshot snapshot = published.get();
+            final String actual = snapshot == null ? null : snapshot.toString();
+            if (expected == null ? actual == null : expected.equals(actual)) {
+                return;
+            }
+            Thread.sleep(10);
+        }
+        Assert.fail("status not published: expected " + expected);
+    }
+}
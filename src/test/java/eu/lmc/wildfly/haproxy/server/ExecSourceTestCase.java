@@ -0,0 +1,123 @@
+package eu.lmc.wildfly.haproxy.server;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Tests source serving output of command.
+ */
+public class ExecSourceTestCase {
+
+    private final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(2);
+    private final AtomicReference<ResponseSnapshot> published = new AtomicReference<>();
+    private final AgentMetrics metrics = new AgentMetrics();
+    private ExecSource source;
+    private Path script;
+
+    @After
+    public void tearDown() throws IOException {
+        if (source != null) {
+            source.close();
+        }
+        scheduler.shutdownNow();
+        if (script != null) {
+            Files.deleteIfExists(script);
+        }
+    }
+
+    private void start(String command, long timeoutMillis) {
+        source = new ExecSource(command, scheduler, metrics, 100, 20, 10000, timeoutMillis);
+        source.start(published::set);
+    }
+
+    /**
+     * Executable shell script with given body.
+     */
+    private Path script(String body) throws IOException {
+        script = File.createTempFile("exec-source", ".sh").toPath();
+        Files.write(script, ("#!/bin/sh\n" + body + "\n").getBytes(StandardCharsets.US_ASCII));
+        Assert.assertTrue(script.toFile().setExecutable(true));
+        return script;
+    }
+
+    @Test
+    public void testOutputIsReply() throws InterruptedException {
+        start("echo drain 10%", 1000);
+        awaitContent("drain 10%\n");
+        Assert.assertTrue(metrics.getSourceReadLatency().getCount() > 0);
+        Assert.assertEquals(0, metrics.getExecFailures());
+    }
+
+    @Test
+    public void testFailureKeepsLastOutput() throws IOException, InterruptedException {
+        final Path status = File.createTempFile("exec-status", ".txt").toPath();
+        try {
+            Files.write(status, "ready 50%\n".getBytes(StandardCharsets.US_ASCII));
+            start(script("cat " + status + " || exit 3").toString(), 1000);
+            awaitContent("ready 50%\n");
+            Files.delete(status);
+            final long deadline = System.currentTimeMillis() + 5000;
+            while (metrics.getExecFailures() == 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            Assert.assertTrue(metrics.getExecFailures() > 0);
+            Assert.assertEquals("ready 50%\n", published.get().toString());
+        } finally {
+            Files.deleteIfExists(status);
+        }
+    }
+
+    @Test
+    public void testSlowCommandKilled() throws IOException, InterruptedException {
+        start(script("sleep 10").toString(), 100);
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (metrics.getExecFailures() < 2 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        //killed runs do not overlap, every one is a failure; timeouts count source requests and checks only
+        Assert.assertTrue(metrics.getExecFailures() >= 2);
+        Assert.assertEquals(0, metrics.getTimeouts());
+        Assert.assertNull(published.get());
+    }
+
+    @Test
+    public void testMissingCommand() throws InterruptedException {
+        start("/nonexistent/command", 1000);
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (metrics.getExecFailures() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Assert.assertTrue(metrics.getExecFailures() > 0);
+        Assert.assertNull(published.get());
+    }
+
+    @Test
+    public void testOutputCapped() throws IOException {
+        final byte[] output = new byte[1000];
+        Assert.assertEquals(100, ExecSource.readOutput(new ByteArrayInputStream(output), 100).length);
+        Assert.assertEquals(5, ExecSource.readOutput(new ByteArrayInputStream(new byte[5]), 100).length);
+    }
+
+    private void awaitContent(String expected) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (System.currentTimeMillis() < deadline) {
+            final ResponseSnapshot snapshot = published.get();
+            if (snapshot != null && expected.equals(snapshot.toString())) {
+                return;
+            }
+            Thread.sleep(10);
+        }
+        Assert.fail("output not published: expected " + expected);
+    }
+}
@@ -0,0 +1,147 @@
+package eu.lmc.wildfly.haproxy.server;
+
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Tests HTTP source against local stub server.
+ */
+public class HttpPollingSourceTestCase {
+
+    /**
+     * Long enough that only the first poll runs; tests trigger refresh themselves.
+     */
+    private static final long INTERVAL = 60000;
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+    private final AgentMetrics metrics = new AgentMetrics();
+    private final AtomicInteger requests = new AtomicInteger();
+    private final AtomicReference<ResponseSnapshot> published = new AtomicReference<>();
+    private final CountDownLatch release = new CountDownLatch(1);
+    private volatile int status = 200;
+    private volatile boolean block;
+    private HttpServer stub;
+    private HttpPollingSource source;
+
+    @Before
+    public void setUp() throws IOException {
+        stub = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 50);
+        stub.setExecutor(Executors.newCachedThreadPool());
+        stub.createContext("/", exchange -> {
+            requests.incrementAndGet();
+            if (block) {
+                try {
+                    release.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            final byte[] body = "up 70%\n".getBytes(StandardCharsets.US_ASCII);
+            exchange.sendResponseHeaders(status, body.length);
+            exchange.getResponseBody().write(body);
+            exchange.close();
+        });
+        stub.start();
+    }
+
+    @After
+    public void tearDown() {
+        release.countDown();
+        if (source != null) {
+            source.close();
+        }
+        scheduler.shutdownNow();
+        stub.stop(0);
+    }
+
+    private void start(long maxStaleMillis, long timeoutMillis) {
+        final URI uri = URI.create("http://127.0.0.1:" + stub.getAddress().getPort() + "/status");
+        source = new HttpPollingSource(uri, null, scheduler, metrics, 1024, INTERVAL, maxStaleMillis, timeoutMillis);
+        source.start(published::set);
+    }
+
+    private static void await(String message, BooleanSupplier condition) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (!condition.getAsBoolean() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Assert.assertTrue(message, condition.getAsBoolean());
+    }
+
+    @Test
+    public void testResponsePublished() throws InterruptedException {
+        start(10000, 2000);
+        await("response published", () -> published.get() != null);
+        Assert.assertEquals("up 70%\n", published.get().toString());
+        Assert.assertEquals(1, metrics.getSourceReadLatency().getCount());
+    }
+
+    @Test
+    public void testSingleFlight() throws InterruptedException {
+        block = true;
+        start(10000, 5000);
+        await("first request", () -> requests.get() == 1);
+        //refresh while the request is in flight is coalesced with it
+        for (int i = 0; i < 5; i++) {
+            source.refresh();
+        }
+        release.countDown();
+        await("response published", () -> published.get() != null);
+        Assert.assertEquals(1, requests.get());
+        //next refresh starts new request
+        source.refresh();
+        await("second request", () -> requests.get() == 2);
+    }
+
+    @Test
+    public void testNonOkStatusIsHttpError() throws InterruptedException {
+        status = 503;
+        start(10000, 2000);
+        await("http error", () -> metrics.getHttpErrors() == 1);
+        Assert.assertNull(published.get());
+    }
+
+    @Test
+    public void testFallbackWhenStale() throws InterruptedException {
+        start(100, 2000);
+        await("response published", () -> published.get() != null);
+        status = 500;
+        //last good response is kept while it is not too old
+        source.refresh();
+        await("http error", () -> metrics.getHttpErrors() == 1);
+        Assert.assertNotNull(published.get());
+        Thread.sleep(150);
+        source.refresh();
+        Assert.assertNull(published.get());
+    }
+
+    @Test
+    public void testTimeoutCancelsRequest() throws InterruptedException {
+        block = true;
+        start(10000, 100);
+        await("request cancelled", () -> metrics.getTimeouts() == 1);
+        Assert.assertNull(published.get());
+        //cancelled request is no longer in flight: refresh starts new one
+        release.countDown();
+        await("second request", () -> {
+            source.refresh();
+            return requests.get() == 2;
+        });
+    }
+}
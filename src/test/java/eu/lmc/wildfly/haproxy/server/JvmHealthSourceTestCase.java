@@ -0,0 +1,21 @@
+package eu.lmc.wildfly.haproxy.server;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests weight computed from JVM health.
+ */
+public class JvmHealthSourceTestCase {
+
+    @Test
+    public void testWeight() {
+        Assert.assertEquals(100, JvmHealthSource.weight(0.3, 0.0, 0.1));
+        Assert.assertEquals(100, JvmHealthSource.weight(0.3, 0.0, -1));
+        //heap half way between thresholds
+        Assert.assertEquals(50, JvmHealthSource.weight((JvmHealthSource.HEAP_LOW + JvmHealthSource.HEAP_HIGH) / 2, 0.0, 0.1));
+        //GC thrashing wins over healthy heap
+        Assert.assertEquals(JvmHealthSource.MIN_WEIGHT, JvmHealthSource.weight(0.3, 0.5, 0.1));
+        Assert.assertEquals(50, JvmHealthSource.weight(0.3, 0.0, 0.9));
+    }
+}
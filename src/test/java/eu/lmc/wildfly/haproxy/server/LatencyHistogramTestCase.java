@@ -0,0 +1,34 @@
+package eu.lmc.wildfly.haproxy.server;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests percentiles of {@link LatencyHistogram}.
+ */
+public class LatencyHistogramTestCase {
+
+    @Test
+    public void testBucketBounds() {
+        for (long value : new long[]{0, 1, 7, 8, 9, 15, 16, 17, 100, 1000, 123456789, Long.MAX_VALUE}) {
+            final int bucket = LatencyHistogram.bucketOf(value);
+            Assert.assertTrue("value " + value, LatencyHistogram.upperBoundOf(bucket) >= value);
+            Assert.assertTrue("value " + value, bucket == 0 || LatencyHistogram.upperBoundOf(bucket - 1) < value);
+        }
+    }
+
+    @Test
+    public void testPercentiles() {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        Assert.assertEquals(0, histogram.getPercentile(99));
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i);
+        }
+        Assert.assertEquals(1000, histogram.getCount());
+        Assert.assertEquals(1000, histogram.getMax());
+        final long median = histogram.getPercentile(50);
+        Assert.assertTrue("median " + median, median >= 500 && median <= 500 * 1.125);
+        final long p99 = histogram.getPercentile(99);
+        Assert.assertTrue("p99 " + p99, p99 >= 990 && p99 <= 1000);
+    }
+}
@@ -0,0 +1,130 @@
+package eu.lmc.wildfly.haproxy.server;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Tests source reading status from memory-mapped file.
+ */
+public class MappedStatusSourceTestCase {
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+    private final AtomicReference<ResponseSnapshot> published = new AtomicReference<>();
+    private final AgentMetrics metrics = new AgentMetrics();
+    private final Path path;
+    private MappedStatusSource source;
+
+    public MappedStatusSourceTestCase() throws IOException {
+        path = File.createTempFile("status", ".mmap").toPath();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (source != null) {
+            source.close();
+        }
+        scheduler.shutdownNow();
+        Files.deleteIfExists(path);
+    }
+
+    private void start() {
+        source = new MappedStatusSource(path + "?poll=1", scheduler, metrics, 100, 0);
+        source.start(published::set);
+    }
+
+    /**
+     * Writer side of the seqlock.
+     */
+    private static MappedByteBuffer map(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, 128);
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            return buffer;
+        }
+    }
+
+    private static void write(MappedByteBuffer buffer, String status) {
+        final long sequence = buffer.getLong(MappedStatusSource.SEQUENCE_OFFSET);
+        buffer.putLong(MappedStatusSource.SEQUENCE_OFFSET, sequence + 1);
+        final byte[] bytes = status.getBytes(StandardCharsets.US_ASCII);
+        buffer.putInt(MappedStatusSource.LENGTH_OFFSET, bytes.length);
+        for (int i = 0; i < bytes.length; i++) {
+            buffer.put(MappedStatusSource.DATA_OFFSET + i, bytes[i]);
+        }
+        buffer.putLong(MappedStatusSource.SEQUENCE_OFFSET, sequence + 2);
+    }
+
+    @Test
+    public void testStatusChanges() throws IOException, InterruptedException {
+        final MappedByteBuffer buffer = map(path);
+        write(buffer, "ready 50%\n");
+        start();
+        awaitContent("ready 50%\n");
+        for (int i = 1; i <= 100; i++) {
+            write(buffer, "ready " + i + "%\n");
+        }
+        awaitContent("ready 100%\n");
+        write(buffer, "");
+        awaitContent(null);
+        Assert.assertTrue(metrics.getSourceReadLatency().getCount() > 0);
+    }
+
+    @Test
+    public void testStatusBeingWrittenIsNotRead() throws IOException, InterruptedException {
+        final MappedByteBuffer buffer = map(path);
+        write(buffer, "drain\n");
+        start();
+        awaitContent("drain\n");
+        //writer stopped in the middle
+        buffer.putLong(MappedStatusSource.SEQUENCE_OFFSET, buffer.getLong(MappedStatusSource.SEQUENCE_OFFSET) + 1);
+        buffer.putInt(MappedStatusSource.LENGTH_OFFSET, 2);
+        Thread.sleep(50);
+        Assert.assertEquals("drain\n", published.get().toString());
+        buffer.putLong(MappedStatusSource.SEQUENCE_OFFSET, buffer.getLong(MappedStatusSource.SEQUENCE_OFFSET) + 1);
+        awaitContent("dr");
+    }
+
+    @Test
+    public void testFileReplaced() throws IOException, InterruptedException {
+        Files.delete(path);
+        published.set(ResponseSnapshot.of("x"));
+        start();
+        awaitContent(null);
+        final Path next = File.createTempFile("status", ".mmap").toPath();
+        write(map(next), "up\n");
+        Files.move(next, path, StandardCopyOption.ATOMIC_MOVE);
+        awaitContent("up\n");
+        final Path replacement = File.createTempFile("status", ".mmap").toPath();
+        write(map(replacement), "down\n");
+        Files.move(replacement, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        awaitContent("down\n");
+    }
+
+    private void awaitContent(String expected) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (System.currentTimeMillis() < deadline) {
+            final ResponseSnapshot snapshot = published.get();
+            final String actual = snapshot == null ? null : snapshot.toString();
+            if (expected == null ? actual == null : expected.equals(actual)) {
+                return;
+            }
+            Thread.sleep(5);
+        }
+        Assert.fail("status not published: expected " + expected);
+    }
+}
@@ -0,0 +1,106 @@
+package eu.lmc.wildfly.haproxy.server;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Tests agent server on its own IO thread, over loopback connections.
+ */
+public class NioAgentCheckServerTestCase {
+
+    private NioAgentCheckServer server;
+    private Path file;
+
+    @After
+    public void tearDown() throws IOException {
+        if (server != null) {
+            server.close();
+        }
+        if (file != null) {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    private NioAgentCheckServer start(String status) throws IOException {
+        file = Files.createTempFile("haproxy-agent", ".status");
+        Files.write(file, status.getBytes(StandardCharsets.US_ASCII));
+        server = new NioAgentCheckServer(file.toString());
+        return server;
+    }
+
+    private String check(String request) throws IOException {
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), server.getLocalPort())) {
+            socket.setSoTimeout(5000);
+            if (request != null) {
+                socket.getOutputStream().write(request.getBytes(StandardCharsets.US_ASCII));
+            }
+            final InputStream in = socket.getInputStream();
+            final ByteArrayOutputStream response = new ByteArrayOutputStream();
+            int read;
+            while ((read = in.read()) >= 0) {
+                response.write(read);
+            }
+            return response.toString("US-ASCII");
+        }
+    }
+
+    @Test
+    public void testResponse() throws IOException {
+        start("up 80%\n").start(InetAddress.getLoopbackAddress(), 0);
+        Assert.assertEquals("up 80%\n", check(null));
+        Assert.assertEquals("up 80%\n", check(null));
+        Assert.assertEquals(2, server.getMetrics().getChecksServed());
+        Assert.assertEquals(0, server.getAdmission().getOpen());
+    }
+
+    @Test
+    public void testPeerRule() throws IOException {
+        start("up 80%\n");
+        server.setPeerRules("127.0.0.0/8=50%");
+        server.start(InetAddress.getLoopbackAddress(), 0);
+        Assert.assertEquals("40% up\n", check(null));
+    }
+
+    @Test
+    public void testBackendDispatch() throws IOException {
+        start("up 80%\n");
+        server.setBackends("app=" + file);
+        server.setBackendDefault("down");
+        server.start(InetAddress.getLoopbackAddress(), 0);
+        Assert.assertEquals("up 80%\n", check("app\n"));
+        Assert.assertEquals("down\n", check("other\n"));
+    }
+
+    @Test
+    public void testRequestTimeout() throws IOException {
+        start("up 80%\n");
+        server.setBackends("app=" + file);
+        server.setBackendDefault("down");
+        server.setTimeoutSeconds(1);
+        server.start(InetAddress.getLoopbackAddress(), 0);
+        //haproxy sends nothing: unknown backend after the timeout
+        Assert.assertEquals("down\n", check(null));
+        Assert.assertEquals(0, server.getAdmission().getOpen());
+    }
+
+    @Test
+    public void testOverloadReply() throws IOException {
+        start("up 80%\n");
+        server.setPeerRate(1, 1);
+        server.setOverloadReply("drain");
+        server.start(InetAddress.getLoopbackAddress(), 0);
+        Assert.assertEquals("up 80%\n", check(null));
+        Assert.assertEquals("drain\n", check(null));
+        Assert.assertEquals(1, server.getMetrics().getChecksRejected());
+    }
+}
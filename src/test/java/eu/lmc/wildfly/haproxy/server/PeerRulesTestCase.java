@@ -0,0 +1,87 @@
+package eu.lmc.wildfly.haproxy.server;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Tests replies depending on address of haproxy.
+ */
+public class PeerRulesTestCase {
+
+    private static final ResponseSnapshot REPLY = ResponseSnapshot.of("up 80%\n");
+
+    private final PeerRules rules = new PeerRules("10.2.0.0/16=25%; 10.2.3.0/24=drain; 10.0.0.0/8=0%;"
+            + "192.168.1.1=maint; fd00::/8=50%");
+
+    private String reply(String address) {
+        final PeerRules.Rule rule = rules.find(new InetSocketAddress(address, 1234));
+        return rule == null ? null : rule.apply(REPLY).toString();
+    }
+
+    @Test
+    public void testLongestPrefixWins() {
+        Assert.assertEquals("20% up\n", reply("10.2.200.1"));
+        Assert.assertEquals("drain\n", reply("10.2.3.4"));
+        Assert.assertEquals("0% up\n", reply("10.99.0.1"));
+        Assert.assertEquals("maint\n", reply("192.168.1.1"));
+        Assert.assertNull(reply("192.168.1.2"));
+        Assert.assertNull(reply("11.0.0.1"));
+        Assert.assertEquals("40% up\n", reply("fd12::1"));
+        Assert.assertNull(reply("fe80::1"));
+    }
+
+    @Test
+    public void testScaledReplyCached() {
+        final PeerRules.Rule rule = rules.find(new InetSocketAddress("10.2.0.1", 1));
+        final ResponseSnapshot first = rule.apply(REPLY);
+        Assert.assertSame(first, rule.apply(REPLY));
+        Assert.assertEquals("drain 1%\n", rule.apply(ResponseSnapshot.of("drain 3%\n")).toString());
+        //no weight in reply: scaled from 100 %
+        Assert.assertEquals("ready 25%\n", rule.apply(ResponseSnapshot.of("ready\n")).toString());
+    }
+
+    @Test
+    public void testScaledReplyMatchesBaseUnderConcurrency() throws InterruptedException {
+        final PeerRules.Rule rule = rules.find(new InetSocketAddress("10.2.0.1", 1));
+        final ResponseSnapshot other = ResponseSnapshot.of("drain 40%\n");
+        final AtomicReference<String> wrong = new AtomicReference<>();
+        final Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final boolean odd = t % 2 == 1;
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < 20000 && wrong.get() == null; i++) {
+                    final String reply = rule.apply(odd ? other : REPLY).toString();
+                    if (!reply.equals(odd ? "drain 10%\n" : "20% up\n")) {
+                        wrong.set(reply);
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        Assert.assertNull(wrong.get());
+    }
+
+    @Test
+    public void testDefaultRoute() {
+        final PeerRules all = new PeerRules("0.0.0.0/0=50%");
+        Assert.assertEquals("40% up\n", all.find(new InetSocketAddress("8.8.8.8", 1)).apply(REPLY).toString());
+    }
+
+    @Test
+    public void testInvalidRules() {
+        for (String invalid : new String[]{"10.0.0.0/8", "10.0.0.0/33=drain", "example.com=drain", "=drain"}) {
+            try {
+                new PeerRules(invalid);
+                Assert.fail("accepted " + invalid);
+            } catch (IllegalArgumentException expected) {
+                //ok
+            }
+        }
+    }
+}
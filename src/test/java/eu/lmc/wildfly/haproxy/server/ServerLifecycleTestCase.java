@@ -0,0 +1,109 @@
+package eu.lmc.wildfly.haproxy.server;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+/**
+ * Tests drain while suspended and slow start after resume.
+ */
+public class ServerLifecycleTestCase {
+
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    private final ServerLifecycle lifecycle = new ServerLifecycle();
+    private final AgentState source = AgentState.parse("ready 80% up");
+
+    @Test
+    public void testDrainWhileSuspended() {
+        lifecycle.changeState(true, 0);
+        Assert.assertEquals("drain 80% up\n", lifecycle.apply(source).format());
+        Assert.assertEquals("drain\n", lifecycle.apply(null).format());
+        lifecycle.changeState(false, SECOND);
+        Assert.assertEquals(source, lifecycle.apply(source));
+        Assert.assertNull(lifecycle.apply(null));
+    }
+
+    @Test
+    public void testTimedSlowStart() {
+        lifecycle.setSlowStartMillis(10000);
+        lifecycle.setSlowStartWeight(10);
+        lifecycle.changeState(true, 0);
+        lifecycle.changeState(false, 0);
+        Assert.assertTrue(lifecycle.isRamping());
+        //10% of 80%
+        Assert.assertEquals(8, lifecycle.apply(source).getWeight());
+        lifecycle.update(5 * SECOND);
+        //55% of 80%
+        Assert.assertEquals(44, lifecycle.apply(source).getWeight());
+        lifecycle.update(10 * SECOND);
+        Assert.assertFalse(lifecycle.isRamping());
+        Assert.assertEquals(source, lifecycle.apply(source));
+    }
+
+    @Test
+    public void testJitSlowStart() {
+        lifecycle.setSlowStartMillis(10000);
+        lifecycle.setSlowStartWeight(10);
+        lifecycle.setSlowStartJit(true);
+        lifecycle.changeState(true, 0);
+        lifecycle.changeState(false, 0);
+        //compiling half of the time: ramp holds
+        lifecycle.update(SECOND, 500);
+        Assert.assertEquals(8, lifecycle.apply(source).getWeight());
+        //compiler idle: ramp advances
+        lifecycle.update(6 * SECOND, 10);
+        Assert.assertEquals(44, lifecycle.apply(source).getWeight());
+        //busy compiler does not hold the ramp for more than twice slow start
+        lifecycle.update(20 * SECOND, 14000);
+        Assert.assertFalse(lifecycle.isRamping());
+    }
+
+    @Test
+    public void testSourcePassedUnchangedWhenRunning() {
+        final AtomicReference<ResponseSnapshot> published = new AtomicReference<>();
+        final ResponseSnapshot reply = ResponseSnapshot.of("up 60% whatever\n");
+        final LifecycleSource source = new LifecycleSource(new StateSource() {
+            @Override
+            public void start(Consumer<ResponseSnapshot> publisher) {
+                publisher.accept(reply);
+            }
+
+            @Override
+            public void close() {
+            }
+        }, lifecycle, null, 1000);
+        source.start(published::set);
+        Assert.assertSame(reply, published.get());
+        lifecycle.suspend();
+        Assert.assertEquals("drain 60% up\n", published.get().toString());
+        lifecycle.resume();
+        Assert.assertSame(reply, published.get());
+        source.close();
+    }
+
+    @Test
+    public void testDrainWhileSuspendedWithoutSourceState() {
+        final AtomicReference<ResponseSnapshot> published = new AtomicReference<>(ResponseSnapshot.of("unset\n"));
+        //source failing since boot: never publishes
+        final LifecycleSource source = new LifecycleSource(new StateSource() {
+            @Override
+            public void start(Consumer<ResponseSnapshot> publisher) {
+            }
+
+            @Override
+            public void close() {
+            }
+        }, lifecycle, null, 1000);
+        lifecycle.suspend();
+        source.start(published::set);
+        Assert.assertEquals("drain\n", published.get().toString());
+        lifecycle.resume();
+        //fallback of the server
+        Assert.assertNull(published.get());
+        source.close();
+    }
+}
@@ -0,0 +1,90 @@
+package eu.lmc.wildfly.haproxy.server;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+/**
+ * Tests smoothing of weights and states.
+ */
+public class SmoothingSourceTestCase {
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+    private final AtomicReference<ResponseSnapshot> published = new AtomicReference<>();
+    private Consumer<ResponseSnapshot> source;
+
+    @After
+    public void tearDown() {
+        scheduler.shutdownNow();
+    }
+
+    /**
+     * @return smoothing source updated only by test (interval 1 hour)
+     */
+    private SmoothingSource start(int smoothing, int weightStep, long stateDwellMillis) {
+        final SmoothingSource smoothingSource = new SmoothingSource(new StateSource() {
+            @Override
+            public void start(Consumer<ResponseSnapshot> publisher) {
+                source = publisher;
+            }
+
+            @Override
+            public void close() {
+            }
+        }, scheduler, TimeUnit.HOURS.toMillis(1), smoothing, weightStep, stateDwellMillis);
+        smoothingSource.start(published::set);
+        return smoothingSource;
+    }
+
+    private String current() {
+        final ResponseSnapshot snapshot = published.get();
+        return snapshot == null ? null : snapshot.toString().trim();
+    }
+
+    @Test
+    public void testMovingAverage() {
+        final SmoothingSource smoothing = start(50, 100, 0);
+        source.accept(ResponseSnapshot.of("ready 100%"));
+        Assert.assertEquals("first state is sent as is", "ready 100%", current());
+        source.accept(ResponseSnapshot.of("ready 20%"));
+        smoothing.update(0);
+        Assert.assertEquals("ready 60%", current());
+        smoothing.update(0);
+        Assert.assertEquals("ready 40%", current());
+    }
+
+    @Test
+    public void testWeightStep() {
+        final SmoothingSource smoothing = start(100, 10, 0);
+        source.accept(ResponseSnapshot.of("ready 100%"));
+        source.accept(ResponseSnapshot.of("ready 50%"));
+        smoothing.update(0);
+        Assert.assertEquals("ready 90%", current());
+        smoothing.update(0);
+        Assert.assertEquals("ready 80%", current());
+    }
+
+    @Test
+    public void testStateDwell() {
+        final SmoothingSource smoothing = start(100, 100, 1000);
+        final long start = System.nanoTime();
+        source.accept(ResponseSnapshot.of("ready 100%"));
+        source.accept(ResponseSnapshot.of("drain"));
+        smoothing.update(start + TimeUnit.MILLISECONDS.toNanos(500));
+        Assert.assertEquals("ready 100%", current());
+        smoothing.update(start + TimeUnit.MILLISECONDS.toNanos(1500));
+        Assert.assertEquals("drain", current());
+        //source lost: fallback only after dwell time
+        source.accept(null);
+        smoothing.update(start + TimeUnit.MILLISECONDS.toNanos(2000));
+        Assert.assertEquals("drain", current());
+        smoothing.update(start + TimeUnit.MILLISECONDS.toNanos(2600));
+        Assert.assertNull(current());
+    }
+}
@@ -0,0 +1,165 @@
+package eu.lmc.wildfly.haproxy.server;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+/**
+ * Tests sources shared by servers with the same source.
+ */
+public class SourceRegistryServiceTestCase {
+
+    private final SourceRegistryService registry = new SourceRegistryService();
+    private final AtomicInteger created = new AtomicInteger();
+    private final AtomicInteger closed = new AtomicInteger();
+    private final AtomicReference<Consumer<ResponseSnapshot>> sourcePublisher = new AtomicReference<>();
+
+    public SourceRegistryServiceTestCase() {
+        registry.start(Executors.newSingleThreadScheduledExecutor());
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        registry.stop(null);
+        if (file != null) {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    private final AtomicReference<AgentMetrics> sourceMetrics = new AtomicReference<>();
+    private Path file;
+
+    private StateSource acquire(String key) {
+        return acquire(key, new AgentMetrics());
+    }
+
+    private StateSource acquire(String key, AgentMetrics metrics) {
+        return registry.acquire(key, (scheduler, shared) -> {
+            sourceMetrics.set(shared);
+            created.incrementAndGet();
+            return new StateSource() {
+                @Override
+                public void start(Consumer<ResponseSnapshot> publisher) {
+                    sourcePublisher.set(publisher);
+                }
+
+                @Override
+                public void close() {
+                    closed.incrementAndGet();
+                }
+            };
+        }, metrics);
+    }
+
+    @Test
+    public void testReferenceCounting() {
+        final StateSource first = acquire("a");
+        final StateSource second = acquire("a");
+        Assert.assertEquals(1, created.get());
+        final AtomicReference<ResponseSnapshot> firstState = new AtomicReference<>();
+        final AtomicReference<ResponseSnapshot> secondState = new AtomicReference<>();
+        first.start(firstState::set);
+        sourcePublisher.get().accept(ResponseSnapshot.of("drain\n"));
+        Assert.assertEquals("drain\n", firstState.get().toString());
+        //late subscriber gets the last state at once
+        second.start(secondState::set);
+        Assert.assertEquals("drain\n", secondState.get().toString());
+
+        first.close();
+        first.close();
+        Assert.assertEquals(0, closed.get());
+        sourcePublisher.get().accept(ResponseSnapshot.of("up\n"));
+        Assert.assertEquals("drain\n", firstState.get().toString());
+        Assert.assertEquals("up\n", secondState.get().toString());
+        second.close();
+        Assert.assertEquals(1, closed.get());
+        Assert.assertEquals(0, registry.size());
+
+        acquire("a").close();
+        Assert.assertEquals(2, created.get());
+    }
+
+    @Test
+    public void testMetricsRecordedToSubscribers() {
+        final AgentMetrics firstMetrics = new AgentMetrics();
+        final AgentMetrics secondMetrics = new AgentMetrics();
+        final StateSource first = acquire("a", firstMetrics);
+        final StateSource second = acquire("a", secondMetrics);
+        first.start(state -> {
+        });
+        second.start(state -> {
+        });
+        sourceMetrics.get().httpError();
+        Assert.assertEquals(1, firstMetrics.getHttpErrors());
+        Assert.assertEquals(1, secondMetrics.getHttpErrors());
+        //source outlives the server that created it: records to the remaining one only
+        first.close();
+        sourceMetrics.get().timeout();
+        sourceMetrics.get().sourceRead(System.nanoTime());
+        Assert.assertEquals(0, firstMetrics.getTimeouts());
+        Assert.assertEquals(1, secondMetrics.getTimeouts());
+        Assert.assertEquals(0, firstMetrics.getSourceReadLatency().getCount());
+        Assert.assertEquals(1, secondMetrics.getSourceReadLatency().getCount());
+        second.close();
+    }
+
+    private AbstractAgentCheckServer server() {
+        final AbstractAgentCheckServer server = new AbstractAgentCheckServer() {
+            @Override
+            public void start(InetAddress listenAddress, int port) {
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        server.setSourceRegistry(registry);
+        return server;
+    }
+
+    @Test
+    public void testServersShareSource() throws IOException, InterruptedException {
+        file = Files.createTempFile("haproxy-agent", ".status");
+        Files.write(file, "ready 70%\n".getBytes(StandardCharsets.US_ASCII));
+        final AbstractAgentCheckServer first = server();
+        final AbstractAgentCheckServer second = server();
+        first.startSource(file.toString());
+        second.startSource(" " + file + " ");
+        Assert.assertEquals(1, registry.size());
+        Assert.assertEquals("file", second.getMetrics().getSourceType());
+        awaitResponse(first, "ready 70%\n");
+        awaitResponse(second, "ready 70%\n");
+        //different settings: own source
+        final AbstractAgentCheckServer third = server();
+        third.setRefreshIntervalMillis(500);
+        third.startSource(file.toString());
+        Assert.assertEquals(2, registry.size());
+
+        //restart of the source with the same settings keeps the shared one
+        first.startSource(file.toString());
+        Assert.assertEquals(2, registry.size());
+        first.closeSource();
+        awaitResponse(second, "ready 70%\n");
+        second.closeSource();
+        third.closeSource();
+        Assert.assertEquals(0, registry.size());
+    }
+
+    private static void awaitResponse(AbstractAgentCheckServer server, String expected) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (!expected.equals(server.currentResponse().toString()) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(expected, server.currentResponse().toString());
+    }
+}
@@ -0,0 +1,87 @@
+package eu.lmc.wildfly.haproxy.server;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests state computed from worker pool saturation.
+ */
+public class WorkerPoolSourceTestCase {
+
+    private final WorkerPoolSource source = new WorkerPoolSource("default?busy-low=50&drain-queue=5", null, new AgentMetrics(), 1000);
+
+    @Test
+    public void testWeight() {
+        Assert.assertEquals("ready 100%", source.state(0, 10, 0).toString());
+        Assert.assertEquals("ready 100%", source.state(5, 10, 0).toString());
+        Assert.assertEquals("ready 60%", source.state(7, 10, 0).toString());
+        Assert.assertEquals("ready 1%", source.state(10, 10, 4).toString());
+    }
+
+    @Test
+    public void testDrainHysteresis() {
+        Assert.assertEquals("drain", source.state(10, 10, 5).toString());
+        //queue empty, but still busy
+        Assert.assertEquals("drain", source.state(8, 10, 0).toString());
+        Assert.assertEquals("ready 100%", source.state(3, 10, 0).toString());
+        //default drain-queue is max pool size
+        final WorkerPoolSource defaults = new WorkerPoolSource("default", null, new AgentMetrics(), 1000);
+        Assert.assertEquals("ready 1%", defaults.state(10, 10, 9).toString());
+        Assert.assertEquals("drain", defaults.state(10, 10, 10).toString());
+    }
+
+    @Test
+    public void testBusyThreads() throws InterruptedException {
+        final AtomicInteger threads = new AtomicInteger();
+        final ThreadPoolExecutor pool = new ThreadPoolExecutor(4, 4, 1, TimeUnit.MINUTES, new LinkedBlockingQueue<>(),
+                task -> new Thread(task, "testpool task-" + threads.incrementAndGet()));
+        final CountDownLatch release = new CountDownLatch(1);
+        try {
+            pool.prestartAllCoreThreads();
+            final WorkerPoolSource pooled = new WorkerPoolSource("testpool?stack-interval=60000", null, new AgentMetrics(), 1000);
+            Assert.assertEquals(0, countWhenSettled(pooled, 0, 0));
+            //tasks waiting in application code are busy
+            final CountDownLatch started = new CountDownLatch(2);
+            for (int i = 0; i < 2; i++) {
+                pool.execute(() -> {
+                    started.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                });
+            }
+            started.await();
+            Assert.assertEquals(2, countWhenSettled(pooled, TimeUnit.MINUTES.toNanos(2), 2));
+            release.countDown();
+            //stacks not walked again yet: threads that were busy still count
+            Assert.assertEquals(2, countWhenSettled(pooled, TimeUnit.MINUTES.toNanos(2) + 1, 2));
+            Assert.assertEquals(0, countWhenSettled(pooled, TimeUnit.MINUTES.toNanos(4), 0));
+        } finally {
+            release.countDown();
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Thread states change asynchronously: count until the expected value is reached or time is out; each retry is a
+     * minute later, so that stacks are walked again.
+     */
+    private static int countWhenSettled(WorkerPoolSource source, long now, int expected) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + 5000;
+        int busy;
+        long time = now;
+        while ((busy = source.countBusyThreads(time)) != expected && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+            time += TimeUnit.MINUTES.toNanos(1);
+        }
+        return busy;
+    }
+}